@@ -0,0 +1,237 @@
+package psp.ud03.tarea34.client;
+
+import psp.ud03.tarea34.net.FramingReader;
+import psp.ud03.tarea34.net.ProtocolIO;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Modo batch con pipelining: ejecuta un fichero de comandos (o stdin) sin esperar
+ * cada respuesta antes de mandar el siguiente comando.
+ * <p>
+ * Problema del modo interactivo:
+ * - Enviar línea, esperar OK/KO, leer respuesta, enviar la siguiente...
+ * - Con 40 ms de RTT, 5.000 comandos = más de 3 minutos esperando a la red.
+ * <p>
+ * Cómo funciona:
+ * - Un hilo "emisor" lee los comandos y los va mandando seguidos (con buffer).
+ * - El hilo principal lee las respuestas EN ORDEN (el servidor las atiende y
+ * responde en el mismo orden en que llegan) y las empareja con la cola de
+ * comandos enviados.
+ * - Ventana de WINDOW comandos pendientes como mucho: si el servidor va más lento,
+ * el emisor espera (y no se llenan los buffers de los dos lados a la vez).
+ * <p>
+ * Limitación:
+ * - Comandos que necesitan que el cliente mande datos tras el OK (upload) o que
+ * abren otras conexiones (pdownload) no se pueden encadenar: se saltan.
+ * - follow tampoco: su respuesta no acaba hasta que el usuario lo para.
+ * - proto tampoco: para v2 está el modo "v2" (V2Client).
+ */
+public class BatchRunner {
+
+    // Comandos enviados sin respuesta, como mucho
+    private static final int WINDOW = 256;
+
+    // Marca de "no hay más comandos" en la cola
+    private static final String END = "\u0000END";
+
+    private static final Set<String> UNSUPPORTED = Set.of("upload", "pdownload", "rdownload", "sync", "sigs", "patch", "dupload", "follow", "proto");
+
+    private final String host;
+    private final int port;
+    private final Path cwd;
+
+    public BatchRunner(String host, int port, Path cwd) {
+        this.host = host;
+        this.port = port;
+        this.cwd = cwd;
+    }
+
+    /**
+     * Ejecuta los comandos de 'source' ("-" = entrada estándar).
+     */
+    public void run(String source) throws IOException {
+        BufferedReader commands;
+        if ("-".equals(source)) {
+            commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        } else {
+            commands = Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8);
+        }
+
+        try (BufferedReader src = commands;
+             Socket socket = new Socket(host, port)) {
+
+            FramingReader in = new FramingReader(socket.getInputStream());
+            DataInputStream dis = new DataInputStream(in);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+            BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+            Semaphore window = new Semaphore(WINDOW);
+            AtomicReference<IOException> sendError = new AtomicReference<>();
+
+            Thread sender = new Thread(() -> {
+                try {
+                    send(src, out, sent, window);
+                } catch (IOException e) {
+                    sendError.set(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    sent.add(END);
+                }
+            }, "batch-sender");
+            sender.setDaemon(true);
+            sender.start();
+
+            long start = System.nanoTime();
+            int total = 0;
+            int ok = 0;
+
+            // "compress deflate" en el propio batch
+            boolean compressed = false;
+
+            // Respuestas en el mismo orden que los comandos enviados
+            while (true) {
+                String line;
+                try {
+                    line = sent.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (END.equals(line)) {
+                    break;
+                }
+
+                String cmd = commandName(line);
+
+                String status = ProtocolIO.readLine(in);
+                if (status == null) {
+                    throw new EOFException("Server closed connection during batch");
+                }
+
+                System.out.println("> " + line);
+                System.out.println(status);
+                total++;
+
+                if ("BUSY".equals(status)) {
+                    System.out.println("Server busy, try again later.");
+                    break;
+                }
+
+                if ("OK".equals(status)) {
+                    ok++;
+                    if ("download".equals(cmd)) {
+                        receiveDownload(line, in, dis, compressed);
+                    } else {
+                        MainFileClientApp.readReplyBody(cmd, in, compressed);
+                    }
+
+                    if ("compress".equals(cmd)) {
+                        compressed = "deflate".equalsIgnoreCase(line.substring(cmd.length()).trim());
+                    }
+                }
+
+                window.release();
+
+                if ("quit".equals(line) && "OK".equals(status)) {
+                    break;
+                }
+            }
+
+            if (sendError.get() != null) {
+                System.out.println("Batch input error: " + sendError.get().getMessage());
+            }
+
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Batch: " + total + " commands, OK=" + ok + ", KO=" + (total - ok) + ", " + ms + " ms");
+        }
+    }
+
+    /**
+     * Hilo emisor: manda comandos seguidos respetando la ventana.
+     */
+    private void send(BufferedReader src, OutputStream out, BlockingQueue<String> sent, Semaphore window)
+            throws IOException, InterruptedException {
+
+        String line;
+        while ((line = src.readLine()) != null) {
+            line = line.trim();
+
+            // Líneas vacías y comentarios no se envían
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            if (UNSUPPORTED.contains(commandName(line))) {
+                System.err.println("Skipped (not supported in batch): " + line);
+                continue;
+            }
+
+            // Ventana llena: enviamos lo acumulado y esperamos respuestas
+            if (!window.tryAcquire()) {
+                out.flush();
+                window.acquire();
+            }
+
+            sent.put(line);
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+
+            if ("quit".equals(line)) {
+                break;
+            }
+
+            // Si no hay más comandos listos (por ejemplo stdin interactivo), enviamos ya
+            if (!src.ready()) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * download en batch: OK + long size + bytes (o bloque comprimido) => fichero en el cwd del cliente.
+     */
+    private void receiveDownload(String line, FramingReader in, DataInputStream dis, boolean compressed)
+            throws IOException {
+        String params = line.substring(line.indexOf(' ') + 1).trim();
+        Path target = cwd.resolve(Paths.get(params).getFileName().toString()).normalize();
+
+        long size = dis.readLong();
+        try (OutputStream fos = Files.newOutputStream(
+                target,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            if (compressed) {
+                ProtocolIO.receiveCompressed(in, fos, size);
+            } else {
+                ProtocolIO.copyNBytes(in, fos, size);
+            }
+        }
+        System.out.println("Downloaded: " + target + " (" + size + " bytes)");
+    }
+
+    private static String commandName(String line) {
+        int pos = line.indexOf(' ');
+        return (pos == -1) ? line : line.substring(0, pos);
+    }
+}
@@ -0,0 +1,305 @@
+package psp.ud03.tarea34.client;
+
+import psp.ud03.tarea34.net.FramingReader;
+import psp.ud03.tarea34.net.ProtocolIO;
+import psp.ud03.tarea34.net.RollingChecksum;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sincronización por deltas (estilo rsync) de un fichero local con SU versión del servidor.
+ * <p>
+ * Por qué:
+ * - upload no sobrescribe; y aunque lo hiciera, un cambio pequeño en una imagen de VM
+ * o un volcado de base de datos obligaría a mandar el fichero entero.
+ * <p>
+ * Cómo:
+ * 1) "sigs <nombre>": el servidor manda, por cada bloque de su copia, una suma rodante
+ * (RollingChecksum) y un MD5.
+ * 2) El cliente recorre su fichero byte a byte con la suma rodante: cuando la ventana
+ * coincide con un bloque del servidor (suma + MD5), manda "copia el bloque i"; lo
+ * que no coincide se manda como literal.
+ * 3) "patch <bloque> <nombre>" + operaciones + SHA-256 del fichero completo:
+ * el servidor reconstruye en un temporal y lo cambia por el original (move atómico).
+ * <p>
+ * Memoria: el fichero local se lee por ventanas (buffer de ~1 MiB + 2 bloques), así que
+ * vale para ficheros de cualquier tamaño.
+ */
+public class DeltaSync {
+
+    // Literal más grande por operación (el servidor acepta hasta 16 MiB)
+    private static final int MAX_LITERAL = 1024 * 1024;
+
+    private final FramingReader in;
+    private final OutputStream out;
+
+    // Firmas del servidor
+    private int blockSize;
+    private long remoteSize;
+    private int count;
+    private byte[] strong;
+    private final Map<Integer, List<Integer>> index = new HashMap<>();
+
+    // Operaciones de salida
+    private DataOutputStream ops;
+    private int runStart;
+    private int runCount;
+
+    // Estadísticas
+    private long literalBytes;
+    private long copiedBlocks;
+    private long localSize;
+
+    public DeltaSync(FramingReader in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    public long literalBytes() {
+        return literalBytes;
+    }
+
+    public long copiedBlocks() {
+        return copiedBlocks;
+    }
+
+    public long localSize() {
+        return localSize;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sincroniza 'local' con el fichero 'remoteName' del cwd del servidor.
+     *
+     * @return "OK" si el servidor ya tiene la versión nueva; la respuesta de error
+     * ("KO", "BUSY"...) si no; null si el servidor cerró la conexión
+     */
+    public String sync(Path local, String remoteName) throws IOException {
+
+        // 1) Firmas del servidor
+        ProtocolIO.writeLine(out, "sigs " + remoteName);
+        String status = in.readLine();
+        if (!"OK".equals(status)) {
+            return status;
+        }
+        readSignatures();
+
+        // 2) Abrimos el patch y mandamos las operaciones
+        ProtocolIO.writeLine(out, "patch " + blockSize + " " + remoteName);
+        status = in.readLine();
+        if (!"OK".equals(status)) {
+            return status;
+        }
+
+        ops = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        MessageDigest sha = newDigest("SHA-256");
+
+        try (InputStream src = Files.newInputStream(local)) {
+            scan(src, sha);
+        }
+
+        flushRun();
+        ops.writeByte('E');
+        ops.writeLong(localSize);
+        ops.write(sha.digest());
+        ops.flush();
+
+        // 3) Resultado final (OK = tamaño y SHA-256 comprobados y fichero sustituido)
+        return in.readLine();
+    }
+
+    private void readSignatures() throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        blockSize = dis.readInt();
+        remoteSize = dis.readLong();
+        count = dis.readInt();
+        if (blockSize <= 0 || count < 0) {
+            throw new IOException("Bad signatures header");
+        }
+
+        strong = new byte[count * 16];
+        for (int i = 0; i < count; i++) {
+            int weak = dis.readInt();
+            dis.readFully(strong, i * 16, 16);
+            index.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(i);
+        }
+    }
+
+    /**
+     * Recorre el fichero local buscando bloques del servidor.
+     * <p>
+     * buf[start, pos) = literal pendiente; buf[pos, pos+blockSize) = ventana actual;
+     * buf[pos, end) = datos leídos.
+     */
+    private void scan(InputStream src, MessageDigest sha) throws IOException {
+        int bs = blockSize;
+        byte[] buf = new byte[MAX_LITERAL + 2 * bs + 64 * 1024];
+        int start = 0;
+        int pos = 0;
+        int end = 0;
+        boolean eof = false;
+
+        RollingChecksum rc = new RollingChecksum();
+        boolean rolling = false;
+        MessageDigest md5 = newDigest("MD5");
+
+        while (true) {
+
+            // Hace falta la ventana + 1 byte (para desplazarla): compactar y leer más
+            if (end - pos < bs + 1 && !eof) {
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    pos -= start;
+                    end -= start;
+                    start = 0;
+                }
+                while (end < buf.length) {
+                    int r = src.read(buf, end, buf.length - end);
+                    if (r == -1) {
+                        eof = true;
+                        break;
+                    }
+                    sha.update(buf, end, r);
+                    localSize += r;
+                    end += r;
+                }
+            }
+
+            int avail = end - pos;
+
+            // Final del fichero: menos de un bloque. Puede coincidir con el último (corto) del servidor
+            if (avail < bs) {
+                if (avail > 0) {
+                    int idx = find(RollingChecksum.of(buf, pos, avail), buf, pos, avail, md5);
+                    if (idx >= 0) {
+                        literal(buf, start, pos);
+                        copy(idx);
+                        pos += avail;
+                        start = pos;
+                    }
+                }
+                literal(buf, start, end);
+                return;
+            }
+
+            if (!rolling) {
+                rc.reset(buf, pos, bs);
+                rolling = true;
+            }
+
+            int idx = find(rc.value(), buf, pos, bs, md5);
+            if (idx >= 0) {
+                literal(buf, start, pos);
+                copy(idx);
+                pos += bs;
+                start = pos;
+                rolling = false;
+                continue;
+            }
+
+            // Sin coincidencia: el byte pasa al literal y la ventana avanza 1
+            if (pos - start >= MAX_LITERAL) {
+                literal(buf, start, pos);
+                start = pos;
+            }
+
+            if (end - pos > bs) {
+                rc.roll(buf[pos], buf[pos + bs]);
+            } else {
+                rolling = false;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Bloque del servidor igual a buf[off, off+len), o -1.
+     * Si hay varios, se prefiere el siguiente al último copiado (copias seguidas = 1 operación).
+     */
+    private int find(int weak, byte[] buf, int off, int len, MessageDigest md5) {
+        List<Integer> candidates = index.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+
+        md5.update(buf, off, len);
+        byte[] digest = md5.digest();
+
+        int found = -1;
+        for (int c : candidates) {
+            if (blockLength(c) != len) {
+                continue;
+            }
+            if (Arrays.equals(strong, c * 16, c * 16 + 16, digest, 0, 16)) {
+                if (runCount > 0 && c == runStart + runCount) {
+                    return c;
+                }
+                if (found < 0) {
+                    found = c;
+                }
+            }
+        }
+        return found;
+    }
+
+    private int blockLength(int i) {
+        return (int) Math.min(blockSize, remoteSize - (long) i * blockSize);
+    }
+
+    private void copy(int idx) throws IOException {
+        if (runCount > 0 && idx == runStart + runCount) {
+            runCount++;
+            return;
+        }
+        flushRun();
+        runStart = idx;
+        runCount = 1;
+    }
+
+    private void flushRun() throws IOException {
+        if (runCount == 0) {
+            return;
+        }
+        ops.writeByte('C');
+        ops.writeInt(runStart);
+        ops.writeInt(runCount);
+        copiedBlocks += runCount;
+        runCount = 0;
+    }
+
+    private void literal(byte[] buf, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        flushRun();
+        ops.writeByte('L');
+        ops.writeInt(to - from);
+        ops.write(buf, from, to - from);
+        literalBytes += to - from;
+    }
+
+    private static MessageDigest newDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
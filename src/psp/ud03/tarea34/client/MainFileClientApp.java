@@ -1,10 +1,16 @@
 package psp.ud03.tarea34.client;
 
+import psp.ud03.tarea34.net.DeflateBlockInputStream;
+import psp.ud03.tarea34.net.DeflateBlockOutputStream;
+import psp.ud03.tarea34.net.FramingReader;
 import psp.ud03.tarea34.net.ProtocolIO;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -15,15 +21,30 @@ import java.util.Scanner;
  * Características clave:
  * - Usa ProtocolIO.readLine/writeLine para el TEXTO del protocolo.
  * - Usa DataInputStream/DataOutputStream para BINARIO (long size).
- * - NO usa BufferedReader en el socket para no romper el modo texto/binario.
+ * - NO usa BufferedReader en el socket para no romper el modo texto/binario:
+ * la entrada es un FramingReader (buffer único para líneas, long y bytes).
  * <p>
  * Directorio de trabajo del cliente:
  * - cwd = directorio actual desde el que se ejecuta el cliente (".")
- * - download guarda aquí mismo.
- * - upload lee desde aquí mismo (o ruta absoluta si la escribes).
+ * - download guarda aquí mismo (vía "<nombre>.part", reanudable si se corta).
+ * - upload lee desde aquí mismo (o ruta absoluta si la escribes). Los ficheros grandes
+ * se anuncian antes con "dupload" (hash + tamaño): si el servidor ya tiene ese
+ * contenido, no se manda ningún byte.
+ * <p>
+ * Modo batch (pipelining): java ... MainFileClientApp <host> <port> batch [fichero|-]
+ * - Lee comandos de un fichero (o stdin con "-") y los envía sin esperar cada respuesta.
+ * <p>
+ * Modo batch en protocolo binario v2: java ... MainFileClientApp <host> <port> v2 [fichero|-]
+ * - Igual, pero con tramas (ver V2Client); admite rutas con espacios entre comillas.
+ * <p>
+ * Compresión: "compress deflate" activa el modo comprimido en la sesión
+ * (ver CompressCommand en el servidor) y "compress off" lo quita.
  */
 public class MainFileClientApp {
 
+    // A partir de este tamaño, upload prueba antes "dupload" (deduplicación por hash)
+    private static final long DEDUP_MIN_SIZE = 1024 * 1024;
+
     public static void main(String[] args) throws IOException {
 
         // 1) Host/puerto por defecto
@@ -46,11 +67,25 @@ public class MainFileClientApp {
         // Si ejecutas el jar en Desktop, cwd será Desktop.
         Path cwd = Paths.get(".").toAbsolutePath().normalize();
 
+        // Modo batch con pipelining: <host> <port> batch [fichero|-]
+        if (args.length >= 3 && "batch".equals(args[2])) {
+            String source = (args.length >= 4) ? args[3] : "-";
+            new BatchRunner(host, port, cwd).run(source);
+            return;
+        }
+
+        // Modo batch en protocolo v2: <host> <port> v2 [fichero|-]
+        if (args.length >= 3 && "v2".equals(args[2])) {
+            V2Client.runBatch(host, port, (args.length >= 4) ? args[3] : "-");
+            return;
+        }
+
         // 4) Abrimos socket y streams una sola vez (sesión persistente)
         try (Scanner scanner = new Scanner(System.in);
              Socket socket = new Socket(host, port)) {
 
-            InputStream in = socket.getInputStream();
+            // Entrada con buffer: ProtocolIO.readLine delega en FramingReader.readLine
+            FramingReader in = new FramingReader(socket.getInputStream());
             OutputStream out = socket.getOutputStream();
 
             // Para leer/escribir long en binario
@@ -59,6 +94,9 @@ public class MainFileClientApp {
 
             boolean exit = false;
 
+            // Modo "compress deflate" aceptado por el servidor
+            boolean compressed = false;
+
             // 5) Bucle interactivo
             while (!exit) {
 
@@ -136,8 +174,17 @@ public class MainFileClientApp {
                             // 4) Enviar comando al servidor pero solo con el nombre:
                             //    upload <nombre>
                             // Esto evita mandar rutas del cliente (no tienen sentido en el servidor).
+                            // Ficheros grandes: primero "dupload" con el hash, por si el servidor
+                            // ya tiene ese contenido y no hay que mandar los bytes.
                             String onlyName = local.getFileName().toString();
-                            ProtocolIO.writeLine(out, "upload " + onlyName);
+                            long size = Files.size(local);
+                            boolean dedup = size >= DEDUP_MIN_SIZE;
+
+                            if (dedup) {
+                                ProtocolIO.writeLine(out, "dupload " + sha256(local) + " " + size + " " + onlyName);
+                            } else {
+                                ProtocolIO.writeLine(out, "upload " + onlyName);
+                            }
 
                             // 5) Leer status del servidor (OK/KO)
                             String status = ProtocolIO.readLine(in);
@@ -145,24 +192,96 @@ public class MainFileClientApp {
                                 break;
                             }
                             System.out.println(status);
+                            if (isBusy(status)) {
+                                break;
+                            }
+
+                            // 5b) dupload: LINKED (ya lo tenía) o SEND (hay que mandarlo)
+                            if (dedup && "OK".equals(status)) {
+                                String answer = ProtocolIO.readLine(in);
+                                if (answer == null) {
+                                    break;
+                                }
+                                if ("LINKED".equals(answer)) {
+                                    System.out.println("Upload deduplicated: " + onlyName + " (" + size + " bytes, nothing sent)");
+                                    status = "LINKED";
+                                }
+                            }
 
                             // 6) Si OK, enviar tamaño + bytes (binario)
                             if ("OK".equals(status)) {
-                                long size = Files.size(local);
 
                                 // Enviamos el long (8 bytes)
                                 dos.writeLong(size);
                                 dos.flush();
 
-                                // Enviamos EXACTAMENTE size bytes
+                                // Enviamos EXACTAMENTE size bytes (o el bloque comprimido con ellos)
                                 try (InputStream fis = Files.newInputStream(local, StandardOpenOption.READ)) {
-                                    ProtocolIO.copyNBytes(fis, out, size);
+                                    if (compressed) {
+                                        boolean tryCompress = !DeflateBlockOutputStream.looksCompressed(onlyName);
+                                        ProtocolIO.sendCompressed(fis, size, new BufferedOutputStream(out, 64 * 1024), tryCompress);
+                                    } else {
+                                        ProtocolIO.copyNBytes(fis, out, size);
+                                    }
                                 }
 
                                 System.out.println("Upload sent: " + onlyName + " (" + size + " bytes)");
                             }
                         }
 
+                    } else if ("download".equals(cmd)) {
+
+                        /*
+                         * CASO ESPECIAL: download (reanudable)
+                         *
+                         * Si quedó un "<nombre>.part" de una descarga cortada, no se empieza
+                         * de cero: se pide solo lo que falta con rdownload.
+                         */
+                        if (!handleDownload(params, in, out, dis, cwd, compressed)) {
+                            break;
+                        }
+
+                    } else if ("pdownload".equals(cmd)) {
+
+                        /*
+                         * CASO ESPECIAL: pdownload (varias conexiones en paralelo)
+                         *
+                         * Pregunta info (tamaño y fecha) y cwd por ESTA sesión y luego abre conexiones
+                         * nuevas que piden trozos con rdownload.
+                         */
+                        if (!handleParallelDownload(params, in, out, host, port, cwd, compressed)) {
+                            break;
+                        }
+
+                    } else if ("sync".equals(cmd)) {
+
+                        /*
+                         * CASO ESPECIAL: sync (deltas estilo rsync)
+                         *
+                         * Actualiza un fichero que el servidor YA tiene mandando solo
+                         * los trozos que han cambiado (sigs + patch).
+                         */
+                        if (!handleSync(params, in, out, cwd)) {
+                            break;
+                        }
+
+                    } else if ("follow".equals(cmd)) {
+
+                        /*
+                         * CASO ESPECIAL: follow (respuesta sin fin)
+                         *
+                         * Las líneas van llegando hasta que el usuario pulsa Enter:
+                         * entonces se manda "stop" y se lee hasta la línea vacía final.
+                         */
+                        if (!handleFollow(commandLine, in, out, scanner, compressed)) {
+                            break;
+                        }
+
+                    } else if ("rdownload".equals(cmd)) {
+
+                        // rdownload es interno (lo usa download para reanudar)
+                        System.out.println("Use download <server_file> (it resumes automatically).");
+
                     } else {
 
                         /*
@@ -172,6 +291,13 @@ public class MainFileClientApp {
                          * 2) Leer "OK" o "KO"
                          * 3) Si OK, leer el resto según el comando
                          */
+
+                        // show se pide como cat: mismo contenido, en streaming
+                        if ("show".equals(cmd) && !params.isEmpty()) {
+                            cmd = "cat";
+                            commandLine = "cat " + params;
+                        }
+
                         ProtocolIO.writeLine(out, commandLine);
 
                         String status = ProtocolIO.readLine(in);
@@ -179,111 +305,228 @@ public class MainFileClientApp {
                             break;
                         }
                         System.out.println(status);
+                        if (isBusy(status)) {
+                            break;
+                        }
 
                         if ("OK".equals(status)) {
+                            readReplyBody(cmd, in, compressed);
 
-                            switch (cmd) {
+                            // El modo nuevo vale a partir de la respuesta siguiente
+                            if ("compress".equals(cmd)) {
+                                compressed = "deflate".equalsIgnoreCase(params);
+                            }
+                        }
 
-                                case "list":
-                                    handleList(in);
-                                    break;
+                        // Salida limpia del bucle si quit fue OK (quit no lleva params)
+                        if ("quit".equals(cmd) && "OK".equals(status) && pos == -1) {
+                            exit = true;
+                        }
+                    }
+                }
+            }
 
-                                case "show":
-                                    handleShow(in);
-                                    break;
+        }
+    }
 
-                                case "head":
-                                case "tail":
-                                    // head/tail = mismo formato que show: N + N líneas
-                                    handleShow(in);
-                                    break;
+    /**
+     * Igual que printReplyBody, pero en modo comprimido el cuerpo viene dentro de
+     * un bloque (DeflateBlockInputStream): se descomprime y se lee de ahí.
+     * Siempre se consume el bloque entero para no desincronizar el protocolo.
+     */
+    static void readReplyBody(String cmd, InputStream in, boolean compressed) throws IOException {
+        if (!compressed) {
+            printReplyBody(cmd, in);
+            return;
+        }
 
-                                case "download":
-                                    handleDownload(params, in, dis, cwd);
-                                    break;
+        DeflateBlockInputStream block = new DeflateBlockInputStream(in);
+        printReplyBody(cmd, new FramingReader(block));
+        block.skipRest();
+    }
 
-                                case "help":
-                                    // help = lista de líneas terminada en línea vacía
-                                    for (String line : readList(in)) {
-                                        System.out.println(line);
-                                    }
-                                    break;
+    /**
+     * follow: OK + líneas "|texto" hasta que mandamos "stop" + línea vacía.
+     * <p>
+     * Un hilo aparte espera el Enter del usuario (el principal está ocupado
+     * mostrando líneas) y manda "stop"; el principal sigue leyendo hasta el final.
+     *
+     * @return false si el servidor cerró la conexión
+     */
+    private static boolean handleFollow(String commandLine, FramingReader in, OutputStream out,
+                                        Scanner scanner, boolean compressed) throws IOException {
+        ProtocolIO.writeLine(out, commandLine);
 
-                                case "tree":
-                                case "find":
-                                    // tree/find = lista de líneas terminada en línea vacía
-                                    for (String line : readList(in)) {
-                                        System.out.println(line);
-                                    }
-                                    break;
+        String status = ProtocolIO.readLine(in);
+        if (status == null) {
+            return false;
+        }
+        System.out.println(status);
+        if (!"OK".equals(status)) {
+            return !isBusy(status);
+        }
 
-                                case "ping": {
-                                    // ping = 1 línea extra (pong)
-                                    String line = ProtocolIO.readLine(in);
-                                    if (line == null) throw new EOFException("Server closed connection during ping");
-                                    System.out.println(line);
-                                    break;
-                                }
+        System.out.println("(press Enter to stop)");
 
-                                case "exists": {
-                                    // exists = 1 línea extra (true/false)
-                                    String line = ProtocolIO.readLine(in);
-                                    if (line == null) throw new EOFException("Server closed connection during exists");
-                                    System.out.println(line);
-                                    break;
-                                }
+        Thread stopper = new Thread(() -> {
+            try {
+                scanner.nextLine();
+                ProtocolIO.writeLine(out, "stop");
+            } catch (IOException | RuntimeException ignored) {
+                // Conexión cerrada o sin entrada: el hilo principal lo verá al leer
+            }
+        }, "follow-stop");
+        stopper.setDaemon(true);
+        stopper.start();
 
-                                case "pwd": {
-                                    // pwd = 1 línea extra (cwd)
-                                    String line = ProtocolIO.readLine(in);
-                                    if (line == null) throw new EOFException("Server closed connection during pwd");
-                                    System.out.println(line);
-                                    break;
-                                }
+        DeflateBlockInputStream block = compressed ? new DeflateBlockInputStream(in) : null;
+        InputStream body = compressed ? new FramingReader(block) : in;
 
-                                case "size": {
-                                    // size = 1 línea extra (bytes)
-                                    String line = ProtocolIO.readLine(in);
-                                    if (line == null) throw new EOFException("Server closed connection during size");
-                                    System.out.println(line);
-                                    break;
-                                }
+        String line;
+        while ((line = ProtocolIO.readLine(body)) != null && !line.isEmpty()) {
+            System.out.println(line.substring(1));
+        }
+        if (line == null) {
+            return false;
+        }
+        if (block != null) {
+            block.skipRest();
+        }
 
-                                case "hash": {
-                                    // hash = 1 línea extra (sha-256)
-                                    String line = ProtocolIO.readLine(in);
-                                    if (line == null) throw new EOFException("Server closed connection during hash");
-                                    System.out.println(line);
-                                    break;
-                                }
+        try {
+            stopper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
 
-                                case "info":
-                                case "stat": {
-                                    // info/stat = 4 líneas (según el InfoCommand)
-                                    for (int i = 0; i < 4; i++) {
-                                        String line = ProtocolIO.readLine(in);
-                                        if (line == null)
-                                            throw new EOFException("Server closed connection during info");
-                                        System.out.println(line);
-                                    }
-                                    break;
-                                }
+    /**
+     * Lee la única línea de un cuerpo de respuesta (size, pwd...), comprimido o no.
+     */
+    private static String readBodyLine(InputStream in, boolean compressed) throws IOException {
+        if (!compressed) {
+            return ProtocolIO.readLine(in);
+        }
 
-                                default:
-                                    // mkdir/rename/delete/copy/quit -> no traen más datos
-                                    break;
-                            }
-                        }
+        DeflateBlockInputStream block = new DeflateBlockInputStream(in);
+        String line = new FramingReader(block).readLine();
+        block.skipRest();
+        return line;
+    }
 
-                        // Salida limpia del bucle si quit fue OK (quit no lleva params)
-                        if ("quit".equals(cmd) && "OK".equals(status) && pos == -1) {
-                            exit = true;
-                        }
-                    }
+    /**
+     * Lee y muestra lo que viene DESPUÉS de un "OK", según el comando.
+     * <p>
+     * Lo usan el modo interactivo y el modo batch (BatchRunner), para que los dos
+     * entiendan exactamente el mismo formato de respuesta.
+     */
+    static void printReplyBody(String cmd, InputStream in) throws IOException {
+        switch (cmd) {
+
+            case "list":
+                handleList(in);
+                break;
+
+            case "show":
+                handleShow(in);
+                break;
+
+            case "cat":
+                handleCat(in);
+                break;
+
+            case "head":
+            case "tail":
+                // head/tail = mismo formato que show: N + N líneas
+                handleShow(in);
+                break;
+
+            case "help":
+                // help = lista de líneas terminada en línea vacía
+                for (String line : readList(in)) {
+                    System.out.println(line);
                 }
+                break;
+
+            case "tree":
+            case "find":
+            case "grep":
+            case "du":
+            case "stats":
+                // tree/find/grep/du/stats = lista de líneas terminada en línea vacía
+                for (String line : readList(in)) {
+                    System.out.println(line);
+                }
+                break;
+
+            case "ping": {
+                // ping = 1 línea extra (pong)
+                String line = ProtocolIO.readLine(in);
+                if (line == null) throw new EOFException("Server closed connection during ping");
+                System.out.println(line);
+                break;
+            }
+
+            case "exists": {
+                // exists = 1 línea extra (true/false)
+                String line = ProtocolIO.readLine(in);
+                if (line == null) throw new EOFException("Server closed connection during exists");
+                System.out.println(line);
+                break;
             }
 
+            case "pwd": {
+                // pwd = 1 línea extra (cwd)
+                String line = ProtocolIO.readLine(in);
+                if (line == null) throw new EOFException("Server closed connection during pwd");
+                System.out.println(line);
+                break;
+            }
+
+            case "size": {
+                // size = 1 línea extra (bytes)
+                String line = ProtocolIO.readLine(in);
+                if (line == null) throw new EOFException("Server closed connection during size");
+                System.out.println(line);
+                break;
+            }
+
+            case "hash": {
+                // hash = 1 línea extra (sha-256)
+                String line = ProtocolIO.readLine(in);
+                if (line == null) throw new EOFException("Server closed connection during hash");
+                System.out.println(line);
+                break;
+            }
+
+            case "info":
+            case "stat": {
+                // info/stat = 4 líneas (según el InfoCommand)
+                for (int i = 0; i < 4; i++) {
+                    String line = ProtocolIO.readLine(in);
+                    if (line == null)
+                        throw new EOFException("Server closed connection during info");
+                    System.out.println(line);
+                }
+                break;
+            }
+
+            default:
+                // mkdir/rename/delete/copy/quit -> no traen más datos
+                break;
+        }
+    }
+
+    /**
+     * El servidor contesta "BUSY" (y cierra) cuando está saturado.
+     */
+    private static boolean isBusy(String status) {
+        if ("BUSY".equals(status)) {
+            System.out.println("Server busy, try again later.");
+            return true;
         }
+        return false;
     }
 
     /**
@@ -293,9 +536,12 @@ public class MainFileClientApp {
         System.out.println("Commands");
         System.out.println("list <route>");
         System.out.println("show <route>");
+        System.out.println("cat <route>");
         System.out.println("delete <route>");
         System.out.println("upload <local_file>");
         System.out.println("download <server_file>");
+        System.out.println("pdownload <server_file> [streams] [chunk_MiB]");
+        System.out.println("sync <local_file>");
         System.out.println("help");
         System.out.println("ping");
         System.out.println("mkdir <dir>");
@@ -309,9 +555,14 @@ public class MainFileClientApp {
         System.out.println("size <file>");
         System.out.println("head <file> [n]");
         System.out.println("tail <file> [n]");
+        System.out.println("follow <file> [n]");
         System.out.println("tree [dir]");
         System.out.println("find <pattern> [dir]");
-        System.out.println("hash <file>");
+        System.out.println("du [dir]");
+        System.out.println("grep [-E] <pattern|\"text with spaces\"> [dir]");
+        System.out.println("hash [-tree[=KiB]] <file>");
+        System.out.println("stats");
+        System.out.println("compress deflate|off");
         System.out.println("quit");
     }
 
@@ -355,41 +606,395 @@ public class MainFileClientApp {
     }
 
     /**
-     * Lee la respuesta del comando download:
+     * Lee la respuesta de cat (show en streaming):
+     * - grupos "N + N líneas" hasta una línea "0" ("-1" = error de lectura en el servidor).
+     * - Cada línea se muestra según llega: memoria constante aunque el fichero sea enorme.
+     */
+    private static void handleCat(InputStream in) throws IOException {
+        long total = 0;
+        while (true) {
+            String nStr = ProtocolIO.readLine(in);
+            if (nStr == null) {
+                throw new EOFException("Server closed connection during cat");
+            }
+
+            int n = Integer.parseInt(nStr);
+            if (n == 0) {
+                break;
+            }
+            if (n < 0) {
+                System.out.println("(read error on server after " + total + " lines)");
+                return;
+            }
+
+            for (int i = 0; i < n; i++) {
+                String line = ProtocolIO.readLine(in);
+                if (line == null) {
+                    throw new EOFException("Server closed connection during cat content");
+                }
+                System.out.println(line);
+            }
+            total += n;
+        }
+        System.out.println("(" + total + " lines)");
+    }
+
+    /**
+     * download con reanudación.
      * <p>
      * Protocolo:
      * - Tras "OK", el servidor manda:
      * long size
      * size bytes
      * <p>
+     * Reanudación:
+     * - Los bytes se escriben en "<nombre>.part" y solo al terminar se renombra a "<nombre>".
+     * - Al empezar de cero se pide también "info <ruta>" (en el mismo envío, sin esperar)
+     * y su tamaño y fecha se guardan en "<nombre>.part.info".
+     * - Si ya existe "<nombre>.part" con L bytes (descarga cortada), se pide
+     * "rdownload L -1 if=<tamaño>,<fecha> <ruta>" y se añade al final: solo viaja lo que
+     * faltaba. Si el fichero del servidor ha cambiado desde entonces, el servidor responde
+     * KO y el .part se tira (no se pegan trozos de dos versiones distintas).
+     * - Un .part sin su .part.info no se puede comprobar: se empieza de cero.
+     * <p>
      * Guardado:
      * - Se guarda en el directorio actual del cliente (cwd).
+     * <p>
+     * Modo comprimido: tras long size llega un bloque comprimido con esos size bytes.
+     *
+     * @return false si el servidor cerró la conexión (hay que salir del bucle)
      */
-    private static void handleDownload(String params, InputStream in, DataInputStream dis, Path cwd) throws
-            IOException {
+    private static boolean handleDownload(String params, InputStream in, OutputStream out,
+                                          DataInputStream dis, Path cwd, boolean compressed) throws IOException {
 
         if (params == null || params.isEmpty()) {
             System.out.println("Missing server file.");
-            return;
+            return true;
         }
 
-        // 1) Leer tamaño (binario)
-        long size = dis.readLong();
-
-        // 2) Elegir nombre local (solo el nombre, sin rutas)
+        // 1) Elegir nombre local (solo el nombre, sin rutas)
         String fileName = Paths.get(params).getFileName().toString();
         Path target = cwd.resolve(fileName).normalize();
+        Path part = cwd.resolve(fileName + ".part").normalize();
+        Path partInfo = cwd.resolve(fileName + ".part.info").normalize();
+
+        // 2) ¿Hay una descarga a medias (y sabemos de qué versión del fichero)?
+        long have = Files.exists(part) ? Files.size(part) : 0;
+        String expect = (have > 0) ? readPartInfo(partInfo) : null;
+        if (have > 0 && expect == null) {
+            Files.deleteIfExists(part);
+            System.out.println("Partial download discarded (no " + partInfo.getFileName() + "): " + part);
+            have = 0;
+        }
+
+        String version = null;
+        if (have > 0) {
+            ProtocolIO.writeLine(out, "rdownload " + have + " -1 if=" + expect + " " + params);
+        } else {
+            // info + download de una vez: la versión que se anota es la que se baja
+            ProtocolIO.writeLine(out, "info " + params + "\ndownload " + params);
+
+            String infoStatus = ProtocolIO.readLine(in);
+            if (infoStatus == null) {
+                return false;
+            }
+            if (isBusy(infoStatus)) {
+                System.out.println(infoStatus);
+                return false;
+            }
+            if ("OK".equals(infoStatus)) {
+                version = readInfoVersion(in, compressed);
+            }
+        }
+
+        String status = ProtocolIO.readLine(in);
+        if (status == null) {
+            return false;
+        }
+        System.out.println(status);
+        if (isBusy(status)) {
+            return false;
+        }
+
+        if (!"OK".equals(status)) {
+            if (have > 0) {
+                // El .part ya no encaja con el fichero del servidor (o este ya no existe)
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(partInfo);
+                System.out.println("Partial download discarded: " + part);
+            }
+            return true;
+        }
+
+        // 3) Leer tamaño (binario): lo que falta, no el total
+        long size = dis.readLong();
 
-        // 3) Recibir exactamente size bytes y guardarlos
+        // Versión del fichero para poder reanudar (si cambió entre info y download, no se anota)
+        if (have == 0) {
+            if (version != null && version.startsWith(size + ",")) {
+                Files.writeString(partInfo, version + "\n", StandardCharsets.UTF_8);
+            } else {
+                Files.deleteIfExists(partInfo);
+            }
+        }
+
+        // 4) Recibir exactamente size bytes (al final del .part si reanudamos)
         try (OutputStream fos = Files.newOutputStream(
-                target,
+                part,
                 StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING
+                StandardOpenOption.WRITE,
+                (have > 0) ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING
         )) {
-            ProtocolIO.copyNBytes(in, fos, size);
+            if (compressed) {
+                ProtocolIO.receiveCompressed(in, fos, size);
+            } else {
+                ProtocolIO.copyNBytes(in, fos, size);
+            }
         }
 
-        System.out.println("Downloaded: " + target + " (" + size + " bytes)");
+        // 5) Completo: .part -> nombre final
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(partInfo);
+
+        if (have > 0) {
+            System.out.println("Downloaded: " + target + " (" + (have + size) + " bytes, resumed at " + have + ")");
+        } else {
+            System.out.println("Downloaded: " + target + " (" + size + " bytes)");
+        }
+        return true;
+    }
+
+    /**
+     * Lee las 4 líneas de info (comprimidas o no) y devuelve "<tamaño>,<fecha>" (lo que
+     * va tras "if=" en rdownload); null si no es un fichero.
+     */
+    private static String readInfoVersion(InputStream in, boolean compressed) throws IOException {
+        DeflateBlockInputStream block = compressed ? new DeflateBlockInputStream(in) : null;
+        InputStream body = compressed ? new FramingReader(block) : in;
+
+        String type = null;
+        String size = null;
+        String modified = null;
+        for (int i = 0; i < 4; i++) {
+            String line = ProtocolIO.readLine(body);
+            if (line == null) {
+                throw new EOFException("Server closed connection during info");
+            }
+            if (line.startsWith("type=")) {
+                type = line.substring(5);
+            } else if (line.startsWith("size=")) {
+                size = line.substring(5);
+            } else if (line.startsWith("modified=")) {
+                modified = line.substring(9);
+            }
+        }
+        if (block != null) {
+            block.skipRest();
+        }
+        if (!"file".equals(type) || size == null || modified == null || modified.isEmpty()) {
+            return null;
+        }
+        return size + "," + modified;
+    }
+
+    /**
+     * "<tamaño>,<fecha>" guardado junto al .part; null si no hay o no vale.
+     */
+    private static String readPartInfo(Path partInfo) {
+        try {
+            String v = Files.readString(partInfo, StandardCharsets.UTF_8).trim();
+            return v.matches("\\d+,\\S+") ? v : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * pdownload <ruta> [streams] [chunk_MiB]
+     * <p>
+     * Descarga en paralelo con ParallelDownloader (por defecto 4 conexiones y trozos de 8 MiB).
+     * El fichero final es idéntico al de download.
+     * La ruta puede llevar espacios: los números del final son las opciones. Si la ruta
+     * acaba en un número, hay que ponerla entre comillas: pdownload "informe 2024" 4
+     *
+     * @return false si el servidor cerró la conexión principal
+     */
+    private static boolean handleParallelDownload(String params, InputStream in, OutputStream out,
+                                                  String host, int port, Path cwd,
+                                                  boolean compressed) throws IOException {
+
+        // Las opciones van al final: la ruta es todo lo anterior (puede llevar espacios)
+        String route = params.trim();
+        String[] options = new String[0];
+        if (route.startsWith("\"") && route.indexOf('"', 1) > 0) {
+            // Ruta entre comillas: todo lo que hay detrás son opciones
+            int end = route.indexOf('"', 1);
+            String rest = route.substring(end + 1).trim();
+            options = rest.isEmpty() ? options : rest.split("\\s+");
+            route = route.substring(1, end);
+        } else {
+            // Sin comillas: como mucho las 2 últimas palabras, si son números
+            for (int i = 0; i < 2; i++) {
+                int sp = lastSpace(route);
+                if (sp == -1 || !route.substring(sp + 1).matches("\\d+")) {
+                    break;
+                }
+                String[] more = new String[options.length + 1];
+                more[0] = route.substring(sp + 1);
+                System.arraycopy(options, 0, more, 1, options.length);
+                options = more;
+                route = route.substring(0, sp).trim();
+            }
+        }
+        if (route.isEmpty()) {
+            System.out.println("Missing server file.");
+            return true;
+        }
+
+        int streams = 4;
+        long chunkMiB = 8;
+        try {
+            if (options.length > 2) throw new NumberFormatException();
+            if (options.length >= 1) streams = Integer.parseInt(options[0]);
+            if (options.length >= 2) chunkMiB = Long.parseLong(options[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: pdownload <server_file> [streams] [chunk_MiB]");
+            return true;
+        }
+
+        // 1) Tamaño y fecha remotos (info = OK + 4 líneas): cada trozo se pide con
+        // "if=<tamaño>,<fecha>" para no mezclar bytes de dos versiones del fichero
+        ProtocolIO.writeLine(out, "info " + route);
+        String status = ProtocolIO.readLine(in);
+        if (status == null) return false;
+        if (!"OK".equals(status)) {
+            System.out.println(status);
+            return !isBusy(status);
+        }
+        String version = readInfoVersion(in, compressed);
+        if (version == null) {
+            System.out.println("KO");
+            return true;
+        }
+        long size = Long.parseLong(version.substring(0, version.indexOf(',')));
+
+        // 2) cwd del servidor para repetirlo en las conexiones nuevas (pwd = OK + 1 línea)
+        ProtocolIO.writeLine(out, "pwd");
+        status = ProtocolIO.readLine(in);
+        if (status == null) return false;
+        if (!"OK".equals(status)) {
+            System.out.println(status);
+            return !isBusy(status);
+        }
+        String remoteDir = readBodyLine(in, compressed);
+        if (remoteDir == null) return false;
+
+        System.out.println("OK");
+
+        // 3) Descarga paralela
+        String fileName = Paths.get(route).getFileName().toString();
+        Path target = cwd.resolve(fileName).normalize();
+
+        long start = System.nanoTime();
+        try {
+            new ParallelDownloader(host, port, remoteDir, streams, chunkMiB * 1024 * 1024)
+                    .download(route, size, version, target);
+        } catch (IOException e) {
+            System.out.println("Parallel download failed: " + e.getMessage());
+            return true;
+        }
+        long ms = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("Downloaded: " + target + " (" + size + " bytes, " + streams + " streams, " + ms + " ms)");
+        return true;
+    }
+
+    /**
+     * Posición del último espacio (o tabulador) de 's'; -1 si no hay.
+     */
+    private static int lastSpace(String s) {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * sync <fichero_local>
+     * <p>
+     * Actualiza el fichero del mismo nombre en el cwd del servidor con DeltaSync:
+     * solo viajan los bloques que no tiene ya. Si el servidor no lo tiene, hay que usar upload.
+     *
+     * @return false si el servidor cerró la conexión
+     */
+    private static boolean handleSync(String params, FramingReader in, OutputStream out, Path cwd)
+            throws IOException {
+
+        if (params == null || params.isEmpty()) {
+            System.out.println("Missing local file.");
+            return true;
+        }
+
+        Path local = Paths.get(params);
+        if (!local.isAbsolute()) {
+            local = cwd.resolve(local).normalize();
+        }
+        if (!Files.isRegularFile(local)) {
+            System.out.println("Local file not found: " + local);
+            return true;
+        }
+
+        String onlyName = local.getFileName().toString();
+        DeltaSync delta = new DeltaSync(in, out);
+
+        long start = System.nanoTime();
+        String status = delta.sync(local, onlyName);
+        if (status == null) {
+            return false;
+        }
+        System.out.println(status);
+        if (isBusy(status)) {
+            return false;
+        }
+
+        if ("OK".equals(status)) {
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Synced: " + onlyName + " (" + delta.localSize() + " bytes, "
+                    + delta.literalBytes() + " sent as literal, "
+                    + delta.copiedBlocks() + " blocks of " + delta.blockSize() + " reused, " + ms + " ms)");
+        } else if (delta.blockSize() == 0) {
+            System.out.println("Server has no file " + onlyName + ": use upload.");
+        }
+        return true;
+    }
+
+    /**
+     * SHA-256 (hex) de un fichero local, para dupload.
+     */
+    private static String sha256(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (InputStream is = Files.newInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int r;
+            while ((r = is.read(buf)) != -1) {
+                md.update(buf, 0, r);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
     }
 
     private static List<String> readList(InputStream in) throws IOException {
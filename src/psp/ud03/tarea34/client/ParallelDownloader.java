@@ -0,0 +1,203 @@
+package psp.ud03.tarea34.client;
+
+import psp.ud03.tarea34.net.FramingReader;
+import psp.ud03.tarea34.net.ProtocolIO;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Descarga paralela de un fichero grande usando varias conexiones a la vez.
+ * <p>
+ * Por qué:
+ * - En enlaces con mucha latencia una sola conexión TCP no llena el ancho de banda.
+ * <p>
+ * Cómo:
+ * 1) Se reserva el fichero local completo ("<nombre>.pdpart" con setLength(size)).
+ * No se usa "<nombre>.part": ese es el de download y su reanudación se fía de su
+ * tamaño, que aquí es el final desde el principio (con huecos de ceros).
+ * 2) Se abren N conexiones nuevas al servidor (cada una repite el "cd" de la sesión).
+ * 3) El fichero se divide en trozos de chunkSize bytes; cada conexión va cogiendo
+ * el siguiente trozo libre, lo pide con "rdownload <offset> <len> if=<versión> <ruta>"
+ * y lo escribe en SU posición del fichero local (escritura posicional, sin compartir cursor).
+ * 4) Al terminar todas, "<nombre>.pdpart" se renombra a "<nombre>".
+ * Si algo falla (o se interrumpe), se borra: no se puede reanudar.
+ * <p>
+ * Versión = "<tamaño>,<fecha>" del info inicial. Si el fichero cambia en medio, el
+ * servidor responde KO al siguiente trozo: la descarga entera falla (las demás
+ * conexiones paran en su siguiente trozo) en vez de mezclar bytes viejos y nuevos.
+ * <p>
+ * El resultado es idéntico byte a byte a un download normal.
+ */
+public class ParallelDownloader {
+
+    private final String host;
+    private final int port;
+
+    // Directorio del servidor de la sesión principal ("." = raíz)
+    private final String remoteDir;
+
+    private final int streams;
+    private final long chunkSize;
+
+    public ParallelDownloader(String host, int port, String remoteDir, int streams, long chunkSize) {
+        this.host = host;
+        this.port = port;
+        this.remoteDir = remoteDir;
+        this.streams = Math.max(1, streams);
+        this.chunkSize = Math.max(64 * 1024, chunkSize);
+    }
+
+    /**
+     * Descarga 'remoteFile' (de tamaño 'size') en 'target'.
+     *
+     * @param version "<tamaño>,<fecha>" tal como sale de info (ver RangedDownloadCommand)
+     */
+    public void download(String remoteFile, long size, String version, Path target) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + ".pdpart");
+
+        boolean done = false;
+        try {
+            fetchAll(remoteFile, size, version, part);
+
+            // 4) Completo: .pdpart -> nombre final
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    /**
+     * Pasos 1-3: reserva 'part' y lo rellena con N conexiones.
+     */
+    private void fetchAll(String remoteFile, long size, String version, Path part) throws IOException {
+
+        // 1) Reservar el fichero completo
+        try (RandomAccessFile raf = new RandomAccessFile(part.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+
+        AtomicLong nextOffset = new AtomicLong(0);
+        AtomicBoolean failed = new AtomicBoolean();
+        int workers = (int) Math.min(streams, Math.max(1, (size + chunkSize - 1) / chunkSize));
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try (FileChannel fc = FileChannel.open(part, StandardOpenOption.WRITE)) {
+
+            // 2-3) N conexiones cogiendo trozos hasta que no quede ninguno
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                results.add(pool.submit(() -> {
+                    try {
+                        fetchChunks(remoteFile, size, version, nextOffset, failed, fc);
+                    } catch (IOException | RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<Void> f : results) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Trabajo de UNA conexión: pide trozos libres hasta acabar (o hasta que otra falle).
+     */
+    private void fetchChunks(String remoteFile, long size, String version, AtomicLong nextOffset,
+                             AtomicBoolean failed, FileChannel fc) throws IOException {
+
+        try (Socket socket = new Socket(host, port)) {
+            FramingReader in = new FramingReader(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            // Cada conexión nueva empieza en la raíz: repetimos el cd de la sesión
+            if (!".".equals(remoteDir)) {
+                ProtocolIO.writeLine(out, "cd " + remoteDir);
+                expectOk(in, "cd");
+            }
+
+            byte[] buf = new byte[64 * 1024];
+
+            while (!failed.get()) {
+                long offset = nextOffset.getAndAdd(chunkSize);
+                if (offset >= size) {
+                    break;
+                }
+                long len = Math.min(chunkSize, size - offset);
+
+                ProtocolIO.writeLine(out, "rdownload " + offset + " " + len + " if=" + version + " " + remoteFile);
+                expectOk(in, "rdownload");
+
+                long n = in.readLong();
+                if (n != len) {
+                    throw new IOException("Server sent " + n + " bytes instead of " + len + " (file changed?)");
+                }
+
+                // Escritura posicional: cada trozo en su sitio
+                long pos = offset;
+                long remaining = n;
+                while (remaining > 0) {
+                    int r = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (r == -1) {
+                        throw new EOFException("Server closed connection during pdownload");
+                    }
+                    ByteBuffer bb = ByteBuffer.wrap(buf, 0, r);
+                    while (bb.hasRemaining()) {
+                        pos += fc.write(bb, pos);
+                    }
+                    remaining -= r;
+                }
+            }
+
+            ProtocolIO.writeLine(out, "quit");
+            ProtocolIO.readLine(in);
+        }
+    }
+
+    private static void expectOk(FramingReader in, String what) throws IOException {
+        String status = in.readLine();
+        if (status == null) {
+            throw new EOFException("Server closed connection during " + what);
+        }
+        if (!"OK".equals(status)) {
+            throw new IOException(what + " failed: " + status);
+        }
+    }
+}
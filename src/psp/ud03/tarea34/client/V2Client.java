@@ -0,0 +1,324 @@
+package psp.ud03.tarea34.client;
+
+import psp.ud03.tarea34.net.FramingReader;
+import psp.ud03.tarea34.net.ProtocolV2;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cliente del protocolo binario v2 (ver ProtocolV2): una conexión, peticiones encadenadas.
+ * <p>
+ * Cómo funciona:
+ * - connect(): abre el socket y negocia con "proto 2" (en texto).
+ * - send(): manda una trama REQUEST con un id nuevo y devuelve un CompletableFuture
+ * con la respuesta. No espera: se pueden mandar muchas seguidas.
+ * - Un hilo lector junta las tramas REPLY/DATA/END de cada id y completa su futuro.
+ * Las respuestas se emparejan por id, no por orden de llegada.
+ * <p>
+ * Modo batch: java ... MainFileClientApp <host> <port> v2 [fichero|-]
+ * - Como "batch", pero en v2. Argumentos separados por espacios; entre comillas dobles
+ * si llevan espacios: rename "mi fichero.txt" "otro nombre.txt"
+ * - Solo comandos con opcode en v2 (los de transferencia binaria van por texto).
+ */
+public class V2Client implements Closeable {
+
+    // Peticiones enviadas sin respuesta, como mucho (modo batch)
+    private static final int WINDOW = 256;
+
+    /**
+     * Respuesta a una petición.
+     *
+     * @param error código ProtocolV2.ERR_* (0 si OK)
+     * @param lines líneas de la respuesta (las mismas que en texto)
+     */
+    public record Reply(int requestId, boolean ok, int error, List<String> lines) {
+    }
+
+    /**
+     * Respuesta que se está recibiendo.
+     */
+    private static final class Pending {
+        final CompletableFuture<Reply> future = new CompletableFuture<>();
+        final List<String> lines = new ArrayList<>();
+        boolean ok;
+        int error;
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private int nextId = 1;
+
+    private V2Client(Socket socket, FramingReader in) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+
+        Thread reader = new Thread(this::readLoop, "v2-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Conecta y negocia el protocolo v2.
+     *
+     * @throws IOException si el servidor no lo acepta (o está ocupado)
+     */
+    public static V2Client connect(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            FramingReader in = new FramingReader(socket.getInputStream());
+            socket.getOutputStream().write((ProtocolV2.HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+
+            String status = in.readLine();
+            if (!"OK".equals(status)) {
+                throw new IOException("Server refused protocol v2: " + status);
+            }
+            return new V2Client(socket, in);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Manda una petición (sin flush: ver flush()).
+     *
+     * @param args String o Number (Long)
+     * @throws IllegalArgumentException si el comando no existe en v2
+     */
+    public synchronized CompletableFuture<Reply> send(String command, List<?> args) throws IOException {
+        int op = ProtocolV2.opcode(command);
+        if (op == -1) {
+            throw new IllegalArgumentException("Not available in protocol v2: " + command);
+        }
+
+        int id = nextId++;
+        Pending p = new Pending();
+        pending.put(id, p);
+
+        byte[] payload = ProtocolV2.encodeRequest(op, args);
+        ProtocolV2.writeFrame(out, ProtocolV2.REQUEST, id, payload, 0, payload.length);
+        return p.future;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Manda una petición y espera su respuesta.
+     */
+    public Reply call(String command, Object... args) throws IOException {
+        CompletableFuture<Reply> f = send(command, List.of(args));
+        flush();
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException io) ? io : new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Hilo lector: tramas => respuestas. Si se corta, fallan todas las pendientes.
+     */
+    private void readLoop() {
+        IOException error = null;
+        try {
+            ProtocolV2.Frame f;
+            while ((f = ProtocolV2.readFrame(in)) != null) {
+                Pending p = pending.get(f.requestId());
+                if (p == null) {
+                    throw new IOException("Reply for unknown request " + f.requestId());
+                }
+
+                switch (f.type()) {
+                    case ProtocolV2.REPLY -> {
+                        if (f.payload().length < 3) {
+                            throw new IOException("Bad REPLY frame");
+                        }
+                        p.ok = f.payload()[0] == ProtocolV2.OK;
+                        p.error = ((f.payload()[1] & 0xff) << 8) | (f.payload()[2] & 0xff);
+                    }
+                    case ProtocolV2.DATA -> ProtocolV2.decodeLines(f.payload(), p.lines);
+                    case ProtocolV2.END -> {
+                        pending.remove(f.requestId());
+                        p.future.complete(new Reply(f.requestId(), p.ok, p.error, p.lines));
+                    }
+                    default -> throw new IOException("Unknown frame type " + f.type());
+                }
+            }
+            error = new EOFException("Server closed connection");
+        } catch (IOException e) {
+            error = e;
+        }
+
+        for (Pending p : pending.values()) {
+            p.future.completeExceptionally(error);
+        }
+        pending.clear();
+    }
+
+    // ------------------------------------------------------------------ modo batch
+
+    /**
+     * Ejecuta los comandos de 'source' ("-" = entrada estándar) encadenados, como BatchRunner.
+     */
+    public static void runBatch(String host, int port, String source) throws IOException {
+        BufferedReader commands;
+        if ("-".equals(source)) {
+            commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        } else {
+            commands = Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8);
+        }
+
+        try (BufferedReader src = commands;
+             V2Client client = connect(host, port)) {
+
+            long start = System.nanoTime();
+            int total = 0;
+            int ok = 0;
+
+            Deque<String> sentLines = new ArrayDeque<>();
+            Deque<CompletableFuture<Reply>> inFlight = new ArrayDeque<>();
+
+            String line;
+            boolean quit = false;
+            while (!quit && (line = src.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                List<Object> tokens = tokenize(line);
+                String cmd = String.valueOf(tokens.remove(0));
+                if (ProtocolV2.opcode(cmd) == -1) {
+                    System.err.println("Skipped (not available in v2): " + line);
+                    continue;
+                }
+
+                // Ventana llena: se envía lo acumulado y se espera la más antigua
+                if (inFlight.size() >= WINDOW) {
+                    client.flush();
+                    ok += print(sentLines.removeFirst(), inFlight.removeFirst());
+                    total++;
+                }
+
+                sentLines.add(line);
+                inFlight.add(client.send(cmd, tokens));
+                quit = "quit".equals(cmd);
+
+                if (!src.ready()) {
+                    client.flush();
+                }
+            }
+            client.flush();
+
+            while (!inFlight.isEmpty()) {
+                ok += print(sentLines.removeFirst(), inFlight.removeFirst());
+                total++;
+            }
+
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Batch v2: " + total + " commands, OK=" + ok + ", KO=" + (total - ok) + ", " + ms + " ms");
+        }
+    }
+
+    /**
+     * Espera e imprime una respuesta.
+     *
+     * @return 1 si fue OK
+     */
+    private static int print(String line, CompletableFuture<Reply> future) throws IOException {
+        Reply r;
+        try {
+            r = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException io) ? io : new IOException(e.getCause());
+        }
+
+        System.out.println("> " + line);
+        System.out.println(r.ok() ? "OK" : "KO (" + r.error() + ")");
+        for (String l : r.lines()) {
+            System.out.println(l);
+        }
+        return r.ok() ? 1 : 0;
+    }
+
+    /**
+     * Parte una línea en palabras (comillas dobles para las que llevan espacios).
+     * Los números sin comillas van como I64 solo si al volver a texto quedan iguales
+     * ("007", "+5" o "-0" van como STR: el servidor los recibe tal cual).
+     */
+    private static List<Object> tokenize(String line) {
+        List<Object> out = new ArrayList<>();
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (c == '"') {
+                int end = line.indexOf('"', i + 1);
+                if (end == -1) {
+                    end = line.length();
+                }
+                out.add(line.substring(i + 1, end));
+                i = end + 1;
+                continue;
+            }
+            int end = i;
+            while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+                end++;
+            }
+            String word = line.substring(i, end);
+            out.add((!out.isEmpty() && isExactLong(word)) ? (Object) Long.valueOf(word) : word);
+            i = end;
+        }
+        return out;
+    }
+
+    /**
+     * true si 'word' es un long que vuelve a escribirse exactamente igual.
+     */
+    private static boolean isExactLong(String word) {
+        if (!word.matches("-?\\d{1,18}")) {
+            return false;
+        }
+        return Long.toString(Long.parseLong(word)).equals(word);
+    }
+}
@@ -0,0 +1,132 @@
+package psp.ud03.tarea34.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Lee un "bloque comprimido" del protocolo (ver DeflateBlockOutputStream).
+ * <p>
+ * Devuelve los bytes ORIGINALES (ya descomprimidos) y -1 al llegar a la marca
+ * de fin del bloque. Nunca lee del stream de debajo más allá de esa marca.
+ * <p>
+ * Importante:
+ * - Si quien lo usa no llega al final del bloque, hay que llamar a skipRest()
+ * antes de seguir leyendo el protocolo.
+ * - Los tamaños de cada trozo vienen del otro extremo: si pasan de lo que
+ * DeflateBlockOutputStream puede mandar (CHUNK / MAX_COMPRESSED) se lanza IOException
+ * en vez de reservar lo que pida.
+ */
+public final class DeflateBlockInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+
+    private final byte[] chunk = new byte[DeflateBlockOutputStream.CHUNK];
+    private byte[] comp = new byte[DeflateBlockOutputStream.CHUNK];
+    private int pos;
+    private int limit;
+    private boolean ended;
+
+    public DeflateBlockInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !nextChunk()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit && !nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Consume lo que quede del bloque (hasta la marca de fin).
+     */
+    public void skipRest() throws IOException {
+        while (nextChunk()) {
+            pos = limit;
+        }
+    }
+
+    /**
+     * No cierra el stream de debajo (socket).
+     */
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    /**
+     * Carga el siguiente trozo. false si se llegó a la marca de fin.
+     */
+    private boolean nextChunk() throws IOException {
+        while (!ended) {
+            int origLen = in.readInt();
+            int compLen = in.readInt();
+
+            if (origLen == 0) {
+                ended = true;
+                inflater.end();
+                return false;
+            }
+            if (origLen < 0 || compLen < 0
+                    || origLen > DeflateBlockOutputStream.CHUNK
+                    || compLen > DeflateBlockOutputStream.MAX_COMPRESSED) {
+                throw new IOException("Bad compressed block header");
+            }
+
+            if (compLen == 0) {
+                // Trozo sin comprimir
+                in.readFully(chunk, 0, origLen);
+            } else {
+                if (comp.length < compLen) {
+                    comp = new byte[compLen];
+                }
+                in.readFully(comp, 0, compLen);
+                inflate(compLen, origLen);
+            }
+
+            pos = 0;
+            limit = origLen;
+            return true;
+        }
+        return false;
+    }
+
+    private void inflate(int compLen, int origLen) throws IOException {
+        inflater.reset();
+        inflater.setInput(comp, 0, compLen);
+        try {
+            int n = 0;
+            while (n < origLen && !inflater.finished()) {
+                int r = inflater.inflate(chunk, n, origLen - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != origLen) {
+                throw new IOException("Corrupt compressed chunk");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk", e);
+        }
+    }
+}
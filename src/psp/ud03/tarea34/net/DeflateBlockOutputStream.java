@@ -0,0 +1,192 @@
+package psp.ud03.tarea34.net;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Escribe un "bloque comprimido" del protocolo (modo compress deflate).
+ * <p>
+ * Formato del bloque (todo binario, big-endian):
+ * - Una serie de trozos:   int origLen + int compLen + bytes
+ * - compLen == 0  => el trozo va SIN comprimir (origLen bytes tal cual).
+ * - compLen  > 0  => compLen bytes deflate que al descomprimir dan origLen bytes.
+ * - Fin del bloque: int 0 + int 0.
+ * <p>
+ * Así cada trozo lleva su tamaño original Y su tamaño comprimido, y el receptor
+ * nunca lee de más (el protocolo de texto que sigue queda sincronizado).
+ * <p>
+ * Contenido que no se comprime:
+ * - Si se sabe que ya viene comprimido (zip, jpg, mp4... ver looksCompressed),
+ * se crea con tryCompress = false y todos los trozos van tal cual.
+ * - Si varios trozos seguidos no ganan nada al comprimir, se deja de intentar.
+ * <p>
+ * Reutilización:
+ * - El Deflater (memoria nativa) y los buffers (~136 KiB) cuestan: quien escribe muchos
+ * bloques (una conexión en modo comprimido) crea uno y empieza cada bloque con reopen().
+ * - finish() cierra el bloque pero deja el Deflater vivo; end() (o close()) lo libera.
+ */
+public final class DeflateBlockOutputStream extends OutputStream {
+
+    // Tamaño máximo (sin comprimir) de cada trozo
+    public static final int CHUNK = 64 * 1024;
+
+    // Tamaño máximo comprimido de un trozo (peor caso de deflate sobre CHUNK bytes, con margen)
+    public static final int MAX_COMPRESSED = CHUNK + CHUNK / 8 + 64;
+
+    // Trozos seguidos sin ganancia tras los que dejamos de intentar
+    private static final int GIVE_UP_AFTER = 4;
+
+    private static final Set<String> COMPRESSED_EXT = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "ogg",
+            "jar", "war", "docx", "xlsx", "pptx", "pdf"
+    );
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final byte[] buf = new byte[CHUNK];
+    private int count;
+
+    // Salida del deflate (algo mayor que el trozo por si no comprime)
+    private final byte[] comp = new byte[MAX_COMPRESSED];
+
+    private boolean tryCompress;
+    private int misses;
+    private boolean finished;
+
+    public DeflateBlockOutputStream(OutputStream out, boolean tryCompress) {
+        this.out = new DataOutputStream(out);
+        this.tryCompress = tryCompress;
+    }
+
+    /**
+     * Empieza otro bloque en el mismo stream, con el mismo Deflater y buffers.
+     */
+    public void reopen(boolean tryCompress) {
+        this.tryCompress = tryCompress;
+        count = 0;
+        misses = 0;
+        finished = false;
+    }
+
+    /**
+     * true si por la extensión el fichero ya está comprimido (no merece la pena deflate).
+     */
+    public static boolean looksCompressed(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return false;
+        }
+        return COMPRESSED_EXT.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Añade una línea de texto (UTF-8 + '\n') al bloque.
+     */
+    public void writeLine(String line) throws IOException {
+        write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) {
+            writeChunk();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buf.length) {
+                writeChunk();
+            }
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Cierra el trozo actual aunque no esté lleno (para respuestas que se envían
+     * poco a poco, como follow). El bloque sigue abierto.
+     */
+    public void flushChunk() throws IOException {
+        if (!finished && count > 0) {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Cierra el bloque: último trozo + marca de fin (0, 0).
+     * No hace flush ni cierra el stream de debajo. El Deflater sigue vivo (ver reopen).
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        if (count > 0) {
+            writeChunk();
+        }
+        out.writeInt(0);
+        out.writeInt(0);
+    }
+
+    /**
+     * Libera el Deflater sin escribir nada (ya no se puede usar).
+     */
+    public void end() {
+        finished = true;
+        deflater.end();
+    }
+
+    /**
+     * finish() + end(): el stream de debajo (socket) NO se cierra.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            end();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        int compLen = 0;
+
+        if (tryCompress) {
+            deflater.reset();
+            deflater.setInput(buf, 0, count);
+            deflater.finish();
+            int n = deflater.deflate(comp);
+
+            // Solo vale la pena si cabe entero y ahorra al menos ~6%
+            if (deflater.finished() && n < count - count / 16) {
+                compLen = n;
+                misses = 0;
+            } else if (++misses >= GIVE_UP_AFTER) {
+                tryCompress = false;
+            }
+        }
+
+        out.writeInt(count);
+        out.writeInt(compLen);
+        if (compLen > 0) {
+            out.write(comp, 0, compLen);
+        } else {
+            out.write(buf, 0, count);
+        }
+        count = 0;
+    }
+}
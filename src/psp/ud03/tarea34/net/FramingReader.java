@@ -0,0 +1,363 @@
+package psp.ud03.tarea34.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lector con buffer "consciente del protocolo" (uno por conexión).
+ * <p>
+ * Problema:
+ * - ProtocolIO.readLine leía byte a byte del socket (1 syscall por byte) para no
+ * dejar binario atrapado en el buffer de un BufferedReader.
+ * <p>
+ * Solución:
+ * - Leemos del socket a bloques grandes, PERO todas las lecturas del protocolo
+ * salen del MISMO buffer:
+ * - readLine()   -> texto hasta '\n'
+ * - readLong()   -> 8 bytes binarios
+ * - read(...)    -> N bytes binarios (copyNBytes, DataInputStream...)
+ * - Si tras una línea ya habían llegado bytes binarios (long + fichero), siguen en
+ * el buffer y el siguiente read los devuelve primero => nunca se pierden.
+ */
+public final class FramingReader extends InputStream {
+
+    public static final int DEFAULT_SIZE = 8 * 1024;
+
+    private static final byte[] NO_BUFFER = new byte[0];
+
+    private final InputStream in;
+
+    // Propio, o prestado con attach() (motor NIO: uno por hilo del pool)
+    private byte[] buf;
+
+    // Bytes válidos pendientes: buf[pos .. limit)
+    private int pos;
+    private int limit;
+
+    // Bytes que han entrado (socket, feed o lectura directa) menos los devueltos con drainTo(ByteBuffer)
+    private long received;
+
+    public FramingReader(InputStream in) {
+        this(in, DEFAULT_SIZE);
+    }
+
+    public FramingReader(InputStream in, int size) {
+        this.in = in;
+        this.buf = (size > 0) ? new byte[size] : NO_BUFFER;
+    }
+
+    /**
+     * Empieza a usar 'buffer' (creado con tamaño 0, o tras detach()).
+     * Así una conexión inactiva no guarda un buffer propio.
+     */
+    public void attach(byte[] buffer) {
+        if (pos != limit) {
+            throw new IllegalStateException("Framing buffer not empty");
+        }
+        buf = buffer;
+        pos = 0;
+        limit = 0;
+    }
+
+    /**
+     * Deja de usar el buffer (tiene que estar vacío: ver drainTo(ByteBuffer)).
+     */
+    public void detach() {
+        if (pos != limit) {
+            throw new IllegalStateException("Framing buffer not empty");
+        }
+        buf = NO_BUFFER;
+        pos = 0;
+        limit = 0;
+    }
+
+    /**
+     * Lee una línea terminada en '\n' (mismas reglas que ProtocolIO.readLine):
+     * - Devuelve la línea SIN el '\n'.
+     * - Ignora '\r' (CRLF).
+     * - Devuelve null si hay EOF sin haber leído nada.
+     */
+    public String readLine() throws IOException {
+        byte[] acc = null;   // solo si la línea cruza varios rellenos del buffer
+        int accLen = 0;
+
+        while (true) {
+            // Buscamos '\n' en lo que ya tenemos
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    String line;
+                    if (acc == null) {
+                        line = decode(buf, pos, i - pos);
+                    } else {
+                        acc = append(acc, accLen, buf, pos, i - pos);
+                        accLen += i - pos;
+                        line = decode(acc, 0, accLen);
+                    }
+                    pos = i + 1;
+                    return line;
+                }
+            }
+
+            // No hay '\n': guardamos lo leído y pedimos más al socket
+            if (limit > pos) {
+                if (acc == null) {
+                    acc = new byte[Math.max(64, (limit - pos) * 2)];
+                }
+                acc = append(acc, accLen, buf, pos, limit - pos);
+                accLen += limit - pos;
+                pos = limit;
+            }
+
+            if (fill() == -1) {
+                // EOF: devolvemos lo que haya (o null si no había nada)
+                if (accLen == 0) {
+                    return null;
+                }
+                return decode(acc, 0, accLen);
+            }
+        }
+    }
+
+    /**
+     * Lee un long binario (8 bytes, big-endian como DataOutputStream.writeLong).
+     */
+    public long readLong() throws IOException {
+        ensure(8);
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buf[pos++] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Bytes que ya están en el buffer (se pueden leer sin bloquear).
+     */
+    public int buffered() {
+        return limit - pos;
+    }
+
+    /**
+     * Espera (bloqueando como read) a que haya al menos un byte en el buffer.
+     * Con un timeout en el socket lanza SocketTimeoutException sin perder nada
+     * de lo ya leído (follow lo usa para esperar el "stop" del cliente).
+     *
+     * @return false si el cliente ha cerrado (EOF)
+     */
+    public boolean awaitData() throws IOException {
+        while (pos == limit) {
+            if (fill() == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * true si en el buffer ya hay una línea completa (se puede leer sin bloquear).
+     */
+    public boolean hasBufferedLine() {
+        for (int i = pos; i < limit; i++) {
+            if (buf[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * true si en el buffer ya hay una trama completa del protocolo v2 (ver ProtocolV2).
+     */
+    public boolean hasBufferedFrame() {
+        return ProtocolV2.hasFrame(buf, pos, limit - pos);
+    }
+
+    /**
+     * Vuelca al fichero (desde 'position') los bytes ya bufferizados, como mucho 'max'.
+     * <p>
+     * Lo usa ProtocolIO.receiveFile antes de pasar a transferFrom desde el canal:
+     * si no, los primeros bytes del upload (que llegaron junto a la línea) se perderían.
+     *
+     * @return bytes escritos
+     */
+    public int drainTo(FileChannel file, long position, long max) throws IOException {
+        int n = (int) Math.min(limit - pos, max);
+        ByteBuffer bb = ByteBuffer.wrap(buf, pos, n);
+        int written = 0;
+        while (bb.hasRemaining()) {
+            written += file.write(bb, position + written);
+        }
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Mete en el buffer bytes que ya se leyeron del socket por otra vía
+     * (el motor NIO los lee sin bloquear antes de pasar la conexión a un hilo).
+     * Se colocan DETRÁS de lo que hubiera pendiente.
+     *
+     * @throws IOException si no caben en el buffer
+     */
+    public void feed(ByteBuffer src) throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (src.remaining() > buf.length - limit) {
+            throw new IOException("Framing buffer overflow");
+        }
+        int n = src.remaining();
+        src.get(buf, limit, n);
+        limit += n;
+        received += n;
+    }
+
+    /**
+     * Saca los bytes pendientes del buffer y los deja en 'dst' (lo contrario de feed).
+     * Copia como mucho dst.remaining().
+     */
+    public void drainTo(ByteBuffer dst) {
+        int n = Math.min(limit - pos, dst.remaining());
+        dst.put(buf, pos, n);
+        pos += n;
+        received -= n;
+    }
+
+    /**
+     * Bytes leídos por el protocolo desde que se creó (lo que sigue en el buffer no cuenta).
+     */
+    public long bytesConsumed() {
+        return received - (limit - pos);
+    }
+
+    /**
+     * Suma bytes que llegaron del socket sin pasar por aquí (transferFrom).
+     */
+    public void countDirect(long n) {
+        received += n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && fill() == -1) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        // Primero lo que ya está en el buffer
+        if (pos < limit) {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        // Buffer vacío y petición grande: leemos directo (sin doble copia)
+        if (len >= buf.length) {
+            int r = in.read(b, off, len);
+            if (r > 0) {
+                received += r;
+            }
+            return r;
+        }
+
+        if (fill() == -1) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    /**
+     * No cerramos el stream del socket: lo cierra quien cierra el Socket.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Garantiza que hay al menos n bytes en el buffer (n <= tamaño del buffer).
+     */
+    private void ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (fill() == -1) {
+                throw new EOFException("Socket closed during binary transfer");
+            }
+        }
+    }
+
+    /**
+     * Lee más bytes del stream al final del buffer (compactando si hace falta).
+     *
+     * @return bytes leídos o -1 si EOF
+     */
+    private int fill() throws IOException {
+        if (buf.length == 0) {
+            throw new IllegalStateException("No framing buffer attached");
+        }
+        if (pos == limit) {
+            pos = 0;
+            limit = 0;
+        } else if (limit == buf.length) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+
+        int r = in.read(buf, limit, buf.length - limit);
+        if (r > 0) {
+            limit += r;
+            received += r;
+        }
+        return r;
+    }
+
+    private static byte[] append(byte[] acc, int accLen, byte[] src, int off, int len) {
+        if (accLen + len > acc.length) {
+            acc = Arrays.copyOf(acc, Math.max(acc.length * 2, accLen + len));
+        }
+        System.arraycopy(src, off, acc, accLen, len);
+        return acc;
+    }
+
+    /**
+     * Decodifica UTF-8 quitando los '\r' (igual que la versión byte a byte).
+     */
+    private static String decode(byte[] b, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\r') {
+                // Caso raro: copiamos sin los '\r'
+                byte[] clean = new byte[len];
+                int n = 0;
+                for (int j = off; j < end; j++) {
+                    if (b[j] != '\r') {
+                        clean[n++] = b[j];
+                    }
+                }
+                return new String(clean, 0, n, StandardCharsets.UTF_8);
+            }
+        }
+        return new String(b, off, len, StandardCharsets.UTF_8);
+    }
+}
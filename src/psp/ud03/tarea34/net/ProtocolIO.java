@@ -1,6 +1,11 @@
 package psp.ud03.tarea34.net;
 
 import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -10,11 +15,16 @@ import java.nio.charset.StandardCharsets;
  * - El protocolo combina TEXTO (líneas) y BINARIO (tamaño + bytes).
  * - NO usamos BufferedReader en el socket porque puede leer "de más" y dejar bytes
  * binarios atrapados en su buffer => desincroniza el protocolo.
+ * - Para leer con buffer está FramingReader: texto y binario salen del MISMO buffer.
  * <p>
  * Con ProtocolIO:
- * - readLine(...) lee exactamente hasta '\n' sin preleer bytes extra.
+ * - readLine(...) lee exactamente hasta '\n' sin preleer bytes extra
+ * (o delega en FramingReader si el stream ya es uno).
  * - writeLine(...) envía una línea con '\n'.
  * - copyNBytes(...) mueve exactamente N bytes (transferencia binaria).
+ * - sendFile(...) envía N bytes de un fichero al socket sin copias (transferTo/sendfile).
+ * - receiveFile(...) recibe N bytes del socket directamente al fichero (transferFrom).
+ * - sendCompressed(...) / receiveCompressed(...) lo mismo en modo "compress deflate".
  */
 public final class ProtocolIO {
 
@@ -35,8 +45,13 @@ public final class ProtocolIO {
      * Por qué está implementado "a mano":
      * - Para evitar el buffer interno de BufferedReader y mantener el stream limpio
      * cuando después toca leer binario (long + bytes).
+     * - Si 'in' es un FramingReader, la línea se saca de su buffer (sin byte a byte).
      */
     public static String readLine(InputStream in) throws IOException {
+        if (in instanceof FramingReader) {
+            return ((FramingReader) in).readLine();
+        }
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
         int b;
@@ -110,4 +125,165 @@ public final class ProtocolIO {
         // Nos aseguramos de que lo enviado/escrito salga realmente
         out.flush();
     }
+
+    /**
+     * Envía EXACTAMENTE n bytes de un fichero al socket, empezando en 'position'.
+     * <p>
+     * Modo "zero-copy":
+     * - Si el socket tiene canal (aceptado con ServerSocketChannel), usamos
+     * FileChannel.transferTo => el SO copia del fichero al socket (sendfile)
+     * sin pasar los bytes por el heap de Java.
+     * - Si no hay canal (Socket "clásico"), caemos a copyNBytes con streams.
+     * <p>
+     * Importante:
+     * - Antes de usar el canal hacemos flush de 'out', para que lo que ya estaba
+     * escrito (OK, long size...) salga ANTES que los bytes del fichero.
+     * - transferTo puede enviar menos de lo pedido: se repite hasta completar n.
+     */
+    public static void sendFile(FileChannel file, long position, long n, Socket socket, OutputStream out)
+            throws IOException {
+        out.flush();
+
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            // Sin canal: copia clásica por streams (buffer en heap)
+            file.position(position);
+            copyNBytes(Channels.newInputStream(file), out, n);
+            return;
+        }
+
+        long sent = 0;
+        while (sent < n) {
+            long r = file.transferTo(position + sent, n - sent, channel);
+
+            // 0 bytes con el fichero más corto de lo esperado => lo han truncado
+            if (r <= 0 && position + sent >= file.size()) {
+                throw new EOFException("File truncated during binary transfer");
+            }
+            sent += r;
+        }
+
+        // Lo enviado con transferTo no pasó por el ResponseWriter: que cuente igual (métricas)
+        if (out instanceof ResponseWriter) {
+            ((ResponseWriter) out).countDirect(sent);
+        }
+    }
+
+    /**
+     * Recibe EXACTAMENTE n bytes del socket y los escribe en 'file' desde la posición 0.
+     * <p>
+     * - Si el socket tiene canal, usamos FileChannel.transferFrom: los bytes van del
+     * canal del socket al fichero sin pasar por arrays del heap ni por streams.
+     * - Si no hay canal, caemos a copyNBytes(in, fichero, n).
+     * <p>
+     * Importante:
+     * - transferFrom nunca lee más de lo pedido => nos paramos justo en n bytes y
+     * el protocolo de texto que viene después sigue sincronizado.
+     * - transferFrom devuelve 0 (no -1) si el socket se cierra: en ese caso
+     * comprobamos con un read normal para poder lanzar EOFException.
+     * - Si 'in' es un FramingReader, primero se vuelcan los bytes que ya tenía en su
+     * buffer (llegaron junto al long size) y luego se sigue desde el canal.
+     */
+    public static void receiveFile(InputStream in, Socket socket, FileChannel file, long n) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            file.position(0);
+            copyNBytes(in, Channels.newOutputStream(file), n);
+            return;
+        }
+
+        long received = 0;
+        if (in instanceof FramingReader) {
+            received = ((FramingReader) in).drainTo(file, 0, n);
+        }
+        long buffered = received;
+
+        ByteBuffer probe = null;
+
+        while (received < n) {
+            long r = file.transferFrom(channel, received, n - received);
+
+            if (r <= 0) {
+                // No llegó nada: leemos a mano para distinguir "aún no" de EOF
+                if (probe == null) {
+                    probe = ByteBuffer.allocate(4096);
+                }
+                probe.clear();
+                probe.limit((int) Math.min(probe.capacity(), n - received));
+
+                if (channel.read(probe) == -1) {
+                    throw new EOFException("Socket closed during binary transfer");
+                }
+
+                probe.flip();
+                while (probe.hasRemaining()) {
+                    r = file.write(probe, received);
+                    received += r;
+                }
+            } else {
+                received += r;
+            }
+        }
+
+        // Lo que vino por el canal no pasó por el FramingReader: que cuente igual (métricas)
+        if (in instanceof FramingReader) {
+            ((FramingReader) in).countDirect(received - buffered);
+        }
+    }
+
+    /**
+     * Envía EXACTAMENTE n bytes de 'in' como bloque comprimido (modo compress deflate).
+     * <p>
+     * - El tamaño original (long size) lo escribe antes quien llama, como siempre.
+     * - Con tryCompress = false (contenido ya comprimido) los trozos van tal cual.
+     * - Aquí no hay zero-copy: los bytes tienen que pasar por el deflater.
+     */
+    public static void sendCompressed(InputStream in, long n, OutputStream out, boolean tryCompress)
+            throws IOException {
+        DeflateBlockOutputStream block = new DeflateBlockOutputStream(out, tryCompress);
+        byte[] buf = new byte[DeflateBlockOutputStream.CHUNK];
+        long remaining = n;
+
+        try {
+            while (remaining > 0) {
+                int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("File truncated during binary transfer");
+                }
+                block.write(buf, 0, read);
+                remaining -= read;
+            }
+
+            block.finish();
+        } finally {
+            block.end();
+        }
+        out.flush();
+    }
+
+    /**
+     * Recibe un bloque comprimido y escribe sus bytes ORIGINALES en 'out'.
+     * <p>
+     * - n = tamaño original anunciado (long size). Si el bloque trae otra cantidad,
+     * la transferencia está corrupta => IOException.
+     */
+    public static void receiveCompressed(InputStream in, OutputStream out, long n) throws IOException {
+        DeflateBlockInputStream block = new DeflateBlockInputStream(in);
+        byte[] buf = new byte[DeflateBlockOutputStream.CHUNK];
+        long received = 0;
+
+        int read;
+        while ((read = block.read(buf, 0, buf.length)) != -1) {
+            received += read;
+            if (received > n) {
+                throw new IOException("Compressed transfer larger than announced size");
+            }
+            out.write(buf, 0, read);
+        }
+
+        if (received != n) {
+            throw new EOFException("Compressed transfer shorter than announced size");
+        }
+        out.flush();
+    }
 }
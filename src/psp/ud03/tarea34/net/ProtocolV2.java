@@ -0,0 +1,280 @@
+package psp.ud03.tarea34.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocolo binario v2 (opcional): tramas con longitud delante, compartido por cliente y servidor.
+ * <p>
+ * Negociación:
+ * - La conexión empieza siempre en texto. El cliente manda la línea "proto 2"; si el
+ * servidor responde "OK", a partir del siguiente byte los dos lados hablan en tramas.
+ * <p>
+ * Trama (big-endian, como DataOutputStream):
+ * - int  longitud (bytes que siguen, sin contar este int; como mucho MAX_FRAME)
+ * - byte tipo (REQUEST, REPLY, DATA, END)
+ * - int  id de petición (lo elige el cliente; la respuesta lleva el mismo)
+ * - contenido según el tipo
+ * <p>
+ * Contenido:
+ * - REQUEST: byte opcode + byte nº de argumentos + argumentos con tipo:
+ * STR (int longitud + UTF-8) o I64 (long). Los nombres con espacios van tal cual.
+ * - REPLY:   byte estado (OK/KO) + short código de error (ERR_*). Primera trama de la respuesta.
+ * - DATA:    valores STR (las líneas de la respuesta de texto), en una o varias tramas.
+ * - END:     vacío. Fin de la respuesta.
+ * <p>
+ * Ventajas sobre texto:
+ * - El servidor no parte ni recorta la línea: opcode = índice de tabla y argumentos ya separados.
+ * - Cada respuesta lleva el id de su petición: se pueden encadenar peticiones y, en el
+ * futuro, responderlas en otro orden (multiplexado) sin cambiar el formato.
+ * <p>
+ * Limitación:
+ * - Solo comandos con respuesta de texto. Los que mandan/reciben bytes en crudo tras el OK
+ * (upload, download, sigs/patch, follow...) siguen en conexiones de texto: no tienen opcode.
+ */
+public final class ProtocolV2 {
+
+    public static final String HANDSHAKE = "proto 2";
+
+    // Tipos de trama
+    public static final byte REQUEST = 1;
+    public static final byte REPLY = 2;
+    public static final byte DATA = 3;
+    public static final byte END = 4;
+
+    // Tipos de valor
+    public static final byte STR = 1;
+    public static final byte I64 = 2;
+
+    // Estado de la respuesta
+    public static final byte OK = 0;
+    public static final byte KO = 1;
+
+    // Códigos de error (con KO)
+    public static final short ERR_NONE = 0;
+    public static final short ERR_FAILED = 1;
+    public static final short ERR_UNKNOWN_COMMAND = 2;
+    public static final short ERR_BAD_REQUEST = 3;
+
+    // Trama más grande que se acepta (una petición nunca se acerca)
+    public static final int MAX_FRAME = 1024 * 1024;
+
+    // Cabecera tras la longitud: tipo + id
+    public static final int HEADER = 5;
+
+    /**
+     * Opcode = posición en esta tabla. NO reordenar: solo añadir al final.
+     */
+    private static final String[] COMMANDS = {
+            null,
+            "list", "show", "cat", "delete", "mkdir", "rename", "info", "exists",
+            "copy", "pwd", "cd", "touch", "size", "head", "tail", "tree",
+            "find", "grep", "du", "hash", "ping", "help", "quit",
+            "stats"
+    };
+
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            OPCODES.put(COMMANDS[i], i);
+        }
+    }
+
+    /**
+     * Trama recibida (el contenido empieza en payload[0]).
+     */
+    public record Frame(byte type, int requestId, byte[] payload) {
+    }
+
+    private ProtocolV2() {
+    }
+
+    /**
+     * Nombre del comando de un opcode; null si no existe.
+     */
+    public static String commandName(int opcode) {
+        return (opcode > 0 && opcode < COMMANDS.length) ? COMMANDS[opcode] : null;
+    }
+
+    /**
+     * Opcode de un comando; -1 si no se puede usar en v2.
+     */
+    public static int opcode(String command) {
+        Integer op = OPCODES.get(command);
+        return (op == null) ? -1 : op;
+    }
+
+    public static int maxOpcode() {
+        return COMMANDS.length - 1;
+    }
+
+    /**
+     * Lee una trama completa.
+     *
+     * @return null si la conexión se cierra justo antes de una trama
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            return null;
+        }
+        int len = (b << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (len < HEADER || len > MAX_FRAME) {
+            throw new IOException("Bad frame length " + len);
+        }
+
+        byte type = in.readByte();
+        int id = in.readInt();
+        byte[] payload = new byte[len - HEADER];
+        in.readFully(payload);
+        return new Frame(type, id, payload);
+    }
+
+    public static void writeFrame(DataOutputStream out, byte type, int requestId, byte[] payload, int off, int len)
+            throws IOException {
+        out.writeInt(HEADER + len);
+        out.writeByte(type);
+        out.writeInt(requestId);
+        out.write(payload, off, len);
+    }
+
+    /**
+     * true si buf[off, off + len) empieza por una trama completa.
+     */
+    public static boolean hasFrame(byte[] buf, int off, int len) {
+        if (len < 4) {
+            return false;
+        }
+        int frame = ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16)
+                | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+        // Longitud inválida: "completa" para que quien la lea dé el error en seguida
+        return frame < HEADER || frame > MAX_FRAME || len - 4 >= frame;
+    }
+
+    // ------------------------------------------------------------------ peticiones
+
+    /**
+     * Contenido de una REQUEST: opcode + argumentos (String => STR, Number => I64).
+     */
+    public static byte[] encodeRequest(int opcode, List<?> args) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(opcode);
+        dos.writeByte(args.size());
+        for (Object a : args) {
+            if (a instanceof Number n) {
+                dos.writeByte(I64);
+                dos.writeLong(n.longValue());
+            } else {
+                writeStr(dos, String.valueOf(a));
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Argumentos de una REQUEST (String o Long), a partir de payload[2].
+     */
+    public static List<Object> decodeArgs(byte[] payload) throws IOException {
+        if (payload.length < 2) {
+            throw new EOFException("Short request");
+        }
+        int argc = payload[1] & 0xff;
+        List<Object> args = new ArrayList<>(argc);
+
+        int pos = 2;
+        for (int i = 0; i < argc; i++) {
+            if (pos >= payload.length) {
+                throw new EOFException("Short request");
+            }
+            byte type = payload[pos++];
+            if (type == I64) {
+                if (pos + 8 > payload.length) {
+                    throw new EOFException("Short request");
+                }
+                long v = 0;
+                for (int k = 0; k < 8; k++) {
+                    v = (v << 8) | (payload[pos++] & 0xff);
+                }
+                args.add(v);
+            } else if (type == STR) {
+                if (pos + 4 > payload.length) {
+                    throw new EOFException("Short request");
+                }
+                int n = ((payload[pos] & 0xff) << 24) | ((payload[pos + 1] & 0xff) << 16)
+                        | ((payload[pos + 2] & 0xff) << 8) | (payload[pos + 3] & 0xff);
+                pos += 4;
+                if (n < 0 || pos + n > payload.length) {
+                    throw new EOFException("Short request");
+                }
+                args.add(new String(payload, pos, n, StandardCharsets.UTF_8));
+                pos += n;
+            } else {
+                throw new IOException("Unknown argument type " + type);
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Argumentos como los vería un comando de texto: separados por un espacio.
+     */
+    public static String joinArgs(List<Object> args) {
+        if (args.size() == 1) {
+            return String.valueOf(args.get(0));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Object a : args) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(a);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Argumento i como texto (un I64 se convierte); null si no hay.
+     */
+    public static String str(List<Object> args, int i) {
+        return (i < args.size()) ? String.valueOf(args.get(i)) : null;
+    }
+
+    // ------------------------------------------------------------------ valores
+
+    public static void writeStr(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(STR);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Valores STR de una trama DATA (las líneas de la respuesta), añadidos a 'out'.
+     */
+    public static void decodeLines(byte[] payload, List<String> out) throws IOException {
+        int pos = 0;
+        while (pos < payload.length) {
+            if (payload[pos] != STR || pos + 5 > payload.length) {
+                throw new IOException("Bad DATA frame");
+            }
+            int n = ((payload[pos + 1] & 0xff) << 24) | ((payload[pos + 2] & 0xff) << 16)
+                    | ((payload[pos + 3] & 0xff) << 8) | (payload[pos + 4] & 0xff);
+            pos += 5;
+            if (n < 0 || pos + n > payload.length) {
+                throw new IOException("Bad DATA frame");
+            }
+            out.add(new String(payload, pos, n, StandardCharsets.UTF_8));
+            pos += n;
+        }
+    }
+}
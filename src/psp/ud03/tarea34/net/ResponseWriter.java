@@ -0,0 +1,157 @@
+package psp.ud03.tarea34.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Escritor de respuestas con buffer (uno por conexión).
+ * <p>
+ * Problema que resuelve:
+ * - ProtocolIO.writeLine hace flush() en cada línea => 1 syscall y 1 segmento TCP por línea.
+ * - Un tree de 20.000 líneas eran 20.000 envíos.
+ * <p>
+ * Idea:
+ * - Las líneas (y el binario pequeño, por ejemplo el long size) se acumulan en un buffer.
+ * - Solo se envía al socket cuando:
+ * - se llama a flush() (fin del comando, o antes de esperar datos del cliente), o
+ * - el buffer se llena.
+ * <p>
+ * Sigue siendo un OutputStream normal: DataOutputStream y copyNBytes pueden escribir encima.
+ */
+public final class ResponseWriter extends OutputStream {
+
+    // Tamaño por defecto: suficiente para la mayoría de respuestas de texto completas
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
+    private static final byte[] NO_BUFFER = new byte[0];
+
+    private final OutputStream out;
+
+    // Propio, o prestado con attach() (motor NIO: uno por hilo del pool)
+    private byte[] buf;
+    private int count;
+
+    // Bytes ya enviados al socket (para métricas)
+    private long sent;
+
+    public ResponseWriter(OutputStream out) {
+        this(out, DEFAULT_SIZE);
+    }
+
+    public ResponseWriter(OutputStream out, int size) {
+        this.out = out;
+        this.buf = (size > 0) ? new byte[size] : NO_BUFFER;
+    }
+
+    /**
+     * Empieza a usar 'buffer' (creado con tamaño 0, o tras detach()).
+     */
+    public void attach(byte[] buffer) {
+        if (count != 0) {
+            throw new IllegalStateException("Response buffer not flushed");
+        }
+        buf = buffer;
+    }
+
+    /**
+     * Deja de usar el buffer (tiene que estar enviado: flush()).
+     */
+    public void detach() {
+        if (count != 0) {
+            throw new IllegalStateException("Response buffer not flushed");
+        }
+        buf = NO_BUFFER;
+    }
+
+    /**
+     * Añade una línea terminada en '\n' al buffer (SIN flush).
+     * <p>
+     * Codifica a UTF-8 directamente en el buffer: para texto ASCII no se crea
+     * ni un String nuevo (line + "\n") ni un byte[] intermedio.
+     */
+    public void writeLine(String line) throws IOException {
+        int len = line.length();
+
+        for (int i = 0; i < len; i++) {
+            char c = line.charAt(i);
+
+            if (c >= 0x80) {
+                // Resto con caracteres no ASCII: dejamos que la JDK codifique (surrogates, etc.)
+                write(line.substring(i).getBytes(StandardCharsets.UTF_8));
+                break;
+            }
+
+            if (count == buf.length) {
+                flushBuffer();
+            }
+            buf[count++] = (byte) c;
+        }
+
+        write('\n');
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Bloques grandes (binario): vaciamos lo pendiente y escribimos directo
+        if (len >= buf.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            sent += len;
+            return;
+        }
+
+        if (len > buf.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Envía al socket todo lo acumulado.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Bytes escritos desde que se creó (enviados o aún en el buffer).
+     */
+    public long bytesWritten() {
+        return sent + count;
+    }
+
+    /**
+     * Suma bytes que se enviaron al socket sin pasar por aquí (transferTo).
+     */
+    public void countDirect(long n) {
+        sent += n;
+    }
+
+    /**
+     * No cerramos el stream del socket: lo cierra quien cierra el Socket.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            sent += count;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package psp.ud03.tarea34.net;
+
+/**
+ * Suma de control "rodante" de rsync (tipo Adler-32) para la sincronización por deltas.
+ * <p>
+ * Para qué:
+ * - El cliente tiene que buscar, en TODAS las posiciones de su fichero, ventanas de
+ * blockSize bytes que coincidan con algún bloque del servidor.
+ * - Calcular un hash por posición sería carísimo; esta suma se "desplaza" un byte en
+ * O(1) con roll(): se quita el byte que sale y se añade el que entra.
+ * <p>
+ * Definición (con x = bytes sin signo de la ventana, L = longitud):
+ * - a = suma(x_i)                 mod 2^16
+ * - b = suma((L - i) * x_i)       mod 2^16
+ * - valor = b << 16 | a
+ * <p>
+ * Es débil a propósito (rápida): cada coincidencia se confirma con un hash fuerte (MD5).
+ */
+public final class RollingChecksum {
+
+    private int a;
+    private int b;
+    private int len;
+
+    /**
+     * Empieza una ventana nueva con buf[off .. off+len).
+     */
+    public void reset(byte[] buf, int off, int len) {
+        int sa = 0;
+        int sb = 0;
+        for (int i = 0; i < len; i++) {
+            int x = buf[off + i] & 0xFF;
+            sa += x;
+            sb += (len - i) * x;
+        }
+        this.a = sa;
+        this.b = sb;
+        this.len = len;
+    }
+
+    /**
+     * Desplaza la ventana un byte: sale 'out' (el primero) y entra 'in' (al final).
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xFF;
+        int y = in & 0xFF;
+        a = a - x + y;
+        b = b - len * x + a;
+    }
+
+    public int value() {
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    /**
+     * Suma de buf[off .. off+len) de una vez.
+     */
+    public static int of(byte[] buf, int off, int len) {
+        RollingChecksum rc = new RollingChecksum();
+        rc.reset(buf, off, len);
+        return rc.value();
+    }
+}
@@ -0,0 +1,103 @@
+package psp.ud03.tarea34.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Lee líneas de texto como BufferedReader.readLine(), pero con un tamaño máximo.
+ * <p>
+ * Problema:
+ * - readLine() junta la línea entera en memoria: un fichero de 2 GB sin saltos de línea
+ * (un log binario, un JSON en una línea...) es un String de 2 GB por sesión.
+ * <p>
+ * Comportamiento:
+ * - Fin de línea: "\n", "\r" o "\r\n" (igual que BufferedReader).
+ * - Una línea de más de 'max' caracteres se devuelve PARTIDA en varias de 'max' (la
+ * última con lo que quede). No se pierde nada, pero quien la recibe ve saltos de
+ * línea que el fichero no tiene.
+ * - Nunca parte un par surrogate (un carácter fuera del BMP sigue entero).
+ * - Bytes no válidos en UTF-8: se sustituyen (open usa InputStreamReader).
+ */
+public final class BoundedLineReader implements Closeable {
+
+    // Límite por defecto: caracteres por línea
+    public static final int MAX_LINE = 64 * 1024;
+
+    private final Reader in;
+    private final int max;
+
+    private final char[] buf = new char[8192];
+    private int pos;
+    private int end;
+
+    // La línea anterior acabó en '\r': si lo siguiente es '\n', es el mismo salto
+    private boolean skipLF;
+
+    private final StringBuilder line = new StringBuilder();
+
+    public BoundedLineReader(Reader in, int max) {
+        this.in = in;
+        this.max = Math.max(2, max);
+    }
+
+    /**
+     * Abre 'p' como texto UTF-8 con líneas de MAX_LINE caracteres como mucho.
+     */
+    public static BoundedLineReader open(Path p) throws IOException {
+        return new BoundedLineReader(new InputStreamReader(Files.newInputStream(p), StandardCharsets.UTF_8), MAX_LINE);
+    }
+
+    /**
+     * Siguiente línea (sin el salto), o el siguiente trozo de 'max' caracteres si es más
+     * larga; null al final del fichero.
+     */
+    public String readLine() throws IOException {
+        line.setLength(0);
+        while (true) {
+            if (pos == end) {
+                int n = in.read(buf);
+                if (n == -1) {
+                    return (line.length() > 0) ? line.toString() : null;
+                }
+                pos = 0;
+                end = n;
+            }
+            if (skipLF) {
+                skipLF = false;
+                if (buf[pos] == '\n') {
+                    pos++;
+                    continue;
+                }
+            }
+
+            int start = pos;
+            while (pos < end && buf[pos] != '\n' && buf[pos] != '\r' && line.length() + (pos - start) < max) {
+                pos++;
+            }
+            line.append(buf, start, pos - start);
+
+            if (pos < end) {
+                char c = buf[pos];
+                if (c == '\n' || c == '\r') {
+                    pos++;
+                    skipLF = (c == '\r');
+                } else if (Character.isHighSurrogate(line.charAt(line.length() - 1)) && pos > start) {
+                    // Lleno justo en medio de un par surrogate: ese carácter va en el siguiente trozo
+                    line.setLength(line.length() - 1);
+                    pos--;
+                }
+                return line.toString();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
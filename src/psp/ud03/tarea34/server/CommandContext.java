@@ -1,6 +1,9 @@
 package psp.ud03.tarea34.server;
 
-import psp.ud03.tarea34.net.ProtocolIO;
+import psp.ud03.tarea34.net.DeflateBlockOutputStream;
+import psp.ud03.tarea34.net.FramingReader;
+import psp.ud03.tarea34.net.ProtocolV2;
+import psp.ud03.tarea34.net.ResponseWriter;
 
 import java.io.*;
 import java.net.Socket;
@@ -13,7 +16,7 @@ import java.nio.file.Path;
  * - Evitar pasar 10 parámetros a cada comando.
  * - Centralizar en un objeto todo lo necesario para atender a un cliente:
  * - socket
- * - streams de entrada/salida
+ * - streams de entrada/salida con buffer (FramingReader / ResponseWriter)
  * - DataInputStream/DataOutputStream para long/binario
  * - IP del cliente (para log)
  * - baseDir (directorio de trabajo del servidor)
@@ -27,9 +30,11 @@ public class CommandContext {
 
     private final Socket socket;
 
-    // Streams "crudos" del socket (los usamos para texto y para copiar bytes)
-    private final InputStream in;
-    private final OutputStream out;
+    // Entrada con buffer: líneas, long y bytes binarios salen del mismo buffer
+    private final FramingReader in;
+
+    // Salida con buffer: la respuesta completa se envía de una vez al acabar el comando
+    private final ResponseWriter out;
 
     // Wrappers para leer/escribir binario (por ejemplo long size)
     private final DataInputStream dis;
@@ -47,17 +52,61 @@ public class CommandContext {
     // Último comando recibido (texto completo) para log unificado
     private String lastReceived;
 
+    // Modo "compress deflate" negociado por el cliente (por conexión)
+    private boolean compression;
+
+    // Cuerpo comprimido de la respuesta actual (null = texto normal)
+    private DeflateBlockOutputStream body;
+
+    // El de todas las respuestas de esta conexión (Deflater + buffers, se crea al usarlo)
+    private DeflateBlockOutputStream deflate;
+
+    // Protocolo negociado con "proto" (1 = texto, 2 = tramas de ProtocolV2)
+    private int protocol = 1;
+
+    // Protocolo pedido con "proto" (se aplica al terminar su respuesta; 0 = ninguno)
+    private int nextProtocol;
+
+    // v2: id de la petición en curso (va en todas las tramas de su respuesta)
+    private int requestId;
+
+    // v2: líneas de la respuesta aún sin enviar (contenido de la próxima trama DATA; se crea al usarlo)
+    private ByteArrayOutputStream frameData;
+    private DataOutputStream frameLines;
+
+    // Estado de la última respuesta (OK/KO...; null = aún sin responder) para las métricas
+    private String lastStatus;
+
+    // Métricas: bytes leídos/escritos hasta el final del comando anterior
+    private long inMark;
+    private long outMark;
+
+    // v2: a partir de aquí se cierra una trama DATA aunque la respuesta siga
+    private static final int DATA_FRAME_SIZE = 64 * 1024;
+
     /**
      * Construye el contexto a partir de un Socket ya aceptado.
      * <p>
      * Importante:
-     * - dis y dos se crean SOBRE los streams del socket.
+     * - dis y dos se crean SOBRE los streams con buffer (FramingReader / ResponseWriter).
      * - No cerramos aquí los streams: se cierran al cerrar el socket en el worker.
      */
     public CommandContext(Socket socket, Path baseDir) throws IOException {
+        this(socket, baseDir, false);
+    }
+
+    /**
+     * Igual, pero con borrowBuffers = true los buffers de entrada/salida no se crean:
+     * hay que prestárselos con attachBuffers antes de cada uso (motor NIO).
+     */
+    public CommandContext(Socket socket, Path baseDir, boolean borrowBuffers) throws IOException {
         this.socket = socket;
-        this.in = socket.getInputStream();
-        this.out = socket.getOutputStream();
+        this.in = borrowBuffers
+                ? new FramingReader(socket.getInputStream(), 0)
+                : new FramingReader(socket.getInputStream());
+        this.out = borrowBuffers
+                ? new ResponseWriter(socket.getOutputStream(), 0)
+                : new ResponseWriter(socket.getOutputStream());
 
         // DataInput/Output para leer/escribir "long" en upload/download
         this.dis = new DataInputStream(in);
@@ -78,7 +127,7 @@ public class CommandContext {
         return socket;
     }
 
-    public InputStream in() {
+    public FramingReader in() {
         return in;
     }
 
@@ -110,12 +159,176 @@ public class CommandContext {
         this.currentDir = currentDir;
     }
 
+    /**
+     * Presta al contexto los buffers de entrada (FramingReader.DEFAULT_SIZE) y salida
+     * (ResponseWriter.DEFAULT_SIZE) mientras atiende comandos.
+     */
+    public void attachBuffers(byte[] inBuffer, byte[] outBuffer) {
+        in.attach(inBuffer);
+        out.attach(outBuffer);
+    }
+
+    /**
+     * Devuelve los buffers prestados (entrada ya vaciada y salida ya enviada).
+     * También suelta el de las tramas DATA de v2, que crece con las respuestas grandes.
+     */
+    public void detachBuffers() {
+        in.detach();
+        out.detach();
+        frameData = null;
+        frameLines = null;
+    }
+
+    /**
+     * Añade una línea de respuesta al buffer (sin enviarla todavía).
+     * <p>
+     * Es lo que deben usar los comandos para las líneas extra tras el OK
+     * (list/show/tree/find/help...). El envío real lo hace flush().
+     */
+    public void writeLine(String line) throws IOException {
+        if (protocol == 2) {
+            if (frameData == null) {
+                frameData = new ByteArrayOutputStream(1024);
+                frameLines = new DataOutputStream(frameData);
+            }
+            ProtocolV2.writeStr(frameLines, line);
+            if (frameData.size() >= DATA_FRAME_SIZE) {
+                flushData();
+            }
+        } else if (body != null) {
+            body.writeLine(line);
+        } else {
+            out.writeLine(line);
+        }
+    }
+
+    public int protocol() {
+        return protocol;
+    }
+
+    /**
+     * Cambia de protocolo al acabar la respuesta actual (la del propio "proto"
+     * sale entera con el protocolo anterior). En v2 no se usa el modo comprimido.
+     */
+    public void setProtocol(int protocol) {
+        this.nextProtocol = protocol;
+    }
+
+    /**
+     * v2: empieza la respuesta a la petición 'requestId'.
+     */
+    public void beginRequest(int requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * true si en el buffer de entrada ya hay otro comando completo (línea o trama,
+     * según el protocolo): los motores no hacen flush hasta el último de la ráfaga.
+     */
+    public boolean hasBufferedRequest() {
+        return (protocol == 2) ? in.hasBufferedFrame() : in.hasBufferedLine();
+    }
+
+    public boolean compression() {
+        return compression;
+    }
+
+    /**
+     * Activa/desactiva el modo comprimido. Afecta a las respuestas SIGUIENTES
+     * (la del propio "compress" ya se ha enviado con el modo anterior).
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Lo llama un comando binario (download, upload...) justo tras reply("OK"):
+     * sus datos no son líneas de texto, así que no se abre bloque de texto.
+     *
+     * @return true si la conexión está en modo comprimido (el comando debe enviar/recibir
+     * sus bytes como bloque comprimido en lugar de en crudo)
+     */
+    public boolean binaryReply() {
+        body = null;
+        return compression;
+    }
+
+    /**
+     * Cierra la respuesta actual: el bloque comprimido (si lo hay) o, en v2, las tramas
+     * DATA pendientes + END. Lo llama CommandDispatcher al terminar cada comando.
+     */
+    public void endReply() throws IOException {
+        if (protocol == 2) {
+            flushData();
+            dos.writeInt(ProtocolV2.HEADER);
+            dos.writeByte(ProtocolV2.END);
+            dos.writeInt(requestId);
+        } else if (body != null) {
+            body.finish();
+            body = null;
+        }
+
+        if (nextProtocol != 0) {
+            protocol = nextProtocol;
+            nextProtocol = 0;
+            compression = false;
+        }
+    }
+
+    /**
+     * Envía al cliente todo lo pendiente en el buffer de respuesta.
+     * <p>
+     * Cuándo se llama:
+     * - ServerWorker, al terminar cada comando (1 envío por respuesta).
+     * - Un comando que, tras el OK, tiene que ESPERAR datos del cliente (upload):
+     * si no hiciera flush, el cliente nunca vería el OK.
+     * - Un comando que envía la respuesta poco a poco (follow): con compresión
+     * también se cierra el trozo a medias del bloque.
+     */
+    public void flush() throws IOException {
+        if (protocol == 2) {
+            flushData();
+        } else if (body != null) {
+            body.flushChunk();
+        }
+        out.flush();
+    }
+
     /**
      * Guarda el último comando recibido en formato texto.
      * (El ServerWorker lo llama antes de ejecutar cada comando.)
      */
     public void setLastReceived(String lastReceived) {
         this.lastReceived = lastReceived;
+        this.lastStatus = null;
+    }
+
+    /**
+     * Estado enviado con reply() en el comando actual (null si aún no ha respondido).
+     */
+    public String lastStatus() {
+        return lastStatus;
+    }
+
+    /**
+     * Bytes recibidos desde la llamada anterior (línea o trama del comando + datos
+     * que haya leído, por ejemplo un upload). Para ServerMetrics.
+     */
+    public long takeBytesIn() {
+        long now = in.bytesConsumed();
+        long n = now - inMark;
+        inMark = now;
+        return n;
+    }
+
+    /**
+     * Bytes de respuesta escritos desde la llamada anterior (aunque sigan en el buffer).
+     */
+    public long takeBytesOut() {
+        long now = out.bytesWritten();
+        long n = now - outMark;
+        outMark = now;
+        return n;
     }
 
     /**
@@ -124,10 +337,45 @@ public class CommandContext {
      * <p>
      * Regla:
      * - Solo debe llamarse UNA vez por comando (para la primera respuesta OK/KO).
-     * - El resto de datos (list/show/download bytes...) se envían con ctx.out()/ctx.dos().
+     * - El resto de datos se envían con ctx.writeLine() (texto) o ctx.out()/ctx.dos() (binario).
+     * - No hace flush: la respuesta sale entera al acabar el comando (ver flush()).
+     * <p>
+     * Modo comprimido:
+     * - La línea OK/KO va siempre en texto normal.
+     * - Tras un OK, las líneas de ctx.writeLine() van dentro de UN bloque comprimido
+     * (ver DeflateBlockOutputStream), aunque esté vacío. Así el cliente sabe siempre
+     * que tras OK viene un bloque, salvo en los comandos binarios (binaryReply()).
      */
     public void reply(String status) throws IOException {
-        ProtocolIO.writeLine(out, status);
+        reply(status, ProtocolV2.ERR_FAILED);
+    }
+
+    /**
+     * Igual que reply(status), indicando en v2 el código de error de un KO
+     * (ProtocolV2.ERR_*). En texto el código no se envía.
+     */
+    public void reply(String status, short error) throws IOException {
+        boolean ok = "OK".equals(status);
+        lastStatus = status;
+
+        if (protocol == 2) {
+            dos.writeInt(ProtocolV2.HEADER + 3);
+            dos.writeByte(ProtocolV2.REPLY);
+            dos.writeInt(requestId);
+            dos.writeByte(ok ? ProtocolV2.OK : ProtocolV2.KO);
+            dos.writeShort(ok ? ProtocolV2.ERR_NONE : error);
+        } else {
+            out.writeLine(status);
+        }
+
+        if (compression && ok) {
+            if (deflate == null) {
+                deflate = new DeflateBlockOutputStream(out, true);
+            } else {
+                deflate.reopen(true);
+            }
+            body = deflate;
+        }
 
         String received = lastReceived;
         if (received == null) {
@@ -136,4 +384,30 @@ public class CommandContext {
 
         ServerLogger.log(clientIp, "RECV: " + received + " -> RESP: " + status);
     }
+
+    /**
+     * Libera lo que no suelta el GC a tiempo (el Deflater del modo comprimido). Lo llama
+     * el motor al cerrar la conexión.
+     */
+    public void close() {
+        body = null;
+        if (deflate != null) {
+            deflate.end();
+            deflate = null;
+        }
+    }
+
+    /**
+     * v2: envía (al buffer de salida) las líneas pendientes como una trama DATA.
+     */
+    private void flushData() throws IOException {
+        if (frameData == null || frameData.size() == 0) {
+            return;
+        }
+        dos.writeInt(ProtocolV2.HEADER + frameData.size());
+        dos.writeByte(ProtocolV2.DATA);
+        dos.writeInt(requestId);
+        frameData.writeTo(dos);
+        frameData.reset();
+    }
 }
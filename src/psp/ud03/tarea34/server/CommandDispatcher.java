@@ -0,0 +1,171 @@
+package psp.ud03.tarea34.server;
+
+import psp.ud03.tarea34.net.ProtocolV2;
+import psp.ud03.tarea34.server.commands.ICommand;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Ejecuta UNA línea de comando sobre un CommandContext.
+ * <p>
+ * Se separa del ServerWorker para que cualquier motor del servidor
+ * (un hilo por cliente o NIO con pool) use exactamente el mismo parseo,
+ * el mismo log y los mismos ICommand.
+ * <p>
+ * Métricas:
+ * - Cada comando deja en ServerMetrics su duración, si respondió OK o KO y los bytes
+ * recibidos/enviados (aquí pasan todos los comandos de los dos motores).
+ * <p>
+ * Protocolo v2 (dispatchFrame):
+ * - El comando sale de una tabla por opcode (sin partir ni buscar texto) y los
+ * argumentos llegan ya separados; el resto (log, ICommand, endReply) es igual.
+ * <p>
+ * Nota:
+ * - NO hace flush: decide el motor cuándo enviar la respuesta acumulada.
+ */
+public class CommandDispatcher {
+
+    private final CommandRegistry registry;
+
+    // v2: comando de cada opcode (null = no se puede usar en v2)
+    private final ICommand[] byOpcode;
+
+    public CommandDispatcher(CommandRegistry registry) {
+        this.registry = registry;
+
+        this.byOpcode = new ICommand[ProtocolV2.maxOpcode() + 1];
+        for (int op = 1; op < byOpcode.length; op++) {
+            byOpcode[op] = registry.get(ProtocolV2.commandName(op));
+        }
+    }
+
+    /**
+     * Parsea y ejecuta una línea.
+     *
+     * @return true si la sesión debe cerrarse (quit)
+     */
+    public boolean dispatch(CommandContext ctx, String line) throws IOException {
+        line = line.trim();
+
+        // Ignorar líneas vacías (no ejecutan nada)
+        if (line.isEmpty()) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        // Parse básico: "cmd params..."
+        String cmd;
+        String params;
+
+        int pos = line.indexOf(' ');
+        if (pos == -1) {
+            cmd = line;
+            params = "";
+        } else {
+            cmd = line.substring(0, pos);
+            params = line.substring(pos + 1).trim();
+        }
+
+        // Texto completo del comando recibido (para el log unificado)
+        String received = cmd;
+        if (!params.isEmpty()) {
+            received = received + " " + params;
+        }
+
+        // Guardamos el comando para que ctx.reply(...) pueda loguear:
+        // RECV: <comando> -> RESP: OK/KO
+        ctx.setLastReceived(received);
+
+        // Buscar implementación del comando
+        ICommand command = registry.get(cmd);
+
+        // Si no existe: respondemos KO y queda logueado en una sola línea
+        if (command == null) {
+            ctx.reply("KO", ProtocolV2.ERR_UNKNOWN_COMMAND);
+            record(ctx, ServerMetrics.UNKNOWN, start);
+            return false;
+        }
+
+        // Ejecutar el comando
+        // - Devuelve true si el comando pide cerrar (quit)
+        // - Si se corta la conexión a medias, el comando cuenta igual en las métricas
+        boolean shouldClose;
+        try {
+            shouldClose = command.execute(ctx, params);
+
+            // Modo comprimido: cerrar el bloque de texto de la respuesta (si se abrió)
+            ctx.endReply();
+        } finally {
+            record(ctx, cmd, start);
+        }
+
+        if (shouldClose) {
+            ServerLogger.log(ctx.clientIp(), "DISCONNECT quit");
+        }
+        return shouldClose;
+    }
+
+    /**
+     * Ejecuta una trama REQUEST del protocolo v2.
+     *
+     * @return true si la sesión debe cerrarse (quit)
+     */
+    public boolean dispatchFrame(CommandContext ctx, ProtocolV2.Frame frame) throws IOException {
+        long start = System.nanoTime();
+        ctx.beginRequest(frame.requestId());
+
+        int op = (frame.payload().length > 0) ? frame.payload()[0] & 0xff : 0;
+        String name = ProtocolV2.commandName(op);
+        ICommand command = (name == null) ? null : byOpcode[op];
+
+        List<Object> args = null;
+        if (frame.type() == ProtocolV2.REQUEST && command != null) {
+            try {
+                args = ProtocolV2.decodeArgs(frame.payload());
+            } catch (IOException e) {
+                // Trama mal formada: se contesta y se sigue (la longitud sí era válida)
+                args = null;
+            }
+        }
+
+        String received = (name == null) ? "#" + op : name;
+        if (args != null && !args.isEmpty()) {
+            received = received + " " + ProtocolV2.joinArgs(args);
+        }
+        ctx.setLastReceived(received);
+
+        if (frame.type() != ProtocolV2.REQUEST || command == null) {
+            ctx.reply("KO", (frame.type() == ProtocolV2.REQUEST)
+                    ? ProtocolV2.ERR_UNKNOWN_COMMAND : ProtocolV2.ERR_BAD_REQUEST);
+            ctx.endReply();
+            record(ctx, ServerMetrics.UNKNOWN, start);
+            return false;
+        }
+        if (args == null) {
+            ctx.reply("KO", ProtocolV2.ERR_BAD_REQUEST);
+            ctx.endReply();
+            record(ctx, name, start);
+            return false;
+        }
+
+        boolean shouldClose;
+        try {
+            shouldClose = command.execute(ctx, args);
+            ctx.endReply();
+        } finally {
+            record(ctx, name, start);
+        }
+
+        if (shouldClose) {
+            ServerLogger.log(ctx.clientIp(), "DISCONNECT quit");
+        }
+        return shouldClose;
+    }
+
+    private static void record(CommandContext ctx, String command, long start) {
+        ServerMetrics.record(command, "OK".equals(ctx.lastStatus()), System.nanoTime() - start,
+                ctx.takeBytesIn(), ctx.takeBytesOut());
+    }
+}
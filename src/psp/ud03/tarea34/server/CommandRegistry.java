@@ -44,9 +44,16 @@ public class CommandRegistry {
     private void registerDefaults() {
         commands.put("list", new ListCommand());
         commands.put("show", new ShowCommand());
+        commands.put("cat", new CatCommand());
         commands.put("delete", new DeleteCommand());
         commands.put("upload", new UploadCommand());
+        commands.put("dupload", new DedupUploadCommand());
         commands.put("download", new DownloadCommand());
+        commands.put("rdownload", new RangedDownloadCommand());
+
+        // Sincronización por deltas (cliente: sync)
+        commands.put("sigs", new SignaturesCommand());
+        commands.put("patch", new PatchCommand());
         commands.put("quit", new QuitCommand());
         commands.put("ping", new PingCommand());
         commands.put("mkdir", new MkdirCommand());
@@ -68,10 +75,22 @@ public class CommandRegistry {
         // Lectura/búsqueda típicas de examen (solo texto)
         commands.put("head", new HeadCommand());
         commands.put("tail", new TailCommand());
+        commands.put("follow", new FollowCommand());
         commands.put("tree", new TreeCommand());
         commands.put("find", new FindCommand());
+        commands.put("grep", new GrepCommand());
+        commands.put("du", new DuCommand());
         commands.put("hash", new HashCommand());
 
+        // Compresión negociada por conexión
+        commands.put("compress", new CompressCommand());
+
+        // Métricas (latencias, bytes, sesiones, cachés)
+        commands.put("stats", new StatsCommand());
+
+        // Protocolo binario v2 negociado por conexión
+        commands.put("proto", new ProtoCommand());
+
         // help necesita el registry
         commands.put("help", new HelpCommand(this));
 
@@ -0,0 +1,413 @@
+package psp.ud03.tarea34.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caché de SHA-256 de ficheros (para hash y la subida).
+ * <p>
+ * Problema:
+ * - hash relee y recalcula el fichero entero en cada petición, aunque no haya cambiado
+ * (ficheros de varios GB pedidos cada pocos minutos).
+ * <p>
+ * Cómo funciona:
+ * - Clave = ruta. Cada entrada guarda además el "sello" del fichero cuando se calculó:
+ * tamaño + fecha de modificación (ns) + fileKey (inodo). Si el sello ya no coincide,
+ * la entrada no vale y se recalcula.
+ * - En memoria, acotada (digest.max entradas) con expulsión LRU.
+ * - Opcional: índice en disco (digest.indice) para no perder nada al reiniciar.
+ * Se reescribe entero (fichero temporal + move) cada pocos segundos si hubo cambios
+ * y al parar el servidor.
+ * - upload rellena la caché: al terminar de recibir un fichero pide su SHA-256 en segundo
+ * plano (sha256Later: pool propio y acotado, el hilo de la sesión no espera). Si el pool
+ * está lleno se omite: el hash se calculará la primera vez que se pida.
+ * - Índice inverso hash -> rutas: dupload lo usa para encontrar un fichero con el
+ * mismo contenido (findByContent).
+ * <p>
+ * No escucha FileChanges: el sello ya detecta cualquier cambio, y un aviso del
+ * WatchService que llegue tarde borraría el hash recién calculado por upload.
+ */
+public final class DigestCache {
+
+    /**
+     * Estado del fichero cuando se calculó el hash.
+     */
+    private record Stamp(long size, long modifiedNanos, String fileKey) {
+
+        static Stamp of(BasicFileAttributes a) {
+            Object key = a.fileKey();
+            return new Stamp(a.size(), a.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    (key == null) ? "-" : key.toString());
+        }
+    }
+
+    private record Digest(Stamp stamp, String hex) {
+    }
+
+    private static final int BUFFER = 64 * 1024;
+
+    // Hash de uploads en segundo plano: hilos y ficheros en espera, como mucho
+    private static final int POOL = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int POOL_QUEUE = 64;
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    // Cada cuánto se guarda el índice en disco (si hubo cambios)
+    private static final long SAVE_MILLIS = 10_000;
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    private static volatile int maxEntries = 10000;
+    private static volatile boolean uploads = true;
+    private static Path indexFile;
+
+    private static final LinkedHashMap<Path, Digest> MAP = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Digest> eldest) {
+            if (size() > maxEntries) {
+                unindex(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Índice inverso: hash -> rutas con ese contenido (mismo lock que MAP)
+    private static final Map<String, Set<Path>> BY_DIGEST = new HashMap<>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    // Hay cambios sin guardar en el índice
+    private static volatile boolean dirty;
+
+    private DigestCache() {
+    }
+
+    /**
+     * Configura la caché (llamar al arrancar).
+     *
+     * @param max       entradas en memoria (0 = sin caché)
+     * @param indexName fichero índice ("" = solo memoria)
+     * @param uploads   true = calcular el hash de cada upload al recibirlo
+     */
+    public static void configure(int max, String indexName, boolean uploads) {
+        maxEntries = Math.max(0, max);
+        DigestCache.uploads = uploads && max > 0;
+
+        if (indexName == null || indexName.isBlank() || max == 0) {
+            return;
+        }
+
+        indexFile = Paths.get(indexName).toAbsolutePath().normalize();
+        load();
+
+        Thread saver = new Thread(DigestCache::saveLoop, "digest-index");
+        saver.setDaemon(true);
+        saver.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(DigestCache::save, "digest-index-stop"));
+    }
+
+    /**
+     * true si upload debe calcular el SHA-256 de cada fichero subido (al terminar de recibirlo).
+     */
+    public static boolean digestUploads() {
+        return uploads;
+    }
+
+    /**
+     * SHA-256 (hex) de 'file': de la caché si el fichero no ha cambiado, si no se calcula.
+     */
+    public static String sha256(Path file) throws IOException {
+        Path p = file.toAbsolutePath().normalize();
+        BasicFileAttributes before = Files.readAttributes(p, BasicFileAttributes.class);
+
+        String hex = lookup(p, before);
+        if (hex != null) {
+            return hex;
+        }
+
+        MessageDigest md = newDigest();
+        try (InputStream is = Files.newInputStream(p)) {
+            byte[] buf = new byte[BUFFER];
+            int r;
+            while ((r = is.read(buf)) != -1) {
+                md.update(buf, 0, r);
+            }
+        }
+        hex = toHex(md.digest());
+
+        // Solo se guarda si nadie tocó el fichero mientras lo leíamos
+        BasicFileAttributes after = Files.readAttributes(p, BasicFileAttributes.class);
+        if (Stamp.of(before).equals(Stamp.of(after))) {
+            put(p, after, hex);
+        }
+        return hex;
+    }
+
+    /**
+     * Calcula sha256(file) en el pool de fondo y se lo pasa a 'done' (si se pudo calcular).
+     * El sello se comprueba igual que en sha256: si el fichero cambia mientras se lee, no
+     * se guarda. Con el pool lleno no se hace nada.
+     */
+    public static void sha256Later(Path file, Consumer<String> done) {
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    done.accept(sha256(file));
+                } catch (IOException | RuntimeException e) {
+                    // Borrado o cambiado mientras tanto: ya se calculará si se pide
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Pool lleno: no se espera, se calculará la primera vez que se pida
+        }
+    }
+
+    /**
+     * Hash guardado para 'file' si sigue valiendo con sus atributos actuales (o null).
+     */
+    public static String lookup(Path file, BasicFileAttributes attrs) {
+        Path p = file.toAbsolutePath().normalize();
+        LOCK.lock();
+        try {
+            Digest d = MAP.get(p);
+            if (d != null && d.stamp().equals(Stamp.of(attrs))) {
+                HITS.incrementAndGet();
+                return d.hex();
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        MISSES.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Guarda el hash de 'file' con sus atributos ACTUALES (leídos tras escribirlo).
+     */
+    public static void put(Path file, BasicFileAttributes attrs, String hex) {
+        if (maxEntries == 0) {
+            return;
+        }
+        Path p = file.toAbsolutePath().normalize();
+        LOCK.lock();
+        try {
+            putLocked(p, new Digest(Stamp.of(attrs), hex));
+            dirty = true;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Busca un fichero con el contenido indicado (hash + tamaño) que siga intacto.
+     * Las entradas que ya no valen (fichero cambiado o borrado) se quitan.
+     *
+     * @return ruta de un fichero con ese contenido, o null si no se conoce ninguno
+     */
+    public static Path findByContent(String hex, long size) {
+        List<Path> candidates;
+        LOCK.lock();
+        try {
+            Set<Path> paths = BY_DIGEST.get(hex);
+            if (paths == null) {
+                return null;
+            }
+            candidates = new ArrayList<>(paths);
+        } finally {
+            LOCK.unlock();
+        }
+
+        for (Path p : candidates) {
+            try {
+                BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                if (a.isRegularFile() && a.size() == size && hex.equals(lookup(p, a))) {
+                    return p;
+                }
+            } catch (IOException ignored) {
+                // Ya no existe: se quita abajo
+            }
+
+            LOCK.lock();
+            try {
+                Digest d = MAP.remove(p);
+                if (d != null) {
+                    unindex(p, d);
+                    dirty = true;
+                }
+            } finally {
+                LOCK.unlock();
+            }
+        }
+        return null;
+    }
+
+    public static long hits() {
+        return HITS.get();
+    }
+
+    public static long misses() {
+        return MISSES.get();
+    }
+
+    /**
+     * MessageDigest SHA-256 nuevo (siempre existe en cualquier JVM).
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void putLocked(Path p, Digest d) {
+        Digest old = MAP.put(p, d);
+        if (old != null) {
+            unindex(p, old);
+        }
+        BY_DIGEST.computeIfAbsent(d.hex(), k -> new HashSet<>()).add(p);
+    }
+
+    private static void unindex(Path p, Digest d) {
+        Set<Path> paths = BY_DIGEST.get(d.hex());
+        if (paths != null) {
+            paths.remove(p);
+            if (paths.isEmpty()) {
+                BY_DIGEST.remove(d.hex());
+            }
+        }
+    }
+
+    /**
+     * Índice: una línea por entrada, separada por tabuladores:
+     * hex  tamaño  fechaNs  fileKey  ruta
+     */
+    private static ThreadPoolExecutor createExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(
+                POOL, POOL,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(POOL_QUEUE),
+                r -> {
+                    Thread t = new Thread(r, "digest-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        ex.allowCoreThreadTimeOut(true);
+        return ex;
+    }
+
+    private static void load() {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t", 5);
+                if (f.length < 5) {
+                    continue;
+                }
+                try {
+                    Stamp stamp = new Stamp(Long.parseLong(f[1]), Long.parseLong(f[2]), f[3]);
+                    LOCK.lock();
+                    try {
+                        putLocked(Paths.get(f[4]), new Digest(stamp, f[0]));
+                    } finally {
+                        LOCK.unlock();
+                    }
+                } catch (RuntimeException ignored) {
+                    // Línea corrupta: se ignora
+                }
+            }
+        } catch (IOException e) {
+            ServerLogger.log("SERVER", "ERROR (digest index not loaded: " + e.getMessage() + ")");
+        }
+    }
+
+    private static void saveLoop() {
+        while (true) {
+            try {
+                Thread.sleep(SAVE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            save();
+        }
+    }
+
+    private static void save() {
+        if (!dirty || indexFile == null) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        LOCK.lock();
+        try {
+            for (Map.Entry<Path, Digest> e : MAP.entrySet()) {
+                String path = e.getKey().toString();
+                if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0) {
+                    continue; // no cabe en el formato de líneas
+                }
+                Stamp s = e.getValue().stamp();
+                lines.add(e.getValue().hex() + "\t" + s.size() + "\t" + s.modifiedNanos() + "\t"
+                        + s.fileKey() + "\t" + path);
+            }
+            dirty = false;
+        } finally {
+            LOCK.unlock();
+        }
+
+        // Escritura atómica: nunca queda un índice a medias
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (String line : lines) {
+                    w.write(line);
+                    w.newLine();
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            ServerLogger.log("SERVER", "ERROR (digest index not saved: " + e.getMessage() + ")");
+        }
+    }
+}
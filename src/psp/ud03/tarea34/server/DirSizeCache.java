@@ -0,0 +1,410 @@
+package psp.ud03.tarea34.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tamaño total (recursivo) de cada directorio, calculado en paralelo y guardado, para du.
+ * <p>
+ * Problema:
+ * - Saber cuánto ocupa un árbol obligaba al cliente a recorrerlo con miles de comandos,
+ * y calcularlo en el servidor cada vez es leer los metadatos de todo el árbol.
+ * <p>
+ * Cómo funciona:
+ * - Una tarea (DiskPool) por directorio: suma sus ficheros y lanza una tarea
+ * por subdirectorio. Cada directorio terminado guarda su total (bytes, ficheros).
+ * - La siguiente vez, los subdirectorios guardados no se vuelven a recorrer.
+ * - Tamaño acotado (du.max directorios) con expulsión LRU.
+ * - Además de MAP (LRU), KEYS tiene las mismas rutas como texto y ordenadas: lo que
+ * cuelga de "a" va de "a/" a "a0", así que tirar un subárbol es un subSet y no
+ * recorrer toda la caché con el lock cogido.
+ * <p>
+ * Invalidación (incremental):
+ * - FileChanges (upload, delete, copy, rename... y cambios externos vía DirectoryWatcher):
+ * se tira el total del directorio que contiene la ruta y el de TODOS sus antecesores
+ * (también han cambiado). Si la ruta era un directorio, además todo lo que colgaba de él.
+ * - Tras un cambio en a/b/c/fichero, el siguiente du de "a" solo vuelve a listar a, a/b
+ * y a/b/c: el resto de subdirectorios sale de la caché.
+ * - El total de un directorio que está vigilado, él y todo lo que cuelga de él, no
+ * caduca. Si algo de debajo no se pudo vigilar (cache.watchMax ya gastado, por ejemplo
+ * por el índice de find), un cambio externo ahí no avisaría: se guarda igual, pero
+ * caduca a los du.ttlMs (los cambios hechos por el propio servidor avisan siempre).
+ * - Carrera evitada: si mientras se calcula un directorio llega un aviso de una ruta
+ * suya (o de él o un antecesor), su total se usa pero no se guarda. Los avisos de
+ * otras ramas no estorban: se miran las últimas invalidaciones (RECENT), no solo un
+ * contador global.
+ */
+public final class DirSizeCache {
+
+    /**
+     * Total recursivo de un directorio.
+     */
+    public record Usage(long bytes, long files) {
+    }
+
+    /**
+     * Resultado de du: total del directorio y de cada subdirectorio directo (por nombre).
+     */
+    public record Report(Usage total, Map<String, Usage> subdirs) {
+    }
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    private static volatile int maxEntries = 100000;
+
+    private static volatile long ttlMs = 30000;
+
+    // Sin caducidad (todo lo de debajo vigilado)
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    /**
+     * Total guardado y cuándo caduca (System.nanoTime(), o FOREVER).
+     */
+    private record Entry(Usage usage, long expires) {
+    }
+
+    private static final LinkedHashMap<Path, Entry> MAP = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+            if (size() > maxEntries) {
+                KEYS.remove(eldest.getKey().toString());
+                DirectoryWatcher.unwatch(eldest.getKey(), WATCHER);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Las claves de MAP como texto, ordenadas (con LOCK)
+    private static final TreeSet<String> KEYS = new TreeSet<>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    // Un directorio se vigila mientras su total está en MAP (o se está calculando)
+    private static final DirectoryWatcher.Owner WATCHER = DirectoryWatcher.owner("du");
+
+    /**
+     * Invalidación apuntada: nº de secuencia y ruta (null = todo, clear).
+     */
+    private record Invalidation(long seq, Path path) {
+    }
+
+    // Invalidaciones recordadas; si un cálculo empezó antes de la más vieja, no se guarda
+    private static final int MAX_RECENT = 4096;
+
+    // Sube con cada invalidación (con LOCK)
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    // Últimas invalidaciones, de la más vieja a la más nueva (con LOCK)
+    private static final ArrayDeque<Invalidation> RECENT = new ArrayDeque<>();
+
+    static {
+        FileChanges.addListener(new FileChanges.Listener() {
+            @Override
+            public void changed(Path path) {
+                invalidate(path);
+            }
+
+            @Override
+            public void changedAll() {
+                clear();
+            }
+        });
+    }
+
+    private DirSizeCache() {
+    }
+
+    /**
+     * Configura la caché (llamar al arrancar).
+     *
+     * @param max   directorios guardados como mucho (0 = sin caché: se recorre siempre)
+     * @param ttlMs caducidad de los totales con algo sin vigilar debajo (0 = no se guardan)
+     */
+    public static void configure(int max, long ttlMs) {
+        LOCK.lock();
+        try {
+            maxEntries = Math.max(0, max);
+            DirSizeCache.ttlMs = Math.max(0, ttlMs);
+            MAP.clear();
+            KEYS.clear();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Total de 'dir' y de cada uno de sus subdirectorios directos.
+     */
+    public static Report report(Path dir) {
+        Path d = dir.toAbsolutePath().normalize();
+        Map<String, Usage> subdirs = new TreeMap<>();
+        Result r = DiskPool.pool().invoke(new DirTask(d, subdirs));
+        return new Report(r.usage(), subdirs);
+    }
+
+    public static long hits() {
+        return HITS.get();
+    }
+
+    public static long misses() {
+        return MISSES.get();
+    }
+
+    public static int size() {
+        LOCK.lock();
+        try {
+            return MAP.size();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Tira el total de la carpeta de 'path' y de todos sus antecesores y, si 'path'
+     * es (o era) un directorio, lo que cuelga de él.
+     * <p>
+     * Un directorio borrado cuyo total no estaba guardado puede dejar totales de sus
+     * subdirectorios: no se leen nunca, y si se vuelve a crear algo con ese nombre llega
+     * otro aviso (ya como directorio) que los tira.
+     */
+    public static void invalidate(Path path) {
+        boolean dir = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+
+        LOCK.lock();
+        try {
+            remember(path);
+            dir |= drop(path);
+            for (Path p = path.getParent(); p != null; p = p.getParent()) {
+                drop(p);
+            }
+            if (dir) {
+                // Descendientes: de "path/" (incluido) a "path" + (separador + 1) (excluido)
+                String s = path.toString();
+                char sep = path.getFileSystem().getSeparator().charAt(0);
+                List<String> below = new ArrayList<>(KEYS.subSet(s + sep, true, s + (char) (sep + 1), false));
+                for (String k : below) {
+                    drop(path.getFileSystem().getPath(k));
+                }
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    public static void clear() {
+        LOCK.lock();
+        try {
+            remember(null);
+            MAP.clear();
+            KEYS.clear();
+            DirectoryWatcher.unwatchAll(WATCHER);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Total guardado de 'dir' (null si no hay o ha caducado).
+     */
+    private static Entry lookup(Path dir) {
+        if (maxEntries == 0) {
+            return null;
+        }
+        LOCK.lock();
+        try {
+            Entry e = MAP.get(dir);
+            if (e != null && e.expires() != FOREVER && e.expires() - System.nanoTime() <= 0) {
+                drop(dir);
+                e = null;
+            }
+            if (e != null) {
+                HITS.incrementAndGet();
+            } else {
+                MISSES.incrementAndGet();
+            }
+            return e;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Guarda el total de 'dir' si se puede (expires != 0); si no, suelta su vigilancia
+     * (si no le queda un total guardado de antes).
+     */
+    private static void store(Path dir, Usage usage, long gen, long expires) {
+        LOCK.lock();
+        try {
+            // Si hubo un aviso de algo suyo mientras se calculaba, puede estar ya viejo
+            if (expires != 0 && maxEntries > 0 && !changedSince(dir, gen)) {
+                MAP.put(dir, new Entry(usage, expires));
+                KEYS.add(dir.toString());
+            } else if (!MAP.containsKey(dir)) {
+                DirectoryWatcher.unwatch(dir, WATCHER);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Quita el total de 'dir' y su vigilancia (con LOCK).
+     */
+    private static boolean drop(Path dir) {
+        if (MAP.remove(dir) == null) {
+            return false;
+        }
+        KEYS.remove(dir.toString());
+        DirectoryWatcher.unwatch(dir, WATCHER);
+        return true;
+    }
+
+    /**
+     * Apunta una invalidación (con LOCK).
+     */
+    private static void remember(Path path) {
+        RECENT.addLast(new Invalidation(GENERATION.incrementAndGet(), path));
+        if (RECENT.size() > MAX_RECENT) {
+            RECENT.removeFirst();
+        }
+    }
+
+    /**
+     * true si desde 'gen' se ha invalidado algo que afecta al total de 'dir': una ruta
+     * dentro de él, él mismo o un antecesor (con LOCK).
+     */
+    private static boolean changedSince(Path dir, long gen) {
+        if (GENERATION.get() == gen) {
+            return false;
+        }
+        // Las de después de 'gen' ya no están todas: no se sabe
+        if (RECENT.isEmpty() || RECENT.peekFirst().seq() > gen + 1) {
+            return true;
+        }
+        Iterator<Invalidation> it = RECENT.descendingIterator();
+        while (it.hasNext()) {
+            Invalidation inv = it.next();
+            if (inv.seq() <= gen) {
+                return false;
+            }
+            if (inv.path() == null || inv.path().startsWith(dir) || dir.startsWith(inv.path())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Total de un directorio y hasta cuándo vale guardado: FOREVER (él y todo lo de
+     * debajo vigilado), un instante de System.nanoTime() o 0 (no se guarda).
+     */
+    private record Result(Usage usage, long expires) {
+    }
+
+    @SuppressWarnings("serial")
+    private static final class DirTask extends RecursiveTask<Result> {
+        private final Path dir;
+
+        // Solo en la tarea de arriba: aquí se apuntan los subdirectorios directos
+        private final Map<String, Usage> subdirs;
+
+        DirTask(Path dir, Map<String, Usage> subdirs) {
+            this.dir = dir;
+            this.subdirs = subdirs;
+        }
+
+        @Override
+        protected Result compute() {
+            // La tarea de arriba no usa la caché: necesita el detalle de sus hijos
+            if (subdirs == null) {
+                Entry cached = lookup(dir);
+                if (cached != null) {
+                    return new Result(cached.usage(), cached.expires());
+                }
+            }
+
+            long gen = GENERATION.get();
+            long expires = 0;
+            if (maxEntries > 0) {
+                if (DirectoryWatcher.watch(dir, WATCHER)) {
+                    expires = FOREVER;
+                } else if (ttlMs > 0) {
+                    expires = System.nanoTime() + ttlMs * 1_000_000;
+                }
+            }
+
+            long bytes = 0;
+            long files = 0;
+            List<DirTask> tasks = new ArrayList<>();
+
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path child : ds) {
+                    BasicFileAttributes a;
+                    try {
+                        a = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (a.isDirectory()) {
+                        DirTask t = new DirTask(child, null);
+                        t.fork();
+                        tasks.add(t);
+                    } else {
+                        bytes += a.size();
+                        files++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // No legible: cuenta como vacío y no se guarda
+                expires = 0;
+            }
+
+            for (DirTask t : tasks) {
+                Result r = t.join();
+                bytes += r.usage().bytes();
+                files += r.usage().files();
+                expires = earlier(expires, r.expires());
+                if (subdirs != null) {
+                    subdirs.put(t.dir.getFileName().toString(), r.usage());
+                }
+            }
+
+            Usage usage = new Usage(bytes, files);
+            store(dir, usage, gen, expires);
+            return new Result(usage, expires);
+        }
+
+        /**
+         * La caducidad que llega antes (0 gana siempre: no se guarda).
+         */
+        private static long earlier(long a, long b) {
+            if (a == 0 || b == 0) {
+                return 0;
+            }
+            if (a == FOREVER) {
+                return b;
+            }
+            if (b == FOREVER) {
+                return a;
+            }
+            return (a - b <= 0) ? a : b;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package psp.ud03.tarea34.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Vigila directorios con WatchService y convierte cada evento en FileChanges.fire(...).
+ * <p>
+ * Para qué:
+ * - Las cachés del servidor (MetadataCache...) solo guardan datos de directorios
+ * vigilados: si alguien cambia un fichero desde FUERA del servidor, el aviso llega
+ * por aquí y la caché se invalida.
+ * <p>
+ * Detalles:
+ * - Un único hilo "dir-watcher" (daemon), que arranca con el primer watch(...).
+ * - Como mucho maxDirs directorios vigilados (cada uno gasta un recurso del SO,
+ * por ejemplo un watch de inotify en Linux). Si no cabe, watch(...) devuelve false
+ * y quien llama NO debe cachear ese directorio.
+ * - OVERFLOW (el SO perdió eventos) => FileChanges.fireAll().
+ * <p>
+ * Quién vigila (Owner):
+ * - Cada caché es un Owner y pide/suelta sus directorios con watch/unwatch. Un directorio
+ * se vigila mientras algún Owner lo tenga; con el último unwatch se cancela su clave y
+ * deja de contar para maxDirs.
+ * - Las cachés sueltan lo que tiran (expulsión, invalidación, clear): un directorio
+ * visitado una vez no ocupa el cupo para siempre.
+ * - Si un directorio vigilado se borra o se mueve (ENTRY_DELETE en su padre), se deja
+ * de vigilar él y todo lo vigilado debajo, para todos los Owner (tras un move su clave
+ * seguiría avisando con la ruta vieja). Igual con una clave que deja de ser válida. El aviso de FileChanges
+ * que sigue hace que cada caché tire lo suyo.
+ */
+public final class DirectoryWatcher {
+
+    /**
+     * Quien vigila directorios (una caché). Solo sirve para contar quién tiene cada uno.
+     */
+    public static final class Owner {
+        private final String name;
+
+        // Directorios que tiene ahora
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Owner(String name) {
+            this.name = name;
+        }
+
+        public int watched() {
+            return count.get();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Un directorio vigilado: su clave y quién lo tiene.
+     */
+    private static final class Watch {
+        final Path dir;
+        final WatchKey key;
+        final Set<Owner> owners = ConcurrentHashMap.newKeySet();
+
+        Watch(Path dir, WatchKey key) {
+            this.dir = dir;
+            this.key = key;
+        }
+    }
+
+    // Altas, bajas y cambios de Owner (las consultas de watch() no lo cogen)
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    private static volatile int maxDirs = 1024;
+
+    private static WatchService service;
+
+    // Ruta (texto) -> vigilancia, ordenado: lo que cuelga de "a" va de "a/" a "a0"
+    private static final ConcurrentSkipListMap<String, Watch> WATCHED = new ConcurrentSkipListMap<>();
+    private static final Map<WatchKey, Watch> BY_KEY = new ConcurrentHashMap<>();
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private DirectoryWatcher() {
+    }
+
+    /**
+     * Límite de directorios vigilados (llamar al arrancar).
+     */
+    public static void configure(int max) {
+        maxDirs = Math.max(0, max);
+    }
+
+    /**
+     * Owner nuevo (uno por caché, al cargar la clase).
+     */
+    public static Owner owner(String name) {
+        return new Owner(name);
+    }
+
+    /**
+     * Empieza a vigilar 'dir' para 'owner' (si no lo tenía ya).
+     *
+     * @return true si el directorio queda vigilado
+     */
+    public static boolean watch(Path dir, Owner owner) {
+        Watch w = WATCHED.get(dir.toString());
+        if (w != null && w.owners.contains(owner)) {
+            return true;
+        }
+
+        LOCK.lock();
+        try {
+            w = WATCHED.get(dir.toString());
+            if (w == null) {
+                if (COUNT.get() >= maxDirs) {
+                    return false;
+                }
+                if (service == null) {
+                    service = FileSystems.getDefault().newWatchService();
+                    Thread t = new Thread(DirectoryWatcher::run, "dir-watcher");
+                    t.setDaemon(true);
+                    t.start();
+                }
+
+                WatchKey key = dir.register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                w = new Watch(dir, key);
+                WATCHED.put(dir.toString(), w);
+                BY_KEY.put(key, w);
+                COUNT.incrementAndGet();
+            }
+            if (w.owners.add(owner)) {
+                owner.count.incrementAndGet();
+            }
+            return true;
+
+        } catch (IOException | RuntimeException e) {
+            // No existe, sin permisos, sin recursos del SO...: no se vigila
+            return false;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * 'owner' ya no necesita 'dir' vigilado (si nadie más lo tiene, se cancela).
+     */
+    public static void unwatch(Path dir, Owner owner) {
+        Watch w = WATCHED.get(dir.toString());
+        if (w == null || !w.owners.contains(owner)) {
+            return;
+        }
+
+        LOCK.lock();
+        try {
+            release(WATCHED.get(dir.toString()), owner);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Suelta todos los directorios de 'owner' (clear de una caché).
+     */
+    public static void unwatchAll(Owner owner) {
+        if (owner.count.get() == 0) {
+            return;
+        }
+        LOCK.lock();
+        try {
+            for (Watch w : WATCHED.values()) {
+                release(w, owner);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Directorios vigilados ahora mismo.
+     */
+    public static int watchedCount() {
+        return COUNT.get();
+    }
+
+    /**
+     * Quita 'owner' de 'w' y, si era el último, la cancela (con LOCK).
+     */
+    private static void release(Watch w, Owner owner) {
+        if (w == null || !w.owners.remove(owner)) {
+            return;
+        }
+        owner.count.decrementAndGet();
+        if (w.owners.isEmpty()) {
+            cancel(w);
+        }
+    }
+
+    /**
+     * Deja de vigilar 'w' para todos (con LOCK).
+     */
+    private static void cancel(Watch w) {
+        if (!WATCHED.remove(w.dir.toString(), w)) {
+            return;
+        }
+        BY_KEY.remove(w.key);
+        COUNT.decrementAndGet();
+        for (Owner o : w.owners) {
+            o.count.decrementAndGet();
+        }
+        w.owners.clear();
+        w.key.cancel();
+    }
+
+    /**
+     * 'dir' ya no está (borrado o movido): deja de vigilarlo, a él y a lo de debajo.
+     */
+    private static void gone(Path dir) {
+        String s = dir.toString();
+        String sep = dir.getFileSystem().getSeparator();
+        LOCK.lock();
+        try {
+            List<Watch> drop = new ArrayList<>();
+            Watch self = WATCHED.get(s);
+            if (self != null) {
+                drop.add(self);
+            }
+            // Descendientes: de "dir/" (incluido) a "dir" + (separador + 1) (excluido)
+            String below = s + sep;
+            String end = s + (char) (sep.charAt(0) + 1);
+            drop.addAll(WATCHED.subMap(below, true, end, false).values());
+            for (Watch w : drop) {
+                cancel(w);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Watch w = BY_KEY.get(key);
+            Path dir = (w != null) ? w.dir : null;
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    FileChanges.fireAll();
+                } else if (dir != null) {
+                    Path child = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        gone(child);
+                    }
+                    FileChanges.fire(child);
+                }
+            }
+
+            // Clave inválida => el directorio ya no existe (o no es accesible)
+            if (!key.reset() && w != null) {
+                LOCK.lock();
+                try {
+                    cancel(w);
+                } finally {
+                    LOCK.unlock();
+                }
+                FileChanges.fire(dir);
+            }
+        }
+    }
+}
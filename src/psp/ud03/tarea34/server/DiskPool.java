@@ -0,0 +1,56 @@
+package psp.ud03.tarea34.server;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ForkJoinPool propio para las tareas en paralelo que leen del disco: ParallelWalker
+ * (tree, find), DirSizeCache (du) y TreeHasher (hash -tree).
+ * <p>
+ * Por qué no el ForkJoinPool común:
+ * - Sus tareas bloquean en llamadas al sistema (listar, readAttributes, read). En el
+ * común ocuparían los hilos de cualquier otro uso de la JVM (parallel streams,
+ * CompletableFuture...) y, con un disco lento, los dejarían a todos esperando.
+ * <p>
+ * Detalles:
+ * - PARALLELISM hilos "disk-N" (daemon), el doble de núcleos: la mayor parte del tiempo
+ * esperan al disco, no gastan CPU.
+ * - Acotado: nunca crea hilos de más para compensar un join bloqueado (maximumPoolSize =
+ * PARALLELISM; si haría falta, se sigue sin compensar). Varias sesiones a la vez se
+ * reparten esos hilos.
+ * - Los hilos sin trabajo se cierran a los 60 s.
+ */
+public final class DiskPool {
+
+    public static final int PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ForkJoinPool POOL = createPool();
+
+    private DiskPool() {
+    }
+
+    public static ForkJoinPool pool() {
+        return POOL;
+    }
+
+    private static ForkJoinPool createPool() {
+        AtomicInteger n = new AtomicInteger();
+        return new ForkJoinPool(
+                PARALLELISM,
+                p -> {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    t.setName("disk-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                null,
+                false,
+                0,
+                PARALLELISM,
+                1,
+                p -> true,
+                60, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,77 @@
+package psp.ud03.tarea34.server;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Aviso central de "esta ruta ha cambiado" para las cachés del servidor.
+ * <p>
+ * Quién avisa:
+ * - Los comandos que modifican ficheros (upload, delete, rename, copy, mkdir, touch...)
+ * llaman a fire(ruta) justo después de cambiarla.
+ * - DirectoryWatcher avisa de los cambios hechos por FUERA del servidor.
+ * <p>
+ * Quién escucha:
+ * - Las cachés (MetadataCache...) se registran con addListener y tiran lo que tengan
+ * de esa ruta.
+ * <p>
+ * Las rutas se pasan siempre absolutas y normalizadas.
+ */
+public final class FileChanges {
+
+    /**
+     * Quien quiera enterarse de los cambios.
+     */
+    public interface Listener {
+
+        /**
+         * Ha cambiado 'path' (creado, modificado o borrado). Si era un directorio,
+         * puede haber cambiado todo lo que cuelga de él.
+         */
+        void changed(Path path);
+
+        /**
+         * Se han perdido avisos (por ejemplo desbordamiento del WatchService):
+         * cualquier cosa puede haber cambiado.
+         */
+        void changedAll();
+    }
+
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    private FileChanges() {
+    }
+
+    public static void addListener(Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Avisa de que 'path' ha cambiado.
+     */
+    public static void fire(Path path) {
+        Path p = path.toAbsolutePath().normalize();
+        for (Listener l : LISTENERS) {
+            try {
+                l.changed(p);
+            } catch (RuntimeException e) {
+                // Una caché rota no debe tumbar el comando que la avisa
+                ServerLogger.log("SERVER", "ERROR (file change listener: " + e + ")");
+            }
+        }
+    }
+
+    /**
+     * Avisa de que puede haber cambiado cualquier ruta.
+     */
+    public static void fireAll() {
+        for (Listener l : LISTENERS) {
+            try {
+                l.changedAll();
+            } catch (RuntimeException e) {
+                ServerLogger.log("SERVER", "ERROR (file change listener: " + e + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,828 @@
+package psp.ud03.tarea34.server;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Índice en memoria de TODOS los nombres de fichero bajo baseDir, para find.
+ * <p>
+ * Problema:
+ * - find recorría el árbol entero (Files.walk) en cada llamada. Con millones de
+ * ficheros son decenas de segundos de disco por búsqueda.
+ * <p>
+ * Estructura (compacta, sin un objeto Path por fichero):
+ * - Cada entrada tiene un id (int). names[id] = nombre, parents[id] = id del padre.
+ * El id del padre es siempre MENOR que el de sus hijos (se añade antes).
+ * - Tabla hash abierta (padre, nombre) -> id, para pasar de ruta a id.
+ * - Trigramas: cada grupo de 3 caracteres (sin mayúsculas) de cada nombre -> lista
+ * ordenada de ids. Buscar "report" = cruzar las listas de "rep", "epo", "por", "ort"
+ * y comprobar solo esos candidatos. Patrones de 1-2 caracteres: se recorren los nombres
+ * (en memoria, sigue siendo mucho más rápido que el disco).
+ * <p>
+ * Mantenimiento:
+ * - Se construye al arrancar en segundo plano (hilo "name-index"). Hasta que esté listo,
+ * find(...) devuelve null y FindCommand recorre el disco como siempre.
+ * - Se actualiza con FileChanges: comandos del propio servidor y cambios externos
+ * (todos los directorios se registran en DirectoryWatcher mientras quepan).
+ * - Los cambios se aplican en el hilo "name-index", en orden: la lectura del disco
+ * (existe, es directorio, contenido de un directorio nuevo) se hace ahí y SIN lock; el
+ * lock de escritura solo cubre el cambio en memoria. El comando que avisa no espera.
+ * - find espera (como mucho CATCH_UP_MS) a que se hayan aplicado los cambios avisados
+ * antes de empezar: un find justo después de un cambio ya lo ve. Si no da tiempo (por
+ * ejemplo, hay una reconstrucción delante), devuelve null y se recorre el disco.
+ * - Directorios que no se pudieron vigilar (cache.watchMax gastado...): se apuntan en
+ * UNWATCHED. Un cambio externo ahí no avisaría, así que find devuelve null (se recorre
+ * el disco) si dentro de su búsqueda, o por encima, hay alguno. Cada rescanMin minutos
+ * se reintenta vigilarlos; los que ya caben se vuelven a leer (solo su subárbol) y
+ * salen de UNWATCHED.
+ * - Si se perdieron avisos (fireAll), se reconstruye entero. Mientras tanto se sigue
+ * usando el índice anterior.
+ * - Las entradas borradas dejan huecos: si hay demasiados, también se reconstruye.
+ * <p>
+ * Memoria: memoryBytes() da una estimación (se muestra en el log al terminar).
+ */
+public final class FileNameIndex {
+
+    private static final ReentrantReadWriteLock LOCK = new ReentrantReadWriteLock();
+
+    // Hilo único: construcción y cambios se aplican en orden
+    private static ScheduledExecutorService worker;
+
+    private static volatile Path base;
+    private static volatile Tables tables;
+
+    // Hay una reconstrucción en cola (para no encolar varias)
+    private static volatile boolean rebuildQueued;
+
+    // Directorios indexados que no cupieron en DirectoryWatcher, como texto y ordenados:
+    // lo que cuelga de "a" va de "a/" a "a0" (con LOCK)
+    private static TreeSet<String> unwatched = new TreeSet<>();
+
+    private static final DirectoryWatcher.Owner WATCHER = DirectoryWatcher.owner("index");
+
+    // Cambios avisados / ya aplicados (ver find)
+    private static final AtomicLong SUBMITTED = new AtomicLong();
+    private static final AtomicLong APPLIED = new AtomicLong();
+    private static final Object APPLIED_MONITOR = new Object();
+
+    // Lo que espera find a que se apliquen los cambios pendientes
+    private static final long CATCH_UP_MS = 200;
+
+    private FileNameIndex() {
+    }
+
+    /**
+     * Arranca la construcción en segundo plano (llamar una vez al arrancar).
+     *
+     * @param baseDir    raíz del índice
+     * @param rescanMin  minutos entre reintentos de vigilar los directorios que no cupieron (0 = nunca)
+     */
+    public static void start(Path baseDir, int rescanMin) {
+        base = baseDir.toAbsolutePath().normalize();
+
+        ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "name-index");
+            t.setDaemon(true);
+            return t;
+        });
+        worker = ex;
+
+        FileChanges.addListener(new FileChanges.Listener() {
+            @Override
+            public void changed(Path path) {
+                // En el hilo del índice, detrás de una reconstrucción si la hay
+                SUBMITTED.incrementAndGet();
+                ex.execute(() -> {
+                    try {
+                        apply(path);
+                    } finally {
+                        APPLIED.incrementAndGet();
+                        synchronized (APPLIED_MONITOR) {
+                            APPLIED_MONITOR.notifyAll();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void changedAll() {
+                scheduleRebuild();
+            }
+        });
+
+        ex.execute(FileNameIndex::rebuild);
+
+        if (rescanMin > 0) {
+            ex.scheduleWithFixedDelay(FileNameIndex::retryUnwatched, rescanMin, rescanMin, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * true si el índice ya se puede usar.
+     */
+    public static boolean isReady() {
+        return tables != null;
+    }
+
+    /**
+     * Entradas (ficheros + directorios) en el índice.
+     */
+    public static int entries() {
+        Tables t = tables;
+        return (t == null) ? 0 : t.live;
+    }
+
+    /**
+     * Memoria aproximada del índice en bytes.
+     */
+    public static long memoryBytes() {
+        LOCK.readLock().lock();
+        try {
+            Tables t = tables;
+            return (t == null) ? 0 : t.memoryBytes();
+        } finally {
+            LOCK.readLock().unlock();
+        }
+    }
+
+    /**
+     * Busca bajo 'start' los nombres que contienen 'pattern' (sin distinguir mayúsculas).
+     * <p>
+     * Igual que find sin índice (ParallelWalker con orden natural): como mucho 'max'
+     * resultados, los primeros del recorrido en preorden con los hijos ordenados por
+     * nombre; rutas relativas a 'start' y ordenadas. No incluye 'start'.
+     *
+     * @return null si el índice no está listo, 'start' no está indexado, hay un directorio
+     * sin vigilar en la búsqueda (o por encima) o quedan cambios avisados sin aplicar
+     */
+    public static List<String> find(Path start, String pattern, int max) {
+        Path b = base;
+        if (b == null || tables == null || !caughtUp(SUBMITTED.get())) {
+            return null;
+        }
+
+        LOCK.readLock().lock();
+        try {
+            Tables t = tables;
+            Path s = start.toAbsolutePath().normalize();
+            int startId = t.idOf(b, s);
+            if (startId < 0 || unwatchedAround(b, s)) {
+                return null;
+            }
+
+            String sep = b.getFileSystem().getSeparator();
+            Comparator<String> preorder = preorder(sep);
+
+            // Las 'max' primeras en preorden: la cola tiene arriba la ÚLTIMA de las guardadas
+            PriorityQueue<String> first = new PriorityQueue<>(preorder.reversed());
+
+            // Patrones cortos (sin trigramas): todos los nombres
+            int[] cands = (pattern.length() < 3) ? null : t.candidates(pattern);
+            int count = (cands == null) ? t.size : cands.length;
+
+            for (int i = 0; i < count; i++) {
+                int id = (cands == null) ? i : cands[i];
+                if (id == startId || t.names[id] == null || !containsIgnoreCase(t.names[id], pattern)) {
+                    continue;
+                }
+                String rel = t.relative(id, startId, sep);
+                if (rel == null) {
+                    continue;
+                }
+                if (first.size() < max) {
+                    first.add(rel);
+                } else if (max > 0 && preorder.compare(rel, first.peek()) < 0) {
+                    first.poll();
+                    first.add(rel);
+                }
+            }
+
+            List<String> out = new ArrayList<>(first);
+            out.sort(Comparator.naturalOrder());
+            return out;
+        } finally {
+            LOCK.readLock().unlock();
+        }
+    }
+
+    /**
+     * true si 'dir', algo debajo o un antecesor (hasta 'base') no está vigilado (con LOCK).
+     */
+    private static boolean unwatchedAround(Path base, Path dir) {
+        if (unwatched.isEmpty()) {
+            return false;
+        }
+        for (Path p = dir; p != null && p.startsWith(base); p = p.getParent()) {
+            if (unwatched.contains(p.toString())) {
+                return true;
+            }
+        }
+        return !below(unwatched, dir).isEmpty();
+    }
+
+    /**
+     * Lo que cuelga de 'dir' en 'set': de "dir/" (incluido) a "dir" + (separador + 1) (excluido).
+     */
+    private static SortedSet<String> below(TreeSet<String> set, Path dir) {
+        String s = dir.toString();
+        char sep = dir.getFileSystem().getSeparator().charAt(0);
+        return set.subSet(s + sep, true, s + (char) (sep + 1), false);
+    }
+
+    /**
+     * Orden del recorrido (preorden, hijos por nombre) entre rutas relativas: como el
+     * de String, pero el separador va antes que cualquier carácter ("a/x" antes que "a-b").
+     */
+    private static Comparator<String> preorder(String sep) {
+        char s = sep.charAt(0);
+        return (x, y) -> {
+            int n = Math.min(x.length(), y.length());
+            for (int i = 0; i < n; i++) {
+                char cx = x.charAt(i);
+                char cy = y.charAt(i);
+                if (cx != cy) {
+                    return (cx == s ? 0 : cx) - (cy == s ? 0 : cy);
+                }
+            }
+            return x.length() - y.length();
+        };
+    }
+
+    /**
+     * Espera (como mucho CATCH_UP_MS) a que se hayan aplicado los cambios hasta 'target'.
+     */
+    private static boolean caughtUp(long target) {
+        if (APPLIED.get() >= target) {
+            return true;
+        }
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CATCH_UP_MS);
+        synchronized (APPLIED_MONITOR) {
+            while (APPLIED.get() < target) {
+                long left = end - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(APPLIED_MONITOR, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * "contiene, sin distinguir mayúsculas" (mismo criterio que el índice).
+     */
+    public static boolean containsIgnoreCase(String name, String pattern) {
+        int n = pattern.length();
+        for (int i = 0; i + n <= name.length(); i++) {
+            if (name.regionMatches(true, i, pattern, 0, n)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------ construcción
+
+    private static void scheduleRebuild() {
+        if (!rebuildQueued) {
+            rebuildQueued = true;
+            worker.execute(FileNameIndex::rebuild);
+        }
+    }
+
+    private static void rebuild() {
+        rebuildQueued = false;
+        build();
+    }
+
+    private static void build() {
+        Path b = base;
+        long t0 = System.nanoTime();
+
+        Tables t = new Tables();
+        TreeSet<String> notWatched = new TreeSet<>();
+
+        try {
+            Files.walkFileTree(b, new SimpleFileVisitor<>() {
+                final Deque<Integer> dirs = new ArrayDeque<>();
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    int id = dirs.isEmpty() ? t.add(-1, "", true) : t.add(dirs.peek(), name(dir), true);
+                    dirs.push(id);
+                    if (!DirectoryWatcher.watch(dir, WATCHER)) {
+                        notWatched.add(dir.toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    t.add(dirs.peek(), name(file), false);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    dirs.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            ServerLogger.log("SERVER", "INDEX build failed (" + e + ")");
+            return;
+        }
+
+        LOCK.writeLock().lock();
+        try {
+            tables = t;
+            unwatched = notWatched;
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+
+        long ms = (System.nanoTime() - t0) / 1_000_000;
+        ServerLogger.log("SERVER", "INDEX ready entries=" + t.live
+                + " trigrams=" + t.grams.size()
+                + " mem=" + (t.memoryBytes() / 1024) + "KiB"
+                + " unwatched=" + notWatched.size()
+                + " ms=" + ms);
+    }
+
+    /**
+     * Una ruta leída del disco para añadirla al índice.
+     */
+    private record Found(Path path, boolean directory) {
+    }
+
+    /**
+     * Aplica un aviso de FileChanges: la ruta está (se añade) o no está (se quita).
+     * Solo en el hilo del índice: los avisos se aplican en orden y gana el último.
+     */
+    private static void apply(Path path) {
+        update(path, false);
+    }
+
+    /**
+     * Aplica un cambio en 'path'. Con 'reread', lo que había debajo se tira y se vuelve a
+     * leer entero (lo que pudo cambiar sin aviso mientras no estaba vigilado).
+     */
+    private static void update(Path path, boolean reread) {
+        Path b = base;
+        if (tables == null || !path.startsWith(b) || path.equals(b)) {
+            return;
+        }
+
+        // Todo el disco, FUERA del lock
+        boolean exists = Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+        boolean directory = exists && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+        List<Found> added = new ArrayList<>();
+        List<String> notWatched = new ArrayList<>();
+        if (directory) {
+            collect(path, added, notWatched);
+        }
+
+        LOCK.writeLock().lock();
+        try {
+            Tables t = tables;
+            // Lo de debajo de 'path' se acaba de leer (o ya no está): se vuelve a apuntar
+            unwatched.remove(path.toString());
+            below(unwatched, path).clear();
+            unwatched.addAll(notWatched);
+
+            if (!exists || reread) {
+                int id = t.idOf(b, path);
+                if (id >= 0) {
+                    t.remove(id);
+                }
+            }
+            if (!exists) {
+                // Lo de debajo lo cancela DirectoryWatcher (su clave deja de ser válida)
+                DirectoryWatcher.unwatch(path, WATCHER);
+            } else {
+                t.ensure(b, path, directory);
+                for (Found f : added) {
+                    t.ensure(b, f.path(), f.directory());
+                }
+            }
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Reintenta vigilar los directorios de UNWATCHED (en el hilo del índice). Los que ya
+     * caben se vuelven a leer; se para en el primero que no cabe.
+     */
+    private static void retryUnwatched() {
+        if (tables == null) {
+            return;
+        }
+        List<String> pending;
+        LOCK.readLock().lock();
+        try {
+            pending = new ArrayList<>(unwatched);
+        } finally {
+            LOCK.readLock().unlock();
+        }
+
+        Path b = base;
+        for (String s : pending) {
+            Path dir = b.getFileSystem().getPath(s);
+            boolean still;
+            LOCK.readLock().lock();
+            try {
+                // Puede haber salido al releer un antecesor
+                still = unwatched.contains(s);
+            } finally {
+                LOCK.readLock().unlock();
+            }
+            if (!still) {
+                continue;
+            }
+            if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) && !DirectoryWatcher.watch(dir, WATCHER)) {
+                return;
+            }
+            if (dir.equals(b)) {
+                // La raíz no se puede tirar y releer: todo entero
+                build();
+                return;
+            }
+            update(dir, true);
+        }
+    }
+
+    /**
+     * Añade a 'out' todo lo que cuelga de 'dir' (padres antes que hijos) y vigila sus
+     * directorios; los que no se pudieron vigilar van a 'notWatched'.
+     */
+    private static void collect(Path dir, List<Found> out, List<String> notWatched) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                    if (!d.equals(dir)) {
+                        out.add(new Found(d, true));
+                    }
+                    if (!DirectoryWatcher.watch(d, WATCHER)) {
+                        notWatched.add(d.toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    out.add(new Found(file, attrs.isDirectory()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ignored) {
+            // Lo que se haya podido leer
+        }
+    }
+
+    private static void scheduleCompactionIfNeeded() {
+        Tables t = tables;
+        if (t != null && t.size - t.live > Math.max(100_000, t.live)) {
+            scheduleRebuild();
+        }
+    }
+
+    private static String name(Path p) {
+        Path n = p.getFileName();
+        return (n == null) ? "" : n.toString();
+    }
+
+    // ------------------------------------------------------------------ tablas
+
+    /**
+     * Lista de ids que crece (sin Integer por elemento).
+     */
+    private static final class IntList {
+        int[] a = new int[4];
+        int n;
+
+        void add(int v) {
+            if (n == a.length) {
+                a = Arrays.copyOf(a, n * 2);
+            }
+            a[n++] = v;
+        }
+    }
+
+    /**
+     * Contenido del índice. Se lee con el lock de lectura y se cambia con el de escritura.
+     */
+    private static final class Tables {
+
+        private static final int EMPTY = -1;
+        private static final int DELETED = -2;
+
+        String[] names = new String[1024];
+        int[] parents = new int[1024];
+        final BitSet dirs = new BitSet();
+
+        // Ids usados (incluidos borrados) y entradas vivas
+        int size;
+        int live;
+
+        // (padre, nombre) -> id, direccionamiento abierto; ocupación <= 1/2
+        int[] slots = newSlots(2048);
+        int usedSlots;
+
+        final Map<Long, IntList> grams = new HashMap<>();
+        long postings;
+
+        private static int[] newSlots(int n) {
+            int[] s = new int[n];
+            Arrays.fill(s, EMPTY);
+            return s;
+        }
+
+        private static int hash(int parent, String name) {
+            int h = parent * 31 + name.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        int lookup(int parent, String name) {
+            int mask = slots.length - 1;
+            for (int i = hash(parent, name) & mask; ; i = (i + 1) & mask) {
+                int id = slots[i];
+                if (id == EMPTY) {
+                    return -1;
+                }
+                if (id >= 0 && parents[id] == parent && names[id].equals(name)) {
+                    return id;
+                }
+            }
+        }
+
+        int add(int parent, String name, boolean dir) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                parents = Arrays.copyOf(parents, size * 2);
+            }
+            int id = size++;
+            names[id] = name;
+            parents[id] = parent;
+            if (dir) {
+                dirs.set(id);
+            }
+            live++;
+
+            if ((usedSlots + 1) * 2 > slots.length) {
+                rehash(live * 2 > slots.length / 2 ? slots.length * 2 : slots.length);
+            }
+            insertSlot(id);
+
+            long[] seen = new long[Math.max(0, name.length() - 2)];
+            int k = 0;
+            for (int i = 0; i + 3 <= name.length(); i++) {
+                long g = gram(name, i);
+                boolean dup = false;
+                for (int j = 0; j < k && !dup; j++) {
+                    dup = seen[j] == g;
+                }
+                if (!dup) {
+                    seen[k++] = g;
+                    grams.computeIfAbsent(g, x -> new IntList()).add(id);
+                    postings++;
+                }
+            }
+            return id;
+        }
+
+        private void insertSlot(int id) {
+            int mask = slots.length - 1;
+            int i = hash(parents[id], names[id]) & mask;
+            while (slots[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+            if (slots[i] == EMPTY) {
+                usedSlots++;
+            }
+            slots[i] = id;
+        }
+
+        private void rehash(int capacity) {
+            slots = newSlots(capacity);
+            usedSlots = 0;
+            for (int id = 0; id < size; id++) {
+                if (names[id] != null) {
+                    insertSlot(id);
+                }
+            }
+        }
+
+        /**
+         * Borra 'id' y, si es directorio, todo lo que cuelga de él.
+         */
+        void remove(int id) {
+            if (!dirs.get(id)) {
+                unlink(id);
+                return;
+            }
+
+            // Los hijos tienen siempre id mayor que el padre: una pasada basta
+            BitSet gone = new BitSet();
+            gone.set(id);
+            for (int i = id + 1; i < size; i++) {
+                if (names[i] != null && gone.get(parents[i])) {
+                    gone.set(i);
+                }
+            }
+            for (int i = gone.nextSetBit(0); i >= 0; i = gone.nextSetBit(i + 1)) {
+                unlink(i);
+            }
+        }
+
+        private void unlink(int id) {
+            int mask = slots.length - 1;
+            for (int i = hash(parents[id], names[id]) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+                if (slots[i] == id) {
+                    slots[i] = DELETED;
+                    break;
+                }
+            }
+            // Las listas de trigramas conservan el id: al buscar se descarta (names == null)
+            names[id] = null;
+            dirs.clear(id);
+            live--;
+        }
+
+        /**
+         * Id de 'path' (absoluta, bajo 'base'); -1 si no está.
+         */
+        int idOf(Path base, Path path) {
+            if (size == 0 || !path.startsWith(base)) {
+                return -1;
+            }
+            int id = 0;
+            for (Path part : base.relativize(path)) {
+                String n = part.toString();
+                if (n.isEmpty()) {
+                    continue;
+                }
+                id = lookup(id, n);
+                if (id < 0) {
+                    return -1;
+                }
+            }
+            return id;
+        }
+
+        /**
+         * Añade 'path' si no está (y sus padres, que son directorios). Sin tocar el disco:
+         * 'directory' dice si 'path' lo es.
+         */
+        void ensure(Path base, Path path, boolean directory) {
+            if (size == 0) {
+                return;
+            }
+            Path rel = base.relativize(path);
+            int last = rel.getNameCount() - 1;
+            int id = 0;
+            for (int i = 0; i <= last; i++) {
+                String n = rel.getName(i).toString();
+                if (n.isEmpty()) {
+                    continue;
+                }
+                int next = lookup(id, n);
+                if (next < 0) {
+                    next = add(id, n, i < last || directory);
+                }
+                id = next;
+            }
+        }
+
+        /**
+         * Ids candidatos a contener 'pattern' (3 caracteres o más), en orden de id.
+         */
+        int[] candidates(String pattern) {
+            List<IntList> lists = new ArrayList<>();
+            for (int i = 0; i + 3 <= pattern.length(); i++) {
+                IntList l = grams.get(gram(pattern, i));
+                if (l == null) {
+                    return new int[0];
+                }
+                lists.add(l);
+            }
+            lists.sort(Comparator.comparingInt(l -> l.n));
+
+            // Cruce de listas ordenadas, empezando por la más corta
+            int[] cur = Arrays.copyOf(lists.get(0).a, lists.get(0).n);
+            int len = cur.length;
+            for (int li = 1; li < lists.size() && len > 0; li++) {
+                IntList other = lists.get(li);
+                int k = 0;
+                int j = 0;
+                for (int i = 0; i < len; i++) {
+                    while (j < other.n && other.a[j] < cur[i]) {
+                        j++;
+                    }
+                    if (j < other.n && other.a[j] == cur[i]) {
+                        cur[k++] = cur[i];
+                    }
+                }
+                len = k;
+            }
+            return Arrays.copyOf(cur, len);
+        }
+
+        /**
+         * Ruta de 'id' relativa a 'startId'; null si no cuelga de él.
+         */
+        String relative(int id, int startId, String sep) {
+            List<String> parts = new ArrayList<>();
+            int cur = id;
+            while (cur != startId) {
+                if (cur <= 0) {
+                    return null;
+                }
+                parts.add(names[cur]);
+                cur = parents[cur];
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                sb.append(parts.get(i));
+                if (i > 0) {
+                    sb.append(sep);
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Estimación: cabeceras de objetos de JVM de 64 bits con punteros comprimidos.
+         */
+        long memoryBytes() {
+            long bytes = 16L + 4L * names.length;          // String[]
+            bytes += 16L + 4L * parents.length;            // int[]
+            bytes += 16L + 4L * slots.length;              // tabla hash
+            bytes += dirs.size() / 8;
+            for (int i = 0; i < size; i++) {
+                String n = names[i];
+                if (n != null) {
+                    // String (24) + byte[] (16 + 1 byte/carácter en Latin-1), redondeado a 8
+                    bytes += 24 + ((16 + n.length() + 7) & ~7);
+                }
+            }
+            for (IntList l : grams.values()) {
+                // Nodo HashMap (32) + Long (16) + IntList (24) + int[]
+                bytes += 72 + 16 + 4L * l.a.length;
+            }
+            bytes += 16L + 4L * grams.size() * 2;           // tabla del HashMap
+            return bytes;
+        }
+
+        /**
+         * 3 caracteres (en minúsculas) empaquetados en un long.
+         */
+        private static long gram(String s, int i) {
+            return ((long) fold(s.charAt(i)) << 32) | ((long) fold(s.charAt(i + 1)) << 16) | fold(s.charAt(i + 2));
+        }
+
+        // Mismo criterio que String.regionMatches(true, ...)
+        private static char fold(char c) {
+            return Character.toLowerCase(Character.toUpperCase(c));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package psp.ud03.tarea34.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias (en microsegundos) con cubos log-lineales, para ServerMetrics.
+ * <p>
+ * Cubos:
+ * - Cada potencia de 2 se parte en SUB cubos iguales: el error relativo de cualquier
+ * percentil es como mucho 1/SUB (~6 %), sea el valor 20 µs o 20 s.
+ * - Hasta 2^(MAX_EXP+1) µs (~38 horas); lo que pase de ahí cae en el último cubo.
+ * <p>
+ * Coste:
+ * - record() = calcular el índice (unas operaciones de bits) + un incremento atómico.
+ * Sin locks ni objetos nuevos.
+ * <p>
+ * Mezclables:
+ * - Dos histogramas con los mismos cubos se suman cubo a cubo (snapshot + merge):
+ * así sale el total de todos los comandos, o el de varios servidores.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 36;
+
+    static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB;
+
+    private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long micros) {
+        long v = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(index(v));
+        sum.add(v);
+    }
+
+    /**
+     * Copia de los contadores (no es atómica respecto a record(): para informes vale).
+     */
+    public Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+            total += c[i];
+        }
+        return new Snapshot(c, total, sum.sum());
+    }
+
+    static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /**
+     * Mayor valor que cae en el cubo i.
+     */
+    static long upperBound(int i) {
+        if (i < SUB) {
+            return i;
+        }
+        int exp = i / SUB + SUB_BITS - 1;
+        int shift = exp - SUB_BITS;
+        long lower = (long) (SUB + i % SUB) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Contadores congelados de un histograma.
+     *
+     * @param counts nº de valores por cubo
+     * @param count  nº total de valores
+     * @param sum    suma de todos los valores (µs)
+     */
+    public record Snapshot(long[] counts, long count, long sum) {
+
+        public static Snapshot empty() {
+            return new Snapshot(new long[BUCKETS], 0, 0);
+        }
+
+        public Snapshot merge(Snapshot other) {
+            long[] c = counts.clone();
+            for (int i = 0; i < BUCKETS; i++) {
+                c[i] += other.counts[i];
+            }
+            return new Snapshot(c, count + other.count, sum + other.sum);
+        }
+
+        /**
+         * Percentil q (0..1) en µs: el límite superior del cubo donde cae (0 si vacío).
+         */
+        public long quantile(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        /**
+         * Valores <= 'micros' (para los cubos "le" de Prometheus). Un cubo que cruza
+         * el límite no cuenta: se redondea hacia arriba, nunca se promete de más.
+         */
+        public long countAtMost(long micros) {
+            long n = 0;
+            for (int i = 0; i < BUCKETS && upperBound(i) <= micros; i++) {
+                n += counts[i];
+            }
+            return n;
+        }
+    }
+}
@@ -1,31 +1,69 @@
 package psp.ud03.tarea34.server;
 
-import java.io.FileInputStream;
+import psp.ud03.tarea34.server.commands.FollowCommand;
+
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Properties;
 
 /**
  * Punto de entrada del servidor TCP.
  * <p>
  * Responsabilidades:
- * 1) Leer configuración (puerto).
+ * 1) Leer configuración (ServerConfig: puerto, modo...).
  * 2) Calcular baseDir (directorio de trabajo del servidor).
  * 3) Crear CommandRegistry (comandos disponibles).
- * 4) Abrir ServerSocket y aceptar clientes.
- * 5) Por cada cliente: crear un hilo con ServerWorker.
+ * 4) Abrir ServerSocketChannel y aceptar clientes.
+ * 5) Registrar las métricas (ServerMetrics) y, si se configura, volcarlas a un fichero.
+ * 6) Por cada cliente: pasar un ServerWorker al SessionPool (hilos normales en
+ * modo "hilos", por defecto, o hilos virtuales en modo "virtual"), o delegar en
+ * NioServerEngine (modo "nio": selector + pool acotado).
+ * - Si el servidor está saturado (sesiones.max + sesiones.cola), el cliente
+ * recibe "BUSY" y se cierra su conexión.
  * <p>
  * Nota importante:
  * - baseDir = Paths.get(".")... => "directorio actual del proceso servidor".
  * Si arrancas el servidor desde Desktop, '.' = Desktop.
+ * - Se acepta con ServerSocketChannel (en modo bloqueante) para que cada Socket
+ * tenga canal asociado: así download puede usar transferTo (zero-copy).
  */
 public class MainFileServerApp {
 
     public static void main(String[] args) {
-        int port = loadPort();
+        ServerConfig config = ServerConfig.load("server.properties");
+
+        // Logger asíncrono: configurar antes del primer log
+        ServerLogger.configure(
+                config.getInt("log.cola", 10000),
+                config.getLong("log.flushMs", 200),
+                config.getString("log.desborde", "bloquear"));
+
+        // Caché compartida de metadatos (list/info/size/exists)
+        DirectoryWatcher.configure(config.getInt("cache.watchMax", 1024));
+        MetadataCache.configure(
+                config.getInt("cache.max", 10000),
+                config.getLong("cache.ttlMs", 5000),
+                config.getBoolean("cache.watch", true));
+
+        // Totales por directorio (du)
+        DirSizeCache.configure(
+                config.getInt("du.max", 100000),
+                config.getLong("du.ttlMs", 30000));
+
+        // Caché de SHA-256 (hash) con índice opcional en disco
+        DigestCache.configure(
+                config.getInt("digest.max", 10000),
+                config.getString("digest.indice", ""),
+                config.getBoolean("digest.subida", true));
+
+        // Si no existe la clave o el valor no es válido => 2121
+        int port = config.getInt("puerto", 2121);
+        String mode = config.getString("modo", "hilos");
 
         // Registry único: todos los workers usan los mismos comandos registrados
         CommandRegistry registry = new CommandRegistry();
@@ -33,18 +71,63 @@ public class MainFileServerApp {
         // Directorio base del servidor: el "current working directory"
         Path baseDir = Paths.get(".").toAbsolutePath().normalize();
 
-        ServerLogger.log("SERVER", "START port=" + port);
+        ServerLogger.log("SERVER", "START port=" + port + " mode=" + mode);
+
+        // Índice de nombres para find (se construye en segundo plano)
+        if (config.getBoolean("find.indice", false)) {
+            FileNameIndex.start(baseDir, config.getInt("find.reescaneoMin", 30));
+        }
+
+        int maxSessions = config.getInt("sesiones.max", 1000);
+        int queueSize = config.getInt("sesiones.cola", 50);
+
+        // Métricas: contadores que ya llevan cachés, índice, vigilancia y log
+        registerGauges();
+        String metricsFile = config.getString("metricas.fichero", "");
+        if (!metricsFile.isEmpty()) {
+            ServerMetrics.startExporter(Paths.get(metricsFile), config.getInt("metricas.intervaloSeg", 15));
+        }
+
+        if ("nio".equals(mode)) {
+            int workers = config.getInt("nio.hilos", 16);
+
+            // Cada follow ocupa un hilo del pool: por defecto, como mucho la mitad
+            FollowCommand.configure(config.getInt("follow.max", Math.max(1, workers / 2)));
+            try {
+                NioServerEngine engine = new NioServerEngine(port, baseDir, registry, workers, maxSessions);
+                ServerMetrics.gauge("sessions_running", "Connections running a command in the NIO pool", false, engine::active);
+                ServerMetrics.gauge("sessions_waiting", "Open connections not running a command", false, engine::queued);
+                ServerMetrics.gauge("sessions_rejected_total", "Connections rejected with BUSY", true, engine::rejected);
+                engine.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        FollowCommand.configure(config.getInt("follow.max", 64));
 
-        // ServerSocket: el servidor queda escuchando en ese puerto
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // Admisión acotada: pool de hilos o, en modo "virtual", un hilo virtual nuevo por sesión
+        SessionPool pool = new SessionPool(maxSessions, queueSize, "virtual".equals(mode));
+        ServerMetrics.gauge("sessions_running", "Sessions being served by the pool", false, pool::active);
+        ServerMetrics.gauge("sessions_waiting", "Sessions queued waiting for a pool thread", false, pool::queued);
+        ServerMetrics.gauge("sessions_rejected_total", "Connections rejected with BUSY", true, pool::rejected);
+
+        // ServerSocketChannel: el servidor queda escuchando en ese puerto
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
 
             // Bucle infinito: el servidor acepta clientes continuamente
             while (true) {
-                Socket client = serverSocket.accept();
+                // Socket "adaptado" del canal: admite streams y además getChannel() != null
+                Socket client = serverChannel.accept().socket();
 
                 // Un hilo por cliente => el servidor es concurrente (multihilo)
-                Thread t = new Thread(new ServerWorker(client, baseDir, registry));
-                t.start();
+                // En modo "virtual" el hilo es virtual: casi no cuesta memoria ni planificador
+                ServerWorker worker = new ServerWorker(client, baseDir, registry);
+                if (!pool.submit(worker)) {
+                    rejectBusy(client, pool);
+                }
             }
 
         } catch (IOException e) {
@@ -54,30 +137,39 @@ public class MainFileServerApp {
     }
 
     /**
-     * Lee el puerto desde "server.properties".
-     * Clave esperada: "puerto"
-     * Si no existe el fichero o el valor no es válido => 2121.
+     * Contadores de otras clases que se publican en stats y en el fichero de métricas.
      */
-    private static int loadPort() {
-        Properties properties = new Properties();
-
-        try (FileInputStream fis = new FileInputStream("server.properties")) {
-            properties.load(fis);
-
-            String value = properties.getProperty("puerto");
-            return Integer.parseInt(value);
-
-        } catch (IOException e) {
-            // No existe server.properties o no se pudo leer
-            return 2121;
-
-        } catch (NumberFormatException e) {
-            // El valor no era un número
-            return 2121;
+    private static void registerGauges() {
+        ServerMetrics.gauge("metadata_cache_hits_total", "Metadata cache hits", true, MetadataCache::hits);
+        ServerMetrics.gauge("metadata_cache_misses_total", "Metadata cache misses", true, MetadataCache::misses);
+        ServerMetrics.gauge("metadata_cache_entries", "Metadata cache entries", false, MetadataCache::size);
+        ServerMetrics.gauge("digest_cache_hits_total", "SHA-256 cache hits", true, DigestCache::hits);
+        ServerMetrics.gauge("digest_cache_misses_total", "SHA-256 cache misses", true, DigestCache::misses);
+        ServerMetrics.gauge("du_cache_hits_total", "Directory size cache hits", true, DirSizeCache::hits);
+        ServerMetrics.gauge("du_cache_misses_total", "Directory size cache misses", true, DirSizeCache::misses);
+        ServerMetrics.gauge("du_cache_entries", "Directory size cache entries", false, DirSizeCache::size);
+        ServerMetrics.gauge("name_index_entries", "Entries in the find name index", false, FileNameIndex::entries);
+        ServerMetrics.gauge("name_index_memory_bytes", "Approximate memory of the find name index", false, FileNameIndex::memoryBytes);
+        ServerMetrics.gauge("watched_directories", "Directories watched for changes", false, DirectoryWatcher::watchedCount);
+        ServerMetrics.gauge("follow_active", "Follow commands running", false, FollowCommand::active);
+        ServerMetrics.gauge("log_dropped_total", "Log events dropped because the queue was full", true, ServerLogger::dropped);
+    }
 
-        } catch (Exception e) {
-            // Cualquier otra cosa rara
-            return 2121;
+    /**
+     * Servidor saturado: avisamos con "BUSY" (en vez de "OK"/"KO") y cerramos.
+     */
+    private static void rejectBusy(Socket client, SessionPool pool) {
+        String ip = client.getInetAddress().getHostAddress();
+        ServerLogger.log(ip, "BUSY active=" + pool.active()
+                + " queued=" + pool.queued()
+                + " rejected=" + pool.rejected());
+
+        try (Socket s = client) {
+            OutputStream out = s.getOutputStream();
+            out.write("BUSY\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException ignored) {
+            // El cliente ya se fue: nada que hacer
         }
     }
 }
@@ -0,0 +1,441 @@
+package psp.ud03.tarea34.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caché compartida (todas las sesiones) de metadatos de ficheros.
+ * <p>
+ * Problema:
+ * - list, info/stat, size y exists hacían varias llamadas al sistema POR comando
+ * (exists, isDirectory, size, getLastModifiedTime...). Con paneles que preguntan
+ * por los mismos directorios cientos de veces por segundo, el disco no para.
+ * <p>
+ * Cómo funciona:
+ * - stat(ruta): UNA lectura de BasicFileAttributes por ruta y se guarda el resultado
+ * (incluido "no existe").
+ * - list(dir): el listado completo (nombre, fichero?, tamaño) + los metadatos de
+ * cada hijo de paso.
+ * - Todo se guarda por DIRECTORIO (Dir): su listado y los metadatos de sus hijos.
+ * - Contadores de aciertos/fallos: hits() / misses().
+ * <p>
+ * Concurrencia:
+ * - Mapas concurrentes (ConcurrentHashMap): las lecturas no cogen ningún lock.
+ * - Tamaño acotado (cache.max entradas, contadas de forma aproximada). Al pasarse, un
+ * solo hilo tira los directorios usados hace más tiempo hasta quedar en el 90 %.
+ * <p>
+ * Invalidación:
+ * - Los comandos que modifican avisan con FileChanges.fire(ruta).
+ * - Solo se cachea lo que cuelga de directorios vigilados por DirectoryWatcher:
+ * los cambios hechos desde fuera del servidor llegan también como FileChanges.
+ * - Cada Dir tiene su directorio vigilado (se pide al crearlo y se suelta al tirarlo,
+ * dentro del compute del mapa: los dos pasos no se pueden cruzar).
+ * - Un aviso toca solo lo afectado: la ruta y su padre y, si era un directorio, sus
+ * subdirectorios guardados (índice CHILDREN de directorio -> subdirectorios). No se
+ * recorre toda la caché.
+ * - Por si se pierde algún aviso, cada entrada caduca a los cache.ttlMs milisegundos.
+ * <p>
+ * Carrera evitada:
+ * - Si llega un aviso MIENTRAS se lee del disco, lo leído ya puede estar viejo:
+ * en ese caso se devuelve pero no se guarda (generación de cada Dir; un Dir tirado
+ * entero ya no es el del mapa).
+ */
+public final class MetadataCache {
+
+    /**
+     * Metadatos de una ruta (exists = false => el resto no vale).
+     */
+    public record Meta(boolean exists, boolean directory, boolean regularFile, long size, FileTime modified) {
+    }
+
+    /**
+     * Una entrada de un listado de directorio.
+     */
+    public record Entry(String name, boolean file, long size) {
+    }
+
+    private static final Meta MISSING = new Meta(false, false, false, 0, null);
+
+    // Listados más grandes que esto no se guardan (memoria)
+    private static final int MAX_LISTING = 10000;
+
+    private record Cached(Object value, long loadedAt) {
+    }
+
+    /**
+     * Lo guardado de un directorio: su listado y los metadatos de sus hijos.
+     */
+    private static final class Dir {
+        volatile Cached listing;
+        final ConcurrentHashMap<Path, Cached> metas = new ConcurrentHashMap<>();
+
+        // Sube con cada aviso que toca este directorio (ver "carrera evitada")
+        final AtomicLong generation = new AtomicLong();
+
+        volatile long lastUsed = System.currentTimeMillis();
+
+        int entries() {
+            return metas.size() + (listing != null ? 1 : 0);
+        }
+    }
+
+    // Solo un hilo a la vez hace la expulsión (los demás no esperan)
+    private static final ReentrantLock EVICT = new ReentrantLock();
+
+    private static volatile int maxEntries = 10000;
+    private static volatile long ttlMillis = 5000;
+    private static volatile boolean watch = true;
+
+    private static final ConcurrentHashMap<Path, Dir> DIRS = new ConcurrentHashMap<>();
+
+    // Directorio -> subdirectorios que tienen Dir (o algún descendiente con Dir)
+    private static final ConcurrentHashMap<Path, Set<Path>> CHILDREN = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger SIZE = new AtomicInteger();
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private static final DirectoryWatcher.Owner WATCHER = DirectoryWatcher.owner("metadata");
+
+    static {
+        FileChanges.addListener(new FileChanges.Listener() {
+            @Override
+            public void changed(Path path) {
+                invalidate(path);
+            }
+
+            @Override
+            public void changedAll() {
+                clear();
+            }
+        });
+    }
+
+    private MetadataCache() {
+    }
+
+    /**
+     * Configura la caché (llamar al arrancar).
+     *
+     * @param max   entradas como mucho (0 = caché desactivada)
+     * @param ttl   milisegundos que vale una entrada como mucho
+     * @param watch true = vigilar los directorios con WatchService
+     */
+    public static void configure(int max, long ttl, boolean watch) {
+        maxEntries = Math.max(0, max);
+        ttlMillis = Math.max(0, ttl);
+        MetadataCache.watch = watch;
+        clear();
+    }
+
+    /**
+     * Metadatos de 'path' (nunca null; exists() = false si no existe).
+     */
+    public static Meta stat(Path path) {
+        Path p = path.toAbsolutePath().normalize();
+        Path parent = p.getParent();
+
+        Dir d = (parent != null) ? DIRS.get(parent) : null;
+        Object cached = (d != null) ? lookup(d, d.metas.get(p), p) : null;
+        if (cached != null) {
+            return (Meta) cached;
+        }
+        MISSES.incrementAndGet();
+
+        d = cacheDir(parent);
+        long gen = (d != null) ? d.generation.get() : 0;
+
+        Meta meta;
+        try {
+            meta = toMeta(Files.readAttributes(p, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            meta = MISSING;
+        } catch (IOException e) {
+            // Sin permisos, etc.: como Files.exists => "no existe", pero no se guarda
+            return MISSING;
+        }
+
+        if (d != null && isCurrent(parent, d, gen)) {
+            storeMeta(d, p, meta);
+            evictIfFull();
+        }
+        return meta;
+    }
+
+    /**
+     * Listado de 'dir' (orden del sistema de ficheros). null si no es un directorio
+     * o no se puede leer.
+     */
+    public static List<Entry> list(Path dir) {
+        Path path = dir.toAbsolutePath().normalize();
+
+        Dir d = DIRS.get(path);
+        Object cached = (d != null) ? lookup(d, d.listing, null) : null;
+        if (cached != null) {
+            @SuppressWarnings("unchecked")
+            List<Entry> entries = (List<Entry>) cached;
+            return entries;
+        }
+        MISSES.incrementAndGet();
+
+        d = cacheDir(path);
+        long gen = (d != null) ? d.generation.get() : 0;
+
+        List<Entry> entries = new ArrayList<>();
+        List<Path> children = new ArrayList<>();
+        List<Meta> metas = new ArrayList<>();
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(path)) {
+            for (Path child : ds) {
+                Meta m;
+                try {
+                    m = toMeta(Files.readAttributes(child, BasicFileAttributes.class));
+                } catch (IOException e) {
+                    // Enlace roto, sin permisos...: se lista igualmente (como File.listFiles)
+                    m = MISSING;
+                }
+                entries.add(new Entry(child.getFileName().toString(), m.regularFile(), m.regularFile() ? m.size() : 0));
+                children.add(child);
+                metas.add(m);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        entries = Collections.unmodifiableList(entries);
+
+        if (d != null && entries.size() <= MAX_LISTING && isCurrent(path, d, gen)) {
+            long now = System.currentTimeMillis();
+            if (d.listing == null) {
+                SIZE.incrementAndGet();
+            }
+            d.listing = new Cached(entries, now);
+            for (int i = 0; i < children.size(); i++) {
+                if (metas.get(i).exists()) {
+                    storeMeta(d, children.get(i), metas.get(i));
+                }
+            }
+            evictIfFull();
+        }
+        return entries;
+    }
+
+    public static long hits() {
+        return HITS.get();
+    }
+
+    public static long misses() {
+        return MISSES.get();
+    }
+
+    public static int size() {
+        return Math.max(0, SIZE.get());
+    }
+
+    /**
+     * Tira todo lo guardado de 'path', de su padre (su listado y su fecha cambian)
+     * y, si era un directorio, de todo lo que cuelga de él.
+     */
+    public static void invalidate(Path path) {
+        Path parent = path.getParent();
+
+        // Metadatos de 'path' y listado del padre
+        if (parent != null) {
+            Dir d = DIRS.get(parent);
+            if (d != null) {
+                d.generation.incrementAndGet();
+                if (d.listing != null) {
+                    d.listing = null;
+                    SIZE.decrementAndGet();
+                }
+                if (d.metas.remove(path) != null) {
+                    SIZE.decrementAndGet();
+                }
+            }
+
+            // Metadatos del padre (su fecha de modificación cambia)
+            Path grand = parent.getParent();
+            Dir g = (grand != null) ? DIRS.get(grand) : null;
+            if (g != null) {
+                g.generation.incrementAndGet();
+                if (g.metas.remove(parent) != null) {
+                    SIZE.decrementAndGet();
+                }
+            }
+        }
+
+        // Si era un directorio: él y todo lo que cuelga
+        removeTree(path);
+        Set<Path> siblings = (parent != null) ? CHILDREN.get(parent) : null;
+        if (siblings != null) {
+            siblings.remove(path);
+        }
+    }
+
+    public static void clear() {
+        for (Path dir : DIRS.keySet()) {
+            removeDir(dir);
+        }
+        CHILDREN.clear();
+        SIZE.set(0);
+        DirectoryWatcher.unwatchAll(WATCHER);
+    }
+
+    /**
+     * Valor de una entrada si sigue vigente; las caducadas se quitan.
+     *
+     * @param metaKey ruta de la entrada en d.metas (null = el listado)
+     */
+    private static Object lookup(Dir d, Cached c, Path metaKey) {
+        if (c == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - c.loadedAt() <= ttlMillis) {
+            HITS.incrementAndGet();
+            d.lastUsed = now;
+            return c.value();
+        }
+
+        boolean removed = (metaKey != null) ? d.metas.remove(metaKey, c) : clearListing(d, c);
+        if (removed) {
+            SIZE.decrementAndGet();
+        }
+        return null;
+    }
+
+    private static boolean clearListing(Dir d, Cached c) {
+        if (d.listing != c) {
+            return false;
+        }
+        d.listing = null;
+        return true;
+    }
+
+    private static void storeMeta(Dir d, Path p, Meta meta) {
+        if (d.metas.put(p, new Cached(meta, System.currentTimeMillis())) == null) {
+            SIZE.incrementAndGet();
+        }
+    }
+
+    /**
+     * true si no ha llegado ningún aviso para 'dir' desde que se leyó 'gen'.
+     */
+    private static boolean isCurrent(Path dir, Dir d, long gen) {
+        return DIRS.get(dir) == d && d.generation.get() == gen;
+    }
+
+    /**
+     * Dir de 'dir' para guardar lo que se lea, o null si no se puede cachear.
+     * Solo se cachea lo de dentro de directorios vigilados (o si la vigilancia está apagada).
+     */
+    private static Dir cacheDir(Path dir) {
+        if (maxEntries == 0 || dir == null) {
+            return null;
+        }
+        return dirFor(dir);
+    }
+
+    /**
+     * Dir de 'dir' (se crea, se vigila y se enlaza en CHILDREN con sus antecesores si no
+     * existe). null si no se puede vigilar.
+     */
+    private static Dir dirFor(Path dir) {
+        Dir d = DIRS.get(dir);
+        if (d != null) {
+            return d;
+        }
+        d = DIRS.computeIfAbsent(dir, k -> (!watch || DirectoryWatcher.watch(k, WATCHER)) ? new Dir() : null);
+        if (d == null) {
+            return null;
+        }
+
+        // Enlazar hacia arriba hasta un antecesor que ya lo estuviera
+        Path child = dir;
+        Path parent = dir.getParent();
+        while (parent != null && CHILDREN.computeIfAbsent(parent, k -> ConcurrentHashMap.newKeySet()).add(child)) {
+            child = parent;
+            parent = parent.getParent();
+        }
+        return d;
+    }
+
+    /**
+     * Quita el Dir de 'dir' y los de todos sus subdirectorios.
+     */
+    private static void removeTree(Path dir) {
+        Set<Path> subdirs = CHILDREN.remove(dir);
+        if (subdirs != null) {
+            for (Path sub : subdirs) {
+                removeTree(sub);
+            }
+        }
+        removeDir(dir);
+    }
+
+    private static void removeDir(Path dir) {
+        Dir[] removed = new Dir[1];
+        DIRS.computeIfPresent(dir, (k, d) -> {
+            DirectoryWatcher.unwatch(k, WATCHER);
+            removed[0] = d;
+            return null;
+        });
+        Dir d = removed[0];
+        if (d != null) {
+            d.generation.incrementAndGet();
+            SIZE.addAndGet(-d.entries());
+        }
+    }
+
+    /**
+     * Pasado cache.max: tira los directorios usados hace más tiempo hasta el 90 %.
+     * Lo hace un solo hilo; si ya hay uno, los demás siguen sin esperar.
+     */
+    private static void evictIfFull() {
+        if (SIZE.get() <= maxEntries || !EVICT.tryLock()) {
+            return;
+        }
+        try {
+            // Copia de lastUsed: puede cambiar mientras se ordena
+            List<Map.Entry<Path, Long>> byUse = new ArrayList<>();
+            int total = 0;
+            for (Map.Entry<Path, Dir> e : DIRS.entrySet()) {
+                byUse.add(Map.entry(e.getKey(), e.getValue().lastUsed));
+                total += e.getValue().entries();
+            }
+            byUse.sort(Map.Entry.comparingByValue());
+
+            // Recuento real (el contador puede desviarse con carreras)
+            SIZE.set(total);
+
+            int target = maxEntries - maxEntries / 10;
+            for (Map.Entry<Path, Long> e : byUse) {
+                if (SIZE.get() <= target) {
+                    break;
+                }
+                removeDir(e.getKey());
+            }
+        } finally {
+            EVICT.unlock();
+        }
+    }
+
+    private static Meta toMeta(BasicFileAttributes a) {
+        return new Meta(true, a.isDirectory(), a.isRegularFile(), a.size(), a.lastModifiedTime());
+    }
+}
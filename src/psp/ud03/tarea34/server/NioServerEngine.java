@@ -0,0 +1,405 @@
+package psp.ud03.tarea34.server;
+
+import psp.ud03.tarea34.net.FramingReader;
+import psp.ud03.tarea34.net.ProtocolV2;
+import psp.ud03.tarea34.net.ResponseWriter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Motor del servidor basado en NIO (Selector) + pool acotado de hilos.
+ * <p>
+ * Problema del modo "un hilo por cliente":
+ * - Miles de clientes casi siempre inactivos => miles de hilos bloqueados en read()
+ * (memoria de pilas + planificador saturado).
+ * <p>
+ * Idea:
+ * - UN hilo (selector) vigila todas las conexiones en modo NO bloqueante.
+ * - Cada conexión tiene su propio buffer: el selector va leyendo ahí lo que llega.
+ * - Cuando en el buffer hay una línea completa (un comando), la conexión se "presta"
+ * a un hilo del pool:
+ * 1) se quita del selector y se pone en modo bloqueante,
+ * 2) los bytes leídos pasan al FramingReader del CommandContext,
+ * 3) se ejecutan los comandos con los MISMOS ICommand de siempre (CommandDispatcher),
+ * 4) lo que sobre del buffer vuelve a la conexión y esta vuelve al selector.
+ * <p>
+ * Así una conexión inactiva no ocupa ningún hilo, y el trabajo de disco (bloqueante)
+ * nunca pasa de N hilos a la vez.
+ * <p>
+ * Memoria por conexión inactiva:
+ * - Los buffers grandes (FramingReader 8 KiB + ResponseWriter 64 KiB) son de cada hilo
+ * del pool: se prestan al CommandContext en el paso 2 y se recuperan en el 4.
+ * - La conexión solo guarda su buffer del selector: SMALL_BUFFER bytes, que crece hasta
+ * FramingReader.DEFAULT_SIZE si llega un comando más largo.
+ * - Una línea de texto que no cabe ni así (sin '\n' en FramingReader.DEFAULT_SIZE bytes)
+ * no se pasa al pool, donde ocuparía un hilo esperando el resto: se responde KO y se
+ * cierra la conexión. Una trama v2 grande (hasta ProtocolV2.MAX_FRAME) sí pasa: su
+ * longitud va delante y se lee entera en el pool.
+ * <p>
+ * Control de admisión:
+ * - Como mucho maxSessions conexiones abiertas. Las que lleguen de más reciben
+ * "BUSY" y se cierran (no hay cola: esperar aquí no cuesta hilos, cuesta sockets).
+ */
+public class NioServerEngine {
+
+    private final int port;
+    private final Path baseDir;
+    private final CommandDispatcher dispatcher;
+    private final ExecutorService pool;
+    private final int maxSessions;
+
+    // Contadores observables (mismo significado que en SessionPool)
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // Buffer inicial del selector por conexión (casi todos los comandos caben)
+    private static final int SMALL_BUFFER = 512;
+
+    // Buffers de entrada/salida de cada hilo del pool (se prestan al contexto de turno)
+    private static final ThreadLocal<byte[]> IN_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[FramingReader.DEFAULT_SIZE]);
+    private static final ThreadLocal<byte[]> OUT_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[ResponseWriter.DEFAULT_SIZE]);
+
+    // Conexiones que vuelven del pool y hay que registrar otra vez en el selector
+    private final Queue<Session> returning = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+
+    /**
+     * Estado de una conexión mientras vive en el selector.
+     */
+    private static final class Session {
+        final SocketChannel channel;
+        final String clientIp;
+
+        // Bytes leídos sin bloquear que aún no se han ejecutado (modo escritura)
+        ByteBuffer buffer = ByteBuffer.allocate(SMALL_BUFFER);
+
+        // Se crea la primera vez que la conexión llega al pool (en modo bloqueante), sin buffers
+        CommandContext ctx;
+
+        Session(SocketChannel channel, String clientIp) {
+            this.channel = channel;
+            this.clientIp = clientIp;
+        }
+    }
+
+    public NioServerEngine(int port, Path baseDir, CommandRegistry registry, int workers, int maxSessions) {
+        this.port = port;
+        this.baseDir = baseDir;
+        this.dispatcher = new CommandDispatcher(registry);
+        this.pool = Executors.newFixedThreadPool(workers);
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Conexiones ejecutando un comando en el pool ahora mismo.
+     */
+    public int active() {
+        return running.get();
+    }
+
+    /**
+     * Conexiones abiertas esperando (inactivas en el selector o con comando en cola del pool).
+     */
+    public int queued() {
+        return open.get() - running.get();
+    }
+
+    /**
+     * Conexiones rechazadas con BUSY desde el arranque.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Bucle del selector (no termina salvo error del canal del servidor).
+     */
+    public void run() throws IOException {
+        Files.createDirectories(baseDir);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+             Selector sel = Selector.open()) {
+
+            this.selector = sel;
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(sel, SelectionKey.OP_ACCEPT);
+
+            // Conexiones con un comando completo, pendientes de pasar al pool
+            List<Session> ready = new ArrayList<>();
+
+            while (true) {
+                sel.select();
+
+                registerReturning(ready);
+
+                Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept(server);
+                    } else if (key.isReadable()) {
+                        read(key, ready);
+                    }
+                }
+
+                if (!ready.isEmpty()) {
+                    // selectNow completa la baja de las claves canceladas:
+                    // hasta entonces el canal no se puede poner en modo bloqueante
+                    sel.selectNow();
+
+                    for (Session s : ready) {
+                        pool.execute(() -> runCommands(s));
+                    }
+                    ready.clear();
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+
+        String ip = ((InetSocketAddress) ch.getRemoteAddress()).getAddress().getHostAddress();
+
+        if (open.get() >= maxSessions) {
+            rejected.incrementAndGet();
+            ServerLogger.log(ip, "BUSY active=" + active() + " queued=" + queued() + " rejected=" + rejected());
+            try {
+                // Todavía bloqueante: 5 bytes caben siempre en el buffer del socket
+                ch.write(ByteBuffer.wrap("BUSY\n".getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException ignored) {
+            }
+            ch.close();
+            return;
+        }
+
+        ch.configureBlocking(false);
+        open.incrementAndGet();
+        ServerMetrics.sessionOpened();
+
+        Session s = new Session(ch, ip);
+        ch.register(selector, SelectionKey.OP_READ, s);
+
+        ServerLogger.log(ip, "CONNECT");
+    }
+
+    /**
+     * Lee sin bloquear lo que haya llegado. Si ya hay una línea completa
+     * (o, en v2, el buffer está lleno), la conexión pasa al pool.
+     */
+    private void read(SelectionKey key, List<Session> ready) {
+        Session s = (Session) key.attachment();
+
+        int n;
+        try {
+            n = s.channel.read(s.buffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+
+        if (n == -1) {
+            // El cliente cerró sin "quit"
+            ServerLogger.log(s.clientIp, "DISCONNECT unexpected");
+            key.cancel();
+            closeQuietly(s);
+            return;
+        }
+
+        if (!hasRequest(s) && !s.buffer.hasRemaining()) {
+            if (s.buffer.capacity() < FramingReader.DEFAULT_SIZE) {
+                // Comando largo: más sitio en vez de ocupar un hilo esperando el resto
+                grow(s, FramingReader.DEFAULT_SIZE);
+                return;
+            }
+            if (s.ctx == null || s.ctx.protocol() != 2) {
+                // Línea demasiado larga: ningún comando de texto la necesita
+                ServerLogger.log(s.clientIp, "DISCONNECT line too long");
+                key.cancel();
+                try {
+                    // Sin bloquear: 3 bytes caben en el buffer del socket
+                    s.channel.write(ByteBuffer.wrap("KO\n".getBytes(StandardCharsets.UTF_8)));
+                } catch (IOException ignored) {
+                }
+                closeQuietly(s);
+                return;
+            }
+        }
+
+        if (hasRequest(s) || !s.buffer.hasRemaining()) {
+            key.cancel();
+            ready.add(s);
+        }
+    }
+
+    /**
+     * Cambia el buffer del selector por uno de 'size' bytes, conservando lo leído.
+     */
+    private static void grow(Session s, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(size);
+        s.buffer.flip();
+        bigger.put(s.buffer);
+        s.buffer = bigger;
+    }
+
+    /**
+     * Registra de nuevo las conexiones que el pool ha terminado de atender.
+     * Si ya traen otra línea completa (comandos encadenados), van directas al pool.
+     */
+    private void registerReturning(List<Session> ready) {
+        Session s;
+        while ((s = returning.poll()) != null) {
+            if (hasRequest(s)) {
+                ready.add(s);
+                continue;
+            }
+            try {
+                s.channel.register(selector, SelectionKey.OP_READ, s);
+            } catch (IOException e) {
+                closeQuietly(s);
+            }
+        }
+    }
+
+    /**
+     * Se ejecuta en un hilo del pool: atiende todas las líneas completas que haya.
+     */
+    private void runCommands(Session s) {
+        running.incrementAndGet();
+        try {
+            s.channel.configureBlocking(true);
+
+            if (s.ctx == null) {
+                s.ctx = new CommandContext(s.channel.socket(), baseDir, true);
+            }
+            CommandContext ctx = s.ctx;
+            ctx.attachBuffers(IN_BUFFER.get(), OUT_BUFFER.get());
+
+            // Bytes del selector -> FramingReader del contexto
+            s.buffer.flip();
+            ctx.in().feed(s.buffer);
+            s.buffer.clear();
+
+            boolean close;
+            do {
+                if (ctx.protocol() == 2) {
+                    ProtocolV2.Frame frame = ProtocolV2.readFrame(ctx.dis());
+                    if (frame == null) {
+                        ServerLogger.log(ctx.clientIp(), "DISCONNECT unexpected");
+                        closeQuietly(s);
+                        return;
+                    }
+                    close = dispatcher.dispatchFrame(ctx, frame);
+                } else {
+                    String line = ctx.in().readLine();
+
+                    // null => el cliente cerró el socket sin "quit"
+                    if (line == null) {
+                        ServerLogger.log(ctx.clientIp(), "DISCONNECT unexpected");
+                        closeQuietly(s);
+                        return;
+                    }
+
+                    close = dispatcher.dispatch(ctx, line);
+                }
+
+                // Comandos encadenados (pipelining): un solo flush para toda la ráfaga
+                if (close || !ctx.hasBufferedRequest()) {
+                    ctx.flush();
+                }
+
+            } while (!close && ctx.hasBufferedRequest());
+
+            if (close) {
+                closeQuietly(s);
+                return;
+            }
+
+            // Lo que sobre (trozo del siguiente comando) vuelve al buffer de la conexión;
+            // si no hay nada, se vuelve al buffer pequeño
+            int left = ctx.in().buffered();
+            if (left > s.buffer.capacity()) {
+                s.buffer = ByteBuffer.allocate(FramingReader.DEFAULT_SIZE);
+            } else if (left == 0 && s.buffer.capacity() > SMALL_BUFFER) {
+                s.buffer = ByteBuffer.allocate(SMALL_BUFFER);
+            }
+            ctx.in().drainTo(s.buffer);
+            ctx.detachBuffers();
+            s.channel.configureBlocking(false);
+
+            returning.add(s);
+            selector.wakeup();
+
+        } catch (IOException | RuntimeException e) {
+            ServerLogger.log(s.clientIp, "DISCONNECT error (" + e.getMessage() + ")");
+            closeQuietly(s);
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    /**
+     * true si en el buffer de la conexión ya hay un comando completo: una línea o,
+     * si ya negoció el protocolo v2, una trama.
+     */
+    private static boolean hasRequest(Session s) {
+        if (s.ctx != null && s.ctx.protocol() == 2) {
+            // buffer en modo escritura: los datos válidos son [0, position)
+            return ProtocolV2.hasFrame(s.buffer.array(), 0, s.buffer.position());
+        }
+        return hasLine(s.buffer);
+    }
+
+    private static boolean hasLine(ByteBuffer buffer) {
+        // buffer en modo escritura: los datos válidos son [0, position)
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeQuietly(Session s) {
+        open.decrementAndGet();
+        ServerMetrics.sessionClosed();
+        if (s.ctx != null) {
+            s.ctx.close();
+        }
+        try {
+            s.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
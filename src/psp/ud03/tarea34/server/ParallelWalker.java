@@ -0,0 +1,222 @@
+package psp.ud03.tarea34.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Recorrido de un árbol de directorios en paralelo (DiskPool), para tree y find.
+ * <p>
+ * Problema:
+ * - tree y find recorrían el árbol con un solo hilo. Cada entrada es una llamada al
+ * sistema (o una ida y vuelta por la red si el disco es remoto), una detrás de otra.
+ * <p>
+ * Cómo:
+ * - Una tarea por directorio: lo lista (DirectoryStream) y lee los atributos de cada hijo
+ * con UNA llamada (readAttributes), en vez de isDirectory + isReadable por separado.
+ * - Los subdirectorios se lanzan como tareas nuevas (fork): un árbol ancho se reparte
+ * entre todos los núcleos.
+ * - Pero no todos a la vez: cada directorio tiene como mucho LOOKAHEAD subtareas lanzadas
+ * por delante de la que está juntando. Con límite, lo que se lista de más al llegar a
+ * 'max' queda acotado (no se recorren subárboles enteros que luego se tiran).
+ * <p>
+ * Resultado determinista (igual que un recorrido secuencial):
+ * - Preorden con los hijos de cada directorio ordenados por 'order'.
+ * - Con límite 'max' se devuelven exactamente las 'max' primeras entradas de ese orden:
+ * cada tarea devuelve como mucho 'max' entradas de su subárbol, el padre las junta EN
+ * ORDEN y, en cuanto llega a 'max', abandona las tareas de los hermanos que faltan.
+ * <p>
+ * Enlaces simbólicos:
+ * - followLinks = true: se entra en enlaces a directorios (como hacía tree), saltando los
+ * que vuelven a un directorio por encima (ciclos).
+ */
+public final class ParallelWalker {
+
+    /**
+     * Una entrada encontrada.
+     *
+     * @param path      ruta relativa al directorio de inicio
+     * @param name      nombre
+     * @param depth     1 = hijo directo del inicio
+     * @param directory es directorio
+     */
+    public record Entry(String path, String name, int depth, boolean directory) {
+    }
+
+    // Subtareas lanzadas por delante de la que se está juntando, por directorio
+    private static final int LOOKAHEAD = Math.max(2, DiskPool.PARALLELISM);
+
+    private ParallelWalker() {
+    }
+
+    /**
+     * Recorre 'start' (sin incluirlo) y devuelve las entradas que cumplen 'filter'
+     * (por nombre), en preorden, como mucho 'max'. Se entra en todos los directorios,
+     * cumplan el filtro o no.
+     */
+    public static List<Entry> walk(Path start, Comparator<String> order, Predicate<String> filter,
+                                   int max, boolean followLinks) {
+        Walk w = new Walk(order, filter, max, followLinks, start.getFileSystem().getSeparator());
+        return DiskPool.pool().invoke(new DirTask(w, start, "", 1, new Chain(key(start), null)));
+    }
+
+    /**
+     * Parámetros comunes a todas las tareas de un recorrido.
+     */
+    private record Walk(Comparator<String> order, Predicate<String> filter, int max,
+                        boolean followLinks, String sep) {
+    }
+
+    /**
+     * Claves (inodos) de los directorios por encima: para no entrar en ciclos.
+     */
+    private record Chain(Object key, Chain parent) {
+        boolean contains(Object k) {
+            for (Chain c = this; c != null; c = c.parent) {
+                if (k != null && k.equals(c.key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private record Child(String name, boolean directory, Object key) {
+    }
+
+    @SuppressWarnings("serial")
+    private static final class DirTask extends RecursiveTask<List<Entry>> {
+        private final Walk w;
+        private final Path dir;
+        private final String prefix;
+        private final int depth;
+        private final Chain ancestors;
+
+        private volatile boolean abandoned;
+        private volatile List<DirTask> subtasks;
+
+        DirTask(Walk w, Path dir, String prefix, int depth, Chain ancestors) {
+            this.w = w;
+            this.dir = dir;
+            this.prefix = prefix;
+            this.depth = depth;
+            this.ancestors = ancestors;
+        }
+
+        /**
+         * Ya no hace falta: no empieza, o para en cuanto pueda (con sus subtareas).
+         */
+        void abandon() {
+            abandoned = true;
+            cancel(false);
+            List<DirTask> subs = subtasks;
+            if (subs != null) {
+                for (DirTask t : subs) {
+                    if (t != null) {
+                        t.abandon();
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            List<Entry> out = new ArrayList<>();
+            if (abandoned) {
+                return out;
+            }
+
+            List<Child> children = list();
+            children.sort(Comparator.comparing(Child::name, w.order()));
+
+            // Un subdirectorio => una tarea; se lanzan según se van juntando (LOOKAHEAD)
+            List<DirTask> subs = new ArrayList<>(children.size());
+            for (Child c : children) {
+                DirTask t = null;
+                if (c.directory() && !ancestors.contains(c.key())) {
+                    t = new DirTask(w, dir.resolve(c.name()), prefix + c.name() + w.sep(),
+                            depth + 1, new Chain(c.key(), ancestors));
+                }
+                subs.add(t);
+            }
+            subtasks = subs;
+            if (abandoned) {
+                return out;
+            }
+
+            // Se juntan en orden; al llegar a max, lo que queda sobra
+            int forked = 0;      // subs[0, forked) ya recorridos para lanzar
+            int running = 0;     // lanzadas y aún sin juntar
+            int i = 0;
+            for (; i < children.size() && out.size() < w.max(); i++) {
+                Child c = children.get(i);
+                if (w.filter().test(c.name())) {
+                    out.add(new Entry(prefix + c.name(), c.name(), depth, c.directory()));
+                }
+
+                DirTask t = subs.get(i);
+                if (t != null && out.size() < w.max()) {
+                    forked = Math.max(forked, i);
+                    while (forked < subs.size() && running < LOOKAHEAD) {
+                        if (subs.get(forked) != null) {
+                            subs.get(forked).fork();
+                            running++;
+                        }
+                        forked++;
+                    }
+
+                    List<Entry> sub = t.join();
+                    running--;
+                    out.addAll(sub.subList(0, Math.min(sub.size(), w.max() - out.size())));
+                    subs.set(i, null);
+                }
+            }
+            for (; i < subs.size(); i++) {
+                if (subs.get(i) != null) {
+                    subs.get(i).abandon();
+                }
+            }
+            return out;
+        }
+
+        private List<Child> list() {
+            List<Child> children = new ArrayList<>();
+            LinkOption[] opts = w.followLinks() ? new LinkOption[0] : new LinkOption[]{LinkOption.NOFOLLOW_LINKS};
+
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    if (abandoned) {
+                        break;
+                    }
+                    String name = p.getFileName().toString();
+                    try {
+                        BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class, opts);
+                        children.add(new Child(name, a.isDirectory(), a.fileKey()));
+                    } catch (IOException e) {
+                        // Enlace roto, sin permisos...: se muestra como entrada normal
+                        children.add(new Child(name, false, null));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Directorio no legible: sin hijos
+            }
+            return children;
+        }
+    }
+
+    private static Object key(Path p) {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package psp.ud03.tarea34.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Configuración del servidor leída de "server.properties".
+ * <p>
+ * Reglas (las mismas que tenía el puerto):
+ * - Si no existe el fichero o no se puede leer => se usan los valores por defecto.
+ * - Si un valor no es válido (por ejemplo un número mal escrito) => valor por defecto.
+ * <p>
+ * Claves conocidas:
+ * - puerto      (int, 2121)
+ * - modo        (hilos | virtual | nio)  motor del servidor
+ * - nio.hilos   (int) hilos del pool que ejecuta comandos en modo nio
+ * - sesiones.max  (int) clientes atendidos a la vez (más => BUSY)
+ * - sesiones.cola (int) clientes en espera si todos los hilos están ocupados (no en virtual)
+ * - log.cola      (int) eventos pendientes de escribir en server.log
+ * - log.flushMs   (long) cada cuánto se vuelca server.log a disco
+ * - log.desborde  (bloquear | descartar | contar) qué hacer si log.cola se llena
+ * - cache.max     (int) entradas de MetadataCache (0 = sin caché)
+ * - cache.ttlMs   (long) caducidad de cada entrada de la caché
+ * - cache.watch   (boolean) vigilar directorios cacheados con WatchService
+ * - cache.watchMax (int) directorios vigilados como mucho
+ * - digest.max    (int) hashes SHA-256 en memoria (0 = sin caché)
+ * - digest.indice (texto) fichero índice de hashes ("" = solo memoria)
+ * - digest.subida (boolean) calcular el hash de cada upload al terminar de recibirlo (en segundo plano)
+ * - follow.max    (int) follow a la vez como mucho (más => KO)
+ * - du.ttlMs      (long) caducidad de los totales de du con algo sin vigilar debajo (0 = no se guardan)
+ */
+public final class ServerConfig {
+
+    private final Properties properties;
+
+    private ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Carga el fichero indicado. Nunca falla: si hay error, configuración vacía.
+     */
+    public static ServerConfig load(String fileName) {
+        Properties properties = new Properties();
+
+        try (FileInputStream fis = new FileInputStream(fileName)) {
+            properties.load(fis);
+        } catch (IOException e) {
+            // No existe o no se pudo leer => todo por defecto
+        }
+
+        return new ServerConfig(properties);
+    }
+
+    public String getString(String key, String def) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return def;
+        }
+        return value.trim();
+    }
+
+    public int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public long getLong(String key, long def) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        String value = getString(key, String.valueOf(def));
+        return "true".equalsIgnoreCase(value) || "si".equalsIgnoreCase(value);
+    }
+}
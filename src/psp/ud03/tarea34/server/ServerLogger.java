@@ -7,8 +7,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Logger del servidor en fichero: server.log
@@ -18,6 +27,24 @@ import java.time.format.DateTimeFormatter;
  * - Añade timestamp + IP + evento:
  * [YYYY-MM-DD HH:mm:ss] [IP] [EVENTO]
  * - Es seguro en multihilo: cada llamada escribe una línea completa sin mezclarse.
+ * <p>
+ * Funcionamiento asíncrono:
+ * - log(...) NO escribe en disco: mete el evento en una cola acotada y vuelve.
+ * - Un único hilo escritor ("server-log") mantiene server.log ABIERTO, saca los
+ * eventos por lotes y hace flush cada log.flushMs milisegundos.
+ * - Así los clientes no se serializan en un lock ni pagan abrir/cerrar el fichero
+ * en cada comando (ctx.reply loguea siempre).
+ * <p>
+ * Si la cola se llena (log.desborde):
+ * - bloquear:   log(...) espera a que haya hueco (no se pierde nada).
+ * - descartar:  el evento se pierde sin más.
+ * - contar:     el evento se pierde, pero se cuenta y el escritor deja una línea
+ * "LOG dropped=N" en server.log en cuanto puede.
+ * <p>
+ * Si no se puede escribir en server.log (disco lleno, permisos...):
+ * - El escritor se marca caído: lo que hay en la cola y lo que llegue se pierde y se
+ * cuenta (con cualquier política; bloquear no puede esperar a un escritor que no vacía).
+ * - Cada RETRY_MS reabre el fichero. Si lo consigue, deja "LOG lost=N" y sigue normal.
  */
 public final class ServerLogger {
 
@@ -28,32 +55,288 @@ public final class ServerLogger {
     private static final DateTimeFormatter FMT =
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    // Tamaño máximo de cada lote que escribe el hilo escritor
+    private static final int BATCH = 1024;
+
+    // Espera entre intentos de reabrir server.log tras un error de escritura
+    private static final long RETRY_MS = 5000;
+
+    // Solo protege el arranque del escritor (no el log normal)
+    private static final ReentrantLock INIT = new ReentrantLock();
+
+    private static volatile Writer writer;
+
+    /**
+     * Evento pendiente: el texto se formatea en el hilo escritor, no en el cliente.
+     */
+    private record Entry(long millis, String clientIp, String event) {
+    }
+
+    private enum Overflow {
+        BLOCK, DROP, COUNT
+    }
+
     private ServerLogger() {
     }
 
     /**
-     * Escribe un evento en server.log.
-     * (synchronized => una línea completa por vez)
+     * Configura el logger (llamar al arrancar, antes del primer log).
+     *
+     * @param capacity    eventos que caben en la cola
+     * @param flushMillis cada cuánto se hace flush del fichero
+     * @param overflow    bloquear | descartar | contar
+     */
+    public static void configure(int capacity, long flushMillis, String overflow) {
+        Overflow policy;
+        if ("descartar".equals(overflow)) {
+            policy = Overflow.DROP;
+        } else if ("contar".equals(overflow)) {
+            policy = Overflow.COUNT;
+        } else {
+            policy = Overflow.BLOCK;
+        }
+
+        INIT.lock();
+        try {
+            if (writer == null) {
+                writer = new Writer(Math.max(1, capacity), Math.max(1, flushMillis), policy);
+            }
+        } finally {
+            INIT.unlock();
+        }
+    }
+
+    /**
+     * Encola un evento para server.log.
      *
      * @param clientIp IP del cliente (o "SERVER")
      * @param event    texto del evento
      */
-    public static synchronized void log(String clientIp, String event) {
-        String ts = LocalDateTime.now().format(FMT);
-        String line = "[" + ts + "] [" + clientIp + "] [" + event + "]";
-
-        try (BufferedWriter w = Files.newBufferedWriter(
-                LOG_PATH,
-                StandardCharsets.UTF_8,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.WRITE,
-                StandardOpenOption.APPEND
-        )) {
-            w.write(line);
+    public static void log(String clientIp, String event) {
+        Writer w = writer;
+        if (w == null) {
+            // Nadie llamó a configure: valores por defecto
+            configure(10000, 200, "bloquear");
+            w = writer;
+        }
+        w.offer(new Entry(System.currentTimeMillis(), clientIp, event));
+    }
+
+    /**
+     * Eventos descartados: por cola llena (políticas descartar/contar) o por no poder escribir.
+     */
+    public static long dropped() {
+        Writer w = writer;
+        return (w == null) ? 0 : w.dropped.get() + w.lost.get();
+    }
+
+    /**
+     * Cola + hilo escritor.
+     */
+    private static final class Writer implements Runnable {
+
+        private final BlockingQueue<Entry> queue;
+        private final long flushMillis;
+        private final Overflow policy;
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        // Eventos perdidos con el escritor caído (error de escritura)
+        private final AtomicLong lost = new AtomicLong();
+
+        // Descartes ya anotados en el fichero (política contar)
+        private long reported;
+
+        // Pérdidas ya anotadas en el fichero
+        private long reportedLost;
+
+        // El fichero no se puede escribir: offer no encola
+        private volatile boolean dead;
+
+        private volatile boolean stopping;
+        private final Thread thread;
+
+        Writer(int capacity, long flushMillis, Overflow policy) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.flushMillis = flushMillis;
+            this.policy = policy;
+
+            this.thread = new Thread(this, "server-log");
+            this.thread.setDaemon(true);
+            this.thread.start();
+
+            // Al parar el servidor: vaciar la cola y cerrar el fichero
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "server-log-stop"));
+        }
+
+        void offer(Entry e) {
+            if (dead) {
+                lost.incrementAndGet();
+                return;
+            }
+
+            if (policy == Overflow.BLOCK) {
+                // Espera por tramos: si el escritor cae mientras tanto, no se queda aquí
+                try {
+                    while (!queue.offer(e, flushMillis, TimeUnit.MILLISECONDS)) {
+                        if (dead) {
+                            lost.incrementAndGet();
+                            return;
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+
+            if (!queue.offer(e)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        void stop() {
+            // Sin interrupt(): interrumpir una escritura cerraría el canal del fichero.
+            // El escritor se despierta solo como mucho en flushMillis.
+            stopping = true;
+            try {
+                thread.join(flushMillis + 1000);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    writeLoop();
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    // Si el log falla, no debe romper el servidor (ni dejar a nadie esperando)
+                    System.err.println("LOG ERROR: " + e.getMessage());
+                    dead = true;
+                    lost.addAndGet(discardQueue());
+                }
+
+                if (!pause(RETRY_MS)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Abre server.log y escribe hasta que se pide parar.
+         *
+         * @throws IOException si no se puede abrir o escribir (el fichero queda cerrado)
+         */
+        private void writeLoop() throws IOException {
+            try (BufferedWriter w = Files.newBufferedWriter(
+                    LOG_PATH,
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND
+            )) {
+                // Abierto (o reabierto tras un error): se vuelve a encolar
+                dead = false;
+
+                List<Entry> batch = new ArrayList<>(BATCH);
+                long nextFlush = System.currentTimeMillis() + flushMillis;
+                boolean dirty = reportLost(w);
+
+                while (true) {
+                    long wait = Math.max(1, nextFlush - System.currentTimeMillis());
+
+                    try {
+                        Entry first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                        if (first != null) {
+                            batch.add(first);
+                        }
+                    } catch (InterruptedException ie) {
+                        stopping = true;
+                    }
+                    queue.drainTo(batch, BATCH - batch.size());
+
+                    for (Entry e : batch) {
+                        write(w, e.millis(), e.clientIp(), e.event());
+                    }
+                    dirty |= !batch.isEmpty();
+                    batch.clear();
+
+                    dirty |= reportDropped(w);
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextFlush || stopping) {
+                        if (dirty) {
+                            w.flush();
+                            dirty = false;
+                        }
+                        nextFlush = now + flushMillis;
+                    }
+
+                    if (stopping && queue.isEmpty()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Vacía la cola sin escribir (escritor caído).
+         *
+         * @return eventos descartados
+         */
+        private int discardQueue() {
+            List<Entry> trash = new ArrayList<>();
+            queue.drainTo(trash);
+            return trash.size();
+        }
+
+        /**
+         * Espera 'millis' con el escritor caído (descartando lo que aún se encole).
+         *
+         * @return false si se ha pedido parar
+         */
+        private boolean pause(long millis) {
+            long end = System.currentTimeMillis() + millis;
+            while (!stopping && System.currentTimeMillis() < end) {
+                try {
+                    Thread.sleep(Math.min(flushMillis, 200));
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+                lost.addAndGet(discardQueue());
+            }
+            return !stopping;
+        }
+
+        private boolean reportLost(BufferedWriter w) throws IOException {
+            long total = lost.get();
+            if (total == reportedLost) {
+                return false;
+            }
+            write(w, System.currentTimeMillis(), "SERVER", "LOG lost=" + (total - reportedLost) + " (write error)");
+            reportedLost = total;
+            return true;
+        }
+
+        private boolean reportDropped(BufferedWriter w) throws IOException {
+            if (policy != Overflow.COUNT) {
+                return false;
+            }
+            long total = dropped.get();
+            if (total == reported) {
+                return false;
+            }
+            write(w, System.currentTimeMillis(), "SERVER", "LOG dropped=" + (total - reported));
+            reported = total;
+            return true;
+        }
+
+        private static void write(BufferedWriter w, long millis, String clientIp, String event) throws IOException {
+            String ts = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).format(FMT);
+            w.write("[" + ts + "] [" + clientIp + "] [" + event + "]");
             w.newLine();
-        } catch (IOException e) {
-            // Si el log falla, no debe romper el servidor
-            System.err.println("LOG ERROR: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,288 @@
+package psp.ud03.tarea34.server;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Métricas del servidor: latencia y volumen por comando, sesiones y contadores de
+ * cachés/motores. Se consultan con el comando "stats" y se vuelcan a un fichero en
+ * formato de texto de Prometheus (para el textfile collector de node_exporter).
+ * <p>
+ * Qué se mide (CommandDispatcher, en los dos motores y en los dos protocolos):
+ * - Por comando: nº de OK y de KO, histograma de latencia (ver LatencyHistogram) y
+ * bytes recibidos/enviados (petición + datos, incluidos upload/download).
+ * - Latencia = desde que el comando está leído hasta que su respuesta está entera en
+ * el buffer de salida (lo que tarde la red en llevarla no cuenta).
+ * - Sesiones: abiertas ahora y total desde el arranque.
+ * - Medidores (gauge): cualquier contador ya existente (pool, cachés, índice...) que se
+ * registre al arrancar con gauge(...).
+ * <p>
+ * Coste:
+ * - Por comando: dos nanoTime, unos LongAdder y un incremento atómico en el histograma.
+ * - Los comandos desconocidos van todos a "unknown" (el nº de series no crece con
+ * lo que manden los clientes).
+ */
+public final class ServerMetrics {
+
+    /**
+     * Contadores de un comando.
+     */
+    private static final class CommandMetrics {
+        final LongAdder ok = new LongAdder();
+        final LongAdder ko = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Medidor registrado: nombre Prometheus, ayuda y de dónde sale el valor.
+     */
+    private record Gauge(String name, String help, boolean counter, LongSupplier value) {
+    }
+
+    public static final String UNKNOWN = "unknown";
+
+    // Límites (segundos) de los cubos "le" del fichero Prometheus
+    private static final double[] PROM_BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private static final Map<String, CommandMetrics> COMMANDS = new ConcurrentHashMap<>();
+    private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>();
+
+    private static final AtomicInteger SESSIONS_OPEN = new AtomicInteger();
+    private static final LongAdder SESSIONS_TOTAL = new LongAdder();
+
+    private static final long START = System.currentTimeMillis();
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Apunta un comando terminado.
+     *
+     * @param command nombre registrado (o UNKNOWN)
+     * @param ok      la respuesta fue OK
+     * @param nanos   duración (System.nanoTime)
+     */
+    public static void record(String command, boolean ok, long nanos, long bytesIn, long bytesOut) {
+        CommandMetrics m = COMMANDS.computeIfAbsent(command, k -> new CommandMetrics());
+        (ok ? m.ok : m.ko).increment();
+        m.bytesIn.add(bytesIn);
+        m.bytesOut.add(bytesOut);
+        m.latency.record(nanos / 1000);
+    }
+
+    public static void sessionOpened() {
+        SESSIONS_OPEN.incrementAndGet();
+        SESSIONS_TOTAL.increment();
+    }
+
+    public static void sessionClosed() {
+        SESSIONS_OPEN.decrementAndGet();
+    }
+
+    /**
+     * Registra un medidor que ya existe en otra clase (se lee al generar el informe).
+     *
+     * @param name    nombre Prometheus (sin el prefijo "fileserver_")
+     * @param counter true si solo sube (contador); false si sube y baja
+     */
+    public static void gauge(String name, String help, boolean counter, LongSupplier value) {
+        GAUGES.add(new Gauge(name, help, counter, value));
+    }
+
+    /**
+     * Informe para el comando stats: una línea por dato, de "clave valor...".
+     */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("uptime_s " + (System.currentTimeMillis() - START) / 1000);
+        lines.add("sessions_open " + SESSIONS_OPEN.get());
+        lines.add("sessions_total " + SESSIONS_TOTAL.sum());
+
+        for (Gauge g : GAUGES) {
+            lines.add(g.name() + " " + read(g));
+        }
+
+        lines.add("command ok ko p50_ms p99_ms p999_ms bytes_in bytes_out");
+        LatencyHistogram.Snapshot all = LatencyHistogram.Snapshot.empty();
+        long ok = 0;
+        long ko = 0;
+        long in = 0;
+        long out = 0;
+
+        for (Map.Entry<String, CommandMetrics> e : sorted().entrySet()) {
+            CommandMetrics m = e.getValue();
+            LatencyHistogram.Snapshot s = m.latency.snapshot();
+            all = all.merge(s);
+            ok += m.ok.sum();
+            ko += m.ko.sum();
+            in += m.bytesIn.sum();
+            out += m.bytesOut.sum();
+            lines.add(commandLine(e.getKey(), m.ok.sum(), m.ko.sum(), s, m.bytesIn.sum(), m.bytesOut.sum()));
+        }
+        lines.add(commandLine("all", ok, ko, all, in, out));
+        return lines;
+    }
+
+    /**
+     * Todas las métricas en formato de texto de Prometheus (versión 0.0.4).
+     */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder(8192);
+
+        metric(sb, "uptime_seconds", "Seconds since the server started", "gauge");
+        sb.append("fileserver_uptime_seconds ").append((System.currentTimeMillis() - START) / 1000).append('\n');
+        metric(sb, "sessions_open", "Client connections currently open", "gauge");
+        sb.append("fileserver_sessions_open ").append(SESSIONS_OPEN.get()).append('\n');
+        metric(sb, "sessions_total", "Client connections accepted since start", "counter");
+        sb.append("fileserver_sessions_total ").append(SESSIONS_TOTAL.sum()).append('\n');
+
+        for (Gauge g : GAUGES) {
+            metric(sb, g.name(), g.help(), g.counter() ? "counter" : "gauge");
+            sb.append("fileserver_").append(g.name()).append(' ').append(read(g)).append('\n');
+        }
+
+        Map<String, CommandMetrics> commands = sorted();
+
+        metric(sb, "commands_total", "Commands executed, by command and status", "counter");
+        for (Map.Entry<String, CommandMetrics> e : commands.entrySet()) {
+            String cmd = e.getKey();
+            sb.append("fileserver_commands_total{command=\"").append(cmd).append("\",status=\"ok\"} ")
+                    .append(e.getValue().ok.sum()).append('\n');
+            sb.append("fileserver_commands_total{command=\"").append(cmd).append("\",status=\"ko\"} ")
+                    .append(e.getValue().ko.sum()).append('\n');
+        }
+
+        metric(sb, "command_received_bytes_total", "Bytes received for each command (request and upload data)", "counter");
+        for (Map.Entry<String, CommandMetrics> e : commands.entrySet()) {
+            sb.append("fileserver_command_received_bytes_total{command=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().bytesIn.sum()).append('\n');
+        }
+
+        metric(sb, "command_sent_bytes_total", "Bytes sent for each command (reply and download data)", "counter");
+        for (Map.Entry<String, CommandMetrics> e : commands.entrySet()) {
+            sb.append("fileserver_command_sent_bytes_total{command=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().bytesOut.sum()).append('\n');
+        }
+
+        metric(sb, "command_duration_seconds", "Server time per command", "histogram");
+        List<LatencyHistogram.Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, CommandMetrics> e : commands.entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue().latency.snapshot();
+            snapshots.add(s);
+            String label = "command=\"" + e.getKey() + "\"";
+            for (double le : PROM_BUCKETS) {
+                sb.append("fileserver_command_duration_seconds_bucket{").append(label)
+                        .append(",le=\"").append(plain(le)).append("\"} ")
+                        .append(s.countAtMost((long) (le * 1_000_000))).append('\n');
+            }
+            sb.append("fileserver_command_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(s.count()).append('\n');
+            sb.append("fileserver_command_duration_seconds_sum{").append(label).append("} ")
+                    .append(seconds(s.sum())).append('\n');
+            sb.append("fileserver_command_duration_seconds_count{").append(label).append("} ")
+                    .append(s.count()).append('\n');
+        }
+
+        metric(sb, "command_duration_quantile_seconds", "Server time per command at p50/p99/p999 (since start)", "gauge");
+        int i = 0;
+        for (String cmd : commands.keySet()) {
+            LatencyHistogram.Snapshot s = snapshots.get(i++);
+            for (double q : QUANTILES) {
+                sb.append("fileserver_command_duration_quantile_seconds{command=\"").append(cmd)
+                        .append("\",quantile=\"").append(plain(q)).append("\"} ")
+                        .append(seconds(s.quantile(q))).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escribe prometheus() en 'file' cada 'periodSec' segundos (hilo de fondo).
+     * Se escribe en un temporal y se renombra: quien lo lea nunca ve un fichero a medias.
+     */
+    public static void startExporter(Path file, int periodSec) {
+        Path target = file.toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+
+        exec.scheduleAtFixedRate(() -> {
+            try {
+                Files.writeString(tmp, prometheus(), StandardCharsets.UTF_8);
+                try {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException | RuntimeException e) {
+                ServerLogger.log("SERVER", "METRICS write failed (" + e.getMessage() + ")");
+            }
+        }, periodSec, Math.max(1, periodSec), TimeUnit.SECONDS);
+    }
+
+    private static Map<String, CommandMetrics> sorted() {
+        return new TreeMap<>(COMMANDS);
+    }
+
+    private static String commandLine(String cmd, long ok, long ko, LatencyHistogram.Snapshot s, long in, long out) {
+        return cmd + " " + ok + " " + ko
+                + " " + millis(s.quantile(0.5))
+                + " " + millis(s.quantile(0.99))
+                + " " + millis(s.quantile(0.999))
+                + " " + in + " " + out;
+    }
+
+    private static long read(Gauge g) {
+        try {
+            return g.value().getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static void metric(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP fileserver_").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE fileserver_").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String plain(double v) {
+        return BigDecimal.valueOf(v).toPlainString();
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1_000_000.0);
+    }
+}
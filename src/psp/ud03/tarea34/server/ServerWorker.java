@@ -1,7 +1,6 @@
 package psp.ud03.tarea34.server;
 
-import psp.ud03.tarea34.net.ProtocolIO;
-import psp.ud03.tarea34.server.commands.ICommand;
+import psp.ud03.tarea34.net.ProtocolV2;
 
 import java.io.IOException;
 import java.net.Socket;
@@ -14,100 +13,98 @@ import java.nio.file.Path;
  * Responsabilidades:
  * - Crear el CommandContext (streams + IP + baseDir).
  * - Leer comandos del cliente (una línea por comando).
- * - Parsear: cmd + params.
- * - Buscar el comando en CommandRegistry.
- * - Ejecutar ICommand.execute(ctx, params).
+ * - Parsear y ejecutar cada línea con CommandDispatcher (registry + ICommand).
  * - Gestionar desconexión normal (quit) o inesperada (EOF/error).
  * <p>
  * Nota de protocolo:
- * - Se usa ProtocolIO.readLine(InputStream) para texto.
+ * - Se usa el FramingReader del ctx para texto (y el mismo buffer para binario).
  * - upload/download cambian a binario (long + bytes) DESPUÉS del OK.
+ * - Las respuestas se acumulan en el buffer del ctx y se envían con UN flush
+ * al terminar cada comando.
+ * <p>
+ * Pipelining (soportado):
+ * - El cliente puede mandar varios comandos seguidos sin esperar respuestas.
+ * - Se ejecutan en orden y las respuestas salen en el mismo orden.
+ * - Si ya hay otro comando completo esperando en el buffer, no hacemos flush todavía:
+ * las respuestas de una ráfaga salen juntas (el buffer también se vacía si se llena).
  */
 public class ServerWorker implements Runnable {
 
     private final Socket socket;
     private final Path baseDir;
-    private final CommandRegistry registry;
+    private final CommandDispatcher dispatcher;
 
     public ServerWorker(Socket socket, Path baseDir, CommandRegistry registry) {
         this.socket = socket;
         this.baseDir = baseDir;
-        this.registry = registry;
+        this.dispatcher = new CommandDispatcher(registry);
     }
 
     @Override
     public void run() {
+        boolean counted = false;
+        CommandContext ctx = null;
         try {
             // Si baseDir no existe, lo crea (si ya existe no pasa nada)
             Files.createDirectories(baseDir);
 
             // Contexto con streams del socket y datos del cliente
-            CommandContext ctx = new CommandContext(socket, baseDir);
+            ctx = new CommandContext(socket, baseDir);
             ServerLogger.log(ctx.clientIp(), "CONNECT");
+            ServerMetrics.sessionOpened();
+            counted = true;
 
             boolean exit = false;
 
-            // Bucle principal: 1 línea = 1 comando
+            // Bucle principal: 1 línea (o 1 trama en v2) = 1 comando
             while (!exit) {
 
-                // Leer comando del cliente
-                String line = ProtocolIO.readLine(ctx.in());
-
-                // null => el cliente cerró el socket sin "quit"
-                if (line == null) {
-                    ServerLogger.log(ctx.clientIp(), "DISCONNECT unexpected");
-                    break;
-                }
-
-                line = line.trim();
-
-                // Ignorar líneas vacías (no ejecutan nada)
-                if (!line.isEmpty()) {
-
-                    // Parse básico: "cmd params..."
-                    String cmd;
-                    String params;
-
-                    int pos = line.indexOf(' ');
-                    if (pos == -1) {
-                        cmd = line;
-                        params = "";
-                    } else {
-                        cmd = line.substring(0, pos);
-                        params = line.substring(pos + 1).trim();
+                if (ctx.protocol() == 2) {
+                    ProtocolV2.Frame frame = ProtocolV2.readFrame(ctx.dis());
+                    if (frame == null) {
+                        ServerLogger.log(ctx.clientIp(), "DISCONNECT unexpected");
+                        break;
                     }
-
-                    // Texto completo del comando recibido (para el log unificado)
-                    String received = cmd;
-                    if (!params.isEmpty()) {
-                        received = received + " " + params;
+                    exit = dispatcher.dispatchFrame(ctx, frame);
+                } else {
+                    // Leer comando del cliente
+                    String line = ctx.in().readLine();
+
+                    // null => el cliente cerró el socket sin "quit"
+                    if (line == null) {
+                        ServerLogger.log(ctx.clientIp(), "DISCONNECT unexpected");
+                        break;
                     }
 
-                    // Guardamos el comando para que ctx.reply(...) pueda loguear:
-                    // RECV: <comando> -> RESP: OK/KO
-                    ctx.setLastReceived(received);
-
-                    // Buscar implementación del comando
-                    ICommand command = registry.get(cmd);
-
-                    // Si no existe: respondemos KO y queda logueado en una sola línea
-                    if (command == null) {
-                        ctx.reply("KO");
-                    } else {
-                        // Ejecutar el comando
-                        // - Devuelve true si el comando pide cerrar (quit)
-                        boolean shouldClose = command.execute(ctx, params);
-
-                        if (shouldClose) {
-                            ServerLogger.log(ctx.clientIp(), "DISCONNECT quit");
-                            exit = true;
-                        }
-                    }
+                    // Parsear y ejecutar (mismo código que el motor NIO)
+                    exit = dispatcher.dispatch(ctx, line);
+                }
+
+                // Fin del comando: enviamos lo acumulado, salvo que ya haya
+                // otro comando encadenado listo (entonces sale todo junto después)
+                if (exit || !ctx.hasBufferedRequest()) {
+                    ctx.flush();
                 }
             }
 
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            // En un pool no tiramos el hilo: se registra y se libera la sesión
+            ServerLogger.log(socket.getInetAddress().getHostAddress(),
+                    "DISCONNECT error (" + e.getMessage() + ")");
+        } finally {
+            if (counted) {
+                ServerMetrics.sessionClosed();
+            }
+
+            if (ctx != null) {
+                ctx.close();
+            }
+
+            // Cerrar el socket libera el descriptor (y el hueco en el pool)
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 }
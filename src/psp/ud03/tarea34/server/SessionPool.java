@@ -0,0 +1,127 @@
+package psp.ud03.tarea34.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool acotado de sesiones (control de admisión) para los modos "hilos" y "virtual".
+ * <p>
+ * Reglas:
+ * - Como mucho maxSessions clientes atendidos a la vez (uno por hilo).
+ * - Si están todos ocupados, hasta queueSize clientes esperan en cola
+ * (la conexión está aceptada; sus comandos se atienden cuando quede un hueco).
+ * - Si también la cola está llena => submit devuelve false y el servidor
+ * contesta BUSY y cierra, en vez de degradar a todos los demás.
+ * <p>
+ * Modo "virtual":
+ * - Sin ThreadPoolExecutor: un hilo virtual no se reutiliza ni hace falta tenerlo
+ * esperando en un pool. Cada sesión admitida arranca un hilo virtual NUEVO.
+ * - La admisión es un Semaphore de maxSessions permisos: sin permiso libre => BUSY.
+ * - Sin cola (queueSize no se usa): esperar un hueco no ahorraría nada.
+ * <p>
+ * Contadores observables: active(), queued(), rejected().
+ */
+public class SessionPool {
+
+    // Modo hilos (null en virtual)
+    private final ThreadPoolExecutor executor;
+
+    // Modo virtual (null en hilos): permisos = sesiones que aún caben
+    private final Semaphore permits;
+    private final ThreadFactory virtualFactory;
+    private final int maxSessions;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public SessionPool(int maxSessions, int queueSize, boolean virtual) {
+        this.maxSessions = maxSessions;
+        if (virtual) {
+            this.executor = null;
+            this.permits = new Semaphore(maxSessions);
+            this.virtualFactory = Thread.ofVirtual().name("worker-virtual-", 0).factory();
+            return;
+        }
+        this.permits = null;
+        this.virtualFactory = null;
+
+        BlockingQueue<Runnable> queue;
+        if (queueSize > 0) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+        } else {
+            queue = new SynchronousQueue<>();
+        }
+
+        this.executor = new ThreadPoolExecutor(
+                maxSessions, maxSessions,
+                60, TimeUnit.SECONDS,
+                queue,
+                Executors.defaultThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        // Los hilos que sobran tras un pico se liberan
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Intenta admitir una sesión.
+     *
+     * @return false si el servidor está saturado (pool y cola llenos)
+     */
+    public boolean submit(Runnable session) {
+        if (permits != null) {
+            if (!permits.tryAcquire()) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            virtualFactory.newThread(() -> {
+                try {
+                    session.run();
+                } finally {
+                    permits.release();
+                }
+            }).start();
+            return true;
+        }
+
+        try {
+            executor.execute(session);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Sesiones que se están atendiendo ahora mismo.
+     */
+    public int active() {
+        if (permits != null) {
+            return maxSessions - permits.availablePermits();
+        }
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Sesiones aceptadas esperando un hilo libre.
+     */
+    public int queued() {
+        return (executor != null) ? executor.getQueue().size() : 0;
+    }
+
+    /**
+     * Conexiones rechazadas con BUSY desde el arranque.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+}
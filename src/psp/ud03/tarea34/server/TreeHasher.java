@@ -0,0 +1,137 @@
+package psp.ud03.tarea34.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Hash en árbol (Merkle) de un fichero, calculado en paralelo.
+ * <p>
+ * Problema:
+ * - SHA-256 normal es secuencial: un fichero de 50 GB usa un solo núcleo.
+ * <p>
+ * Algoritmo ("sha256-tree"):
+ * - El fichero se parte en trozos de chunkSize bytes (el último puede ser menor).
+ * - Hoja  = SHA-256(0x00 || trozo)
+ * - Nodo  = SHA-256(0x01 || hijoIzq || hijoDer)
+ * - Con n hojas, el hijo izquierdo cubre las k primeras, siendo k la mayor potencia
+ * de 2 menor que n (mismo árbol que RFC 6962). Con 1 hoja, la raíz es la hoja.
+ * - Fichero vacío = una hoja vacía.
+ * <p>
+ * Cada trozo se lee con lecturas posicionales (FileChannel.read(buf, pos)), sin cursor
+ * compartido, y las hojas se calculan en DiskPool. El trozo no se carga
+ * entero (puede ser de MAX_CHUNK): pasa al digest por un buffer de READ_BUFFER bytes
+ * de cada hilo.
+ * <p>
+ * Para verificar en otra máquina hay que usar el MISMO chunkSize.
+ */
+public final class TreeHasher {
+
+    public static final String ALGORITHM = "sha256-tree";
+
+    public static final int DEFAULT_CHUNK = 1024 * 1024;
+    public static final int MIN_CHUNK = 64 * 1024;
+    public static final int MAX_CHUNK = 64 * 1024 * 1024;
+
+    // Lo que se lee de una vez de cada trozo
+    private static final int READ_BUFFER = 64 * 1024;
+
+    // Buffer de lectura de cada hilo del pool (se reutiliza en todas sus hojas)
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(READ_BUFFER));
+
+    private TreeHasher() {
+    }
+
+    /**
+     * Raíz (hex) del árbol de 'file' con trozos de chunkSize bytes.
+     */
+    public static String hash(Path file, int chunkSize) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fc.size();
+            long leaves = Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+            try {
+                byte[] root = DiskPool.pool().invoke(new Node(fc, size, chunkSize, 0, leaves));
+                return DigestCache.toHex(root);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Subárbol que cubre las hojas [from, to).
+     */
+    @SuppressWarnings("serial")
+    private static final class Node extends RecursiveTask<byte[]> {
+
+        private final FileChannel fc;
+        private final long size;
+        private final int chunkSize;
+        private final long from;
+        private final long to;
+
+        Node(FileChannel fc, long size, int chunkSize, long from, long to) {
+            this.fc = fc;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected byte[] compute() {
+            long n = to - from;
+            if (n == 1) {
+                return leaf(from);
+            }
+
+            // Mayor potencia de 2 menor que n
+            long k = Long.highestOneBit(n - 1);
+
+            Node left = new Node(fc, size, chunkSize, from, from + k);
+            Node right = new Node(fc, size, chunkSize, from + k, to);
+            left.fork();
+            byte[] r = right.compute();
+            byte[] l = left.join();
+
+            MessageDigest md = DigestCache.newDigest();
+            md.update((byte) 0x01);
+            md.update(l);
+            md.update(r);
+            return md.digest();
+        }
+
+        private byte[] leaf(long index) {
+            long pos = index * chunkSize;
+            int len = (int) Math.max(0, Math.min(chunkSize, size - pos));
+
+            MessageDigest md = DigestCache.newDigest();
+            md.update((byte) 0x00);
+
+            ByteBuffer buf = BUFFER.get();
+            long end = pos + len;
+            try {
+                while (pos < end) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), end - pos));
+                    int r = fc.read(buf, pos);
+                    if (r == -1) {
+                        throw new EOFException("File truncated during tree hash");
+                    }
+                    md.update(buf.array(), 0, buf.position());
+                    pos += r;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return md.digest();
+        }
+    }
+}
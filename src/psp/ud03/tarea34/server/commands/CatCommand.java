@@ -0,0 +1,90 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.BoundedLineReader;
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.PathResolver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Muestra un fichero de texto (UTF-8) en streaming: versión de show sin límite de tamaño.
+ * Respuesta: OK + grupos (N + N líneas) + "0". KO si no existe/no es fichero/no legible.
+ * <p>
+ * Comando: cat <ruta>
+ * <p>
+ * Protocolo (troceado):
+ * - OK y luego grupos de líneas:
+ * - una línea con el número de líneas del grupo (1..GROUP)
+ * - esas líneas
+ * - Al final, una línea "0".
+ * - Si falla la lectura a mitad (el OK ya ha salido), se termina con "-1" en vez de "0".
+ * <p>
+ * Por qué:
+ * - show tiene que mandar el total de líneas ANTES del contenido. cat no: las líneas
+ * salen según se leen, con memoria constante (un grupo), aunque el fichero sea enorme.
+ * - Los bytes no válidos en UTF-8 se sustituyen (nunca se corta la respuesta por eso).
+ * - Una línea de más de BoundedLineReader.MAX_LINE caracteres se envía partida en varias:
+ * la memoria sigue acotada aunque el fichero no tenga saltos de línea.
+ */
+public class CatCommand implements ICommand {
+
+    // Líneas por grupo
+    private static final int GROUP = 512;
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        if (params == null || params.trim().isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        Path p = PathResolver.resolve(ctx, params.trim());
+        if (!Files.exists(p) || !Files.isRegularFile(p) || !Files.isReadable(p)) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        BoundedLineReader br;
+        try {
+            br = BoundedLineReader.open(p);
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        ctx.reply("OK");
+
+        String[] group = new String[GROUP];
+        try (BoundedLineReader reader = br) {
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                group[count++] = line;
+                if (count == GROUP) {
+                    sendGroup(ctx, group, count);
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                sendGroup(ctx, group, count);
+            }
+        } catch (IOException e) {
+            ctx.writeLine("-1");
+            return false;
+        }
+
+        ctx.writeLine("0");
+        return false;
+    }
+
+    private static void sendGroup(CommandContext ctx, String[] group, int count) throws IOException {
+        ctx.writeLine(String.valueOf(count));
+        for (int i = 0; i < count; i++) {
+            ctx.writeLine(group[i]);
+            group[i] = null;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+
+import java.io.IOException;
+
+/**
+ * Activa o desactiva la compresión de las respuestas en ESTA conexión.
+ * Respuesta: OK (o KO si el modo no existe).
+ * <p>
+ * Comando: compress deflate | compress off
+ * <p>
+ * Protocolo en modo deflate (a partir de la respuesta SIGUIENTE):
+ * - La línea OK/KO sigue yendo en texto.
+ * - Tras OK, lo que antes eran líneas de texto (list, show, tree, find...) va dentro
+ * de UN bloque comprimido (ver DeflateBlockOutputStream): trozos con
+ * int tamañoOriginal + int tamañoComprimido + bytes, y fin = 0, 0.
+ * - download/rdownload: OK + long size (tamaño ORIGINAL) + bloque comprimido con el contenido.
+ * - upload: el cliente manda long size (tamaño ORIGINAL) + bloque comprimido.
+ * - Contenido ya comprimido (zip, jpg...) o que no gana nada: los trozos van tal cual
+ * (tamañoComprimido = 0), sin gastar CPU en deflate.
+ * <p>
+ * La respuesta del propio "compress" se envía con el modo que había ANTES.
+ */
+public class CompressCommand implements ICommand {
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        boolean enable;
+        if ("deflate".equalsIgnoreCase(params)) {
+            enable = true;
+        } else if ("off".equalsIgnoreCase(params)) {
+            enable = false;
+        } else {
+            ctx.reply("KO");
+            return false;
+        }
+
+        ctx.reply("OK");
+        ctx.setCompression(enable);
+        return false;
+    }
+}
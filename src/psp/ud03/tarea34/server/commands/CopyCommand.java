@@ -1,16 +1,20 @@
 package psp.ud03.tarea34.server.commands;
 
+import psp.ud03.tarea34.net.ProtocolV2;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.FileChanges;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.List;
 
 /**
  * Copia un fichero/directorio (según implementación; en tu proyecto es típico que sea fichero).
  * Respuesta: OK si copia, KO si error.
  * <p>
  * Comando: copy <src> <dst>
+ * (en texto las rutas no pueden llevar espacios; en el protocolo v2 sí)
  * <p>
  * Copia un fichero dentro del servidor (baseDir -> baseDir).
  * <p>
@@ -26,13 +30,35 @@ public class CopyCommand implements ICommand {
     @Override
     public boolean execute(CommandContext ctx, String params) throws IOException {
 
+        // 1) Validar y separar parámetros: src y dst
+        String[] p;
         try {
-            // 1) Validar y separar parámetros: src y dst
-            String[] p = split2(params);
+            p = split2(params);
+        } catch (IllegalArgumentException e) {
+            ctx.reply("KO");
+            return false;
+        }
+        return copy(ctx, p[0], p[1]);
+    }
+
+    /**
+     * Protocolo v2: las dos rutas llegan ya separadas (pueden llevar espacios).
+     */
+    @Override
+    public boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        if (args.size() != 2) {
+            ctx.reply("KO");
+            return false;
+        }
+        return copy(ctx, ProtocolV2.str(args, 0), ProtocolV2.str(args, 1));
+    }
+
+    private boolean copy(CommandContext ctx, String from, String to) throws IOException {
 
+        try {
             // 2) Resolver rutas seguras dentro de baseDir
-            Path src = PathResolver.resolve(ctx, p[0]);
-            Path dst = PathResolver.resolve(ctx, p[1]);
+            Path src = PathResolver.resolve(ctx, from);
+            Path dst = PathResolver.resolve(ctx, to);
 
             // 3) Validaciones mínimas
             if (!Files.exists(src) || !Files.isRegularFile(src)) {
@@ -48,6 +74,7 @@ public class CopyCommand implements ICommand {
 
             // 5) Copiar
             Files.copy(src, dst, StandardCopyOption.COPY_ATTRIBUTES);
+            FileChanges.fire(dst);
 
             ctx.reply("OK");
             return false;
@@ -0,0 +1,159 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.DigestCache;
+import psp.ud03.tarea34.server.FileChanges;
+import psp.ud03.tarea34.server.ServerLogger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Upload con deduplicación: si el servidor ya tiene un fichero con el MISMO contenido,
+ * no hace falta mandar los bytes.
+ * Respuesta: OK + LINKED | OK + SEND (+ upload normal) | KO.
+ * <p>
+ * Comando: dupload <sha256_hex> <size> <nombre_fichero>
+ * <p>
+ * Protocolo:
+ * 1) Cliente manda el hash SHA-256 y el tamaño de su fichero + el nombre destino.
+ * 2) Servidor responde:
+ * - "KO" si no puede crear el destino (igual que upload: existe ya, permisos...).
+ * - "OK" + "LINKED": ya tenía ese contenido; el destino se ha creado en el servidor
+ * (copia local). El cliente NO manda nada más.
+ * - "OK" + "SEND": no lo tenía; a continuación va exactamente lo mismo que en upload
+ * tras el OK (long size + bytes, o bloque comprimido en modo compress).
+ * <p>
+ * Notas:
+ * - Los contenidos conocidos salen de DigestCache (ficheros subidos o con hash calculado).
+ * Una entrada solo vale si el fichero sigue con el mismo tamaño/fecha/inodo.
+ * - Es una copia, NO un enlace duro: los dos nombres compartirían fecha y permisos
+ * (touch cambia la fecha en el sitio y solo avisaría del nombre tocado). Lo que se
+ * ahorra es la red, no el disco.
+ * - La copia se hace en un temporal y se publica con un enlace duro al nombre final,
+ * que falla si ya existe: si otra sesión crea ese nombre a la vez, KO sin tocar lo suyo.
+ * - La línea LINKED/SEND va siempre en texto normal (también en modo comprimido).
+ */
+public class DedupUploadCommand implements ICommand {
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        // 1) Parámetros: hash, tamaño, nombre (el nombre puede tener espacios)
+        if (params == null || params.trim().isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        String[] parts = params.trim().split("\\s+", 3);
+        if (parts.length < 3 || !isSha256(parts[0])) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        String hex = parts[0].toLowerCase();
+        long size;
+        try {
+            size = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            ctx.reply("KO");
+            return false;
+        }
+        if (size < 0) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        // 2) Destino: mismas reglas que upload (solo el nombre, no sobrescribir)
+        String fileName = Paths.get(parts[2].trim()).getFileName().toString();
+        Files.createDirectories(ctx.currentDir());
+        Path target = ctx.currentDir().resolve(fileName).normalize();
+
+        if (Files.exists(target)) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        // 3) ¿Ya tenemos ese contenido?
+        Path source = DigestCache.findByContent(hex, size);
+        if (source != null && copyNew(source, target)) {
+            FileChanges.fire(target);
+            DigestCache.put(target, Files.readAttributes(target, BasicFileAttributes.class), hex);
+
+            ctx.reply("OK");
+            ctx.binaryReply();
+            ctx.writeLine("LINKED");
+            ServerLogger.log(ctx.clientIp(), "DEDUP " + target.getFileName() + " <- " + source);
+            return false;
+        }
+
+        // 4) No lo tenemos: upload normal
+        FileChannel fc;
+        try {
+            fc = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        FileChanges.fire(target);
+
+        ctx.reply("OK");
+        boolean compressed = ctx.binaryReply();
+        ctx.writeLine("SEND");
+        ctx.flush();
+
+        // Si el hash anunciado no coincide con lo recibido, se anota en el log
+        UploadCommand.receive(ctx, target, fc, compressed, hex);
+        return false;
+    }
+
+    /**
+     * Crea 'target' con una copia de 'source' (temporal + enlace duro al nombre final;
+     * sin enlaces duros, move sin reemplazar). Nunca borra ni pisa un 'target' ajeno.
+     *
+     * @return false si no se pudo (también si 'target' apareció mientras tanto)
+     */
+    private static boolean copyNew(Path source, Path target) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", ".dupload");
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+
+            try {
+                Files.createLink(target, tmp);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                if (e instanceof FileAlreadyExistsException) {
+                    return false;
+                }
+                // FS sin enlaces duros: move (sin REPLACE_EXISTING)
+                Files.move(tmp, target);
+                tmp = null;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static boolean isSha256(String s) {
+        if (s.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,7 @@
 package psp.ud03.tarea34.server.commands;
 
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.FileChanges;
 import psp.ud03.tarea34.server.PathResolver;
 import psp.ud03.tarea34.server.ServerLogger;
 
@@ -48,6 +49,7 @@ public class DeleteCommand implements ICommand {
         // 4) Intentar borrar
         try {
             Files.delete(pathDelete);
+            FileChanges.fire(pathDelete);
             ctx.reply("OK");
         } catch (IOException e) {
             // Si falla el borrado, respondemos KO (el motivo exacto depende del SO/permisos)
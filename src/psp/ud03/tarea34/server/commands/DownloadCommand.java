@@ -1,13 +1,16 @@
 package psp.ud03.tarea34.server.commands;
 
+import psp.ud03.tarea34.net.DeflateBlockOutputStream;
 import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
 import psp.ud03.tarea34.server.PathResolver;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Baja un fichero del servidor al cliente.
@@ -35,6 +38,14 @@ import java.nio.file.Path;
  * - size bytes (contenido exacto del fichero)
  * <p>
  * Si no se respeta este orden, el cliente se queda colgado o se desincroniza.
+ * <p>
+ * Rendimiento:
+ * - Los bytes se envían con ProtocolIO.sendFile (FileChannel.transferTo => sendfile),
+ * sin copiarlos al heap. Si el socket no tiene canal, se usa la copia por streams.
+ * <p>
+ * Modo comprimido (compress deflate):
+ * - OK + long size (tamaño ORIGINAL) + bloque comprimido (ver DeflateBlockOutputStream).
+ * - Si la extensión indica contenido ya comprimido, los trozos van sin deflate.
  */
 public class DownloadCommand implements ICommand {
 
@@ -50,7 +61,36 @@ public class DownloadCommand implements ICommand {
         // 2) Resolver ruta del fichero en el servidor
         Path file = PathResolver.resolve(ctx, params);
 
-        // 3) Comprobar que existe y es fichero
+        // 3-6) Fichero completo = rango [0, size)
+        sendRange(ctx, file, 0, -1);
+
+        return false;
+    }
+
+    /**
+     * Envía un trozo del fichero con el mismo formato que download:
+     * OK + long size + size bytes (size = bytes del trozo, no del fichero).
+     * <p>
+     * Lo usan download (offset 0, todo) y rdownload (descargas reanudables/paralelas).
+     *
+     * @param offset primer byte a enviar (0..tamaño del fichero)
+     * @param length bytes a enviar; negativo o más allá del final => hasta el final
+     * @return true si respondió OK (y envió los bytes)
+     */
+    static boolean sendRange(CommandContext ctx, Path file, long offset, long length) throws IOException {
+        return sendRange(ctx, file, offset, length, -1, null);
+    }
+
+    /**
+     * Como sendRange, pero KO si el fichero ya no es el esperado (rdownload con if=).
+     *
+     * @param expectedSize     tamaño total esperado (negativo = sin comprobar)
+     * @param expectedModified fecha de modificación esperada, como FileTime.toString (null = sin comprobar)
+     */
+    static boolean sendRange(CommandContext ctx, Path file, long offset, long length,
+                             long expectedSize, String expectedModified) throws IOException {
+
+        // Comprobar que existe y es fichero
         if (!Files.exists(file)) {
             ctx.reply("KO");
             return false;
@@ -61,20 +101,54 @@ public class DownloadCommand implements ICommand {
             return false;
         }
 
-        // 4) Tamaño del fichero (para que el cliente sepa cuántos bytes leer)
-        long size = Files.size(file);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Sin permisos, bloqueado...: aún no hemos dicho OK => KO
+            ctx.reply("KO");
+            return false;
+        }
+
+        try (FileChannel fc = channel) {
 
-        // 5) Enviar OK (texto)
-        ctx.reply("OK");
+            // Tamaño del trozo (para que el cliente sepa cuántos bytes leer)
+            long fileSize = fc.size();
+            if (offset < 0 || offset > fileSize) {
+                ctx.reply("KO");
+                return false;
+            }
 
-        // 6) Enviar tamaño y contenido (binario)
-        ctx.dos().writeLong(size);
-        ctx.dos().flush();
+            // Reanudación: lo que ya tiene el cliente salió de OTRA versión del fichero
+            if ((expectedSize >= 0 && expectedSize != fileSize)
+                    || (expectedModified != null
+                    && !expectedModified.equals(Files.getLastModifiedTime(file).toString()))) {
+                ctx.reply("KO");
+                return false;
+            }
 
-        try (FileInputStream fis = new FileInputStream(file.toFile())) {
-            ProtocolIO.copyNBytes(fis, ctx.out(), size);
+            long size = fileSize - offset;
+            if (length >= 0 && length < size) {
+                size = length;
+            }
+
+            // Enviar OK (texto)
+            ctx.reply("OK");
+            boolean compressed = ctx.binaryReply();
+
+            // Enviar tamaño y contenido (binario)
+            // (OK + size quedan en el buffer; sendFile hace flush antes de mandar los bytes)
+            ctx.dos().writeLong(size);
+
+            if (compressed) {
+                fc.position(offset);
+                boolean tryCompress = !DeflateBlockOutputStream.looksCompressed(file.getFileName().toString());
+                ProtocolIO.sendCompressed(Channels.newInputStream(fc), size, ctx.out(), tryCompress);
+            } else {
+                ProtocolIO.sendFile(fc, offset, size, ctx.socket(), ctx.out());
+            }
         }
 
-        return false;
+        return true;
     }
 }
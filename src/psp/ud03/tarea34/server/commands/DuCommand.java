@@ -0,0 +1,56 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.DirSizeCache;
+import psp.ud03.tarea34.server.PathResolver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Espacio ocupado por un directorio y cada uno de sus subdirectorios (recursivo).
+ * Respuesta: OK + líneas "bytes ficheros nombre" + línea vacía (fin). KO si error.
+ * <p>
+ * Comando: du [dir]
+ * <p>
+ * Si no se indica dir, usa el currentDir.
+ * <p>
+ * Respuesta:
+ * - KO si no existe o no es directorio legible.
+ * - OK y luego:
+ * - una línea por subdirectorio directo (por nombre): "<bytes> <ficheros> <nombre>"
+ * (bytes y ficheros de TODO lo que cuelga de él)
+ * - una línea con el total del propio directorio: "<bytes> <ficheros> ."
+ * - línea vacía terminadora
+ * <p>
+ * Rendimiento:
+ * - Los totales salen de DirSizeCache (recorrido paralelo + totales por directorio
+ * guardados e invalidados solo en la rama que cambia): repetir du sobre un árbol
+ * grande que no ha cambiado solo lista el directorio pedido.
+ */
+public class DuCommand implements ICommand {
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        Path start = PathResolver.resolve(ctx, (params == null) ? "" : params.trim());
+
+        if (!Files.exists(start) || !Files.isDirectory(start) || !Files.isReadable(start)) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        DirSizeCache.Report report = DirSizeCache.report(start);
+
+        ctx.reply("OK");
+        for (Map.Entry<String, DirSizeCache.Usage> e : report.subdirs().entrySet()) {
+            ctx.writeLine(e.getValue().bytes() + " " + e.getValue().files() + " " + e.getKey());
+        }
+        ctx.writeLine(report.total().bytes() + " " + report.total().files() + " .");
+
+        ctx.writeLine("");
+        return false;
+    }
+}
@@ -1,11 +1,10 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.MetadataCache;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 /**
@@ -31,7 +30,7 @@ public class ExistsCommand implements ICommand {
             Path p = PathResolver.resolve(ctx, target);
 
             ctx.reply("OK");
-            ProtocolIO.writeLine(ctx.out(), Boolean.toString(Files.exists(p)));
+            ctx.writeLine(Boolean.toString(MetadataCache.stat(p).exists()));
         } catch (Exception e) {
             ctx.reply("KO");
         }
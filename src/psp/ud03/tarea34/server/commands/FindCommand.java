@@ -1,7 +1,9 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
+import psp.ud03.tarea34.net.ProtocolV2;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.FileNameIndex;
+import psp.ud03.tarea34.server.ParallelWalker;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
@@ -9,9 +11,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Busca recursivo por nombre que contenga pattern (en dir o cwd).
@@ -25,6 +25,13 @@ import java.util.stream.Stream;
  * Respuesta:
  * - KO si faltan params o dir inválido.
  * - OK + líneas con rutas relativas (a dir) + línea vacía terminadora.
+ * <p>
+ * Rendimiento:
+ * - Con find.indice=true la búsqueda va contra FileNameIndex (en memoria, sin tocar
+ * el disco). Mientras el índice se construye, o si dir queda fuera de él, se
+ * recorre el disco en paralelo (ParallelWalker, sin seguir enlaces simbólicos).
+ * - Con límite, se devuelven las MAX_RESULTS primeras coincidencias del recorrido
+ * en orden (siempre las mismas), ordenadas.
  */
 public class FindCommand implements ICommand {
 
@@ -39,9 +46,22 @@ public class FindCommand implements ICommand {
         }
 
         String[] parts = params.trim().split("\\s+", 2);
-        String pattern = parts[0].toLowerCase(Locale.ROOT);
-        String dirParam = (parts.length == 2) ? parts[1].trim() : "";
+        return find(ctx, parts[0], (parts.length == 2) ? parts[1].trim() : "");
+    }
+
+    /**
+     * Protocolo v2: patrón [dir] ya separados (los dos pueden llevar espacios).
+     */
+    @Override
+    public boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        if (args.isEmpty() || args.size() > 2 || ProtocolV2.str(args, 0).isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+        return find(ctx, ProtocolV2.str(args, 0), (args.size() == 2) ? ProtocolV2.str(args, 1) : "");
+    }
 
+    private boolean find(CommandContext ctx, String pattern, String dirParam) throws IOException {
         Path start = PathResolver.resolve(ctx, dirParam);
         if (!Files.exists(start) || !Files.isDirectory(start) || !Files.isReadable(start)) {
             ctx.reply("KO");
@@ -50,21 +70,22 @@ public class FindCommand implements ICommand {
 
         ctx.reply("OK");
 
-        try (Stream<Path> st = Files.walk(start)) {
-            List<String> results = st
-                    .filter(p -> p.getFileName() != null)
-                    .filter(p -> p.getFileName().toString().toLowerCase(Locale.ROOT).contains(pattern))
-                    .limit(MAX_RESULTS)
-                    .map(p -> start.relativize(p).toString())
+        List<String> results = FileNameIndex.find(start, pattern, MAX_RESULTS);
+
+        if (results == null) {
+            results = ParallelWalker.walk(start, Comparator.naturalOrder(),
+                            name -> FileNameIndex.containsIgnoreCase(name, pattern), MAX_RESULTS, false)
+                    .stream()
+                    .map(ParallelWalker.Entry::path)
                     .sorted(Comparator.naturalOrder())
                     .collect(Collectors.toList());
+        }
 
-            for (String r : results) {
-                ProtocolIO.writeLine(ctx.out(), r);
-            }
+        for (String r : results) {
+            ctx.writeLine(r);
         }
 
-        ProtocolIO.writeLine(ctx.out(), "");
+        ctx.writeLine("");
         return false;
     }
 }
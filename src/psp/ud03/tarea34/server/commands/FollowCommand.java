@@ -0,0 +1,292 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.PathResolver;
+import psp.ud03.tarea34.server.ServerLogger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sigue un fichero que va creciendo (como "tail -F").
+ * Respuesta: OK + líneas "|texto" hasta que el cliente mande una línea + "" (vacía). KO si error.
+ * <p>
+ * Comando: follow <ruta> [n]
+ * <p>
+ * Protocolo:
+ * - KO si faltan params, n no es válido o no es fichero legible.
+ * - KO si las n últimas líneas ocupan más de lo que mira tail (TailCommand.MAX_BYTES).
+ * - KO si ya hay follow.max follow en curso (la sesión sigue abierta).
+ * - OK y luego:
+ * - las últimas n líneas (por defecto 10), cada una con el prefijo "|"
+ * - cada línea nueva que se añada al fichero, también con "|"
+ * - Para terminar, el cliente manda UNA línea cualquiera ("stop"). El servidor la
+ * consume y cierra la respuesta con una línea vacía (el prefijo "|" hace que una
+ * línea vacía del fichero nunca se confunda con el final).
+ * <p>
+ * Comportamiento:
+ * - Solo se envían líneas completas (terminadas en salto de línea).
+ * - Si el fichero se trunca, se vuelve a leer desde el principio.
+ * - Si se rota (se borra o se sustituye por otro con el mismo nombre), se espera a
+ * que exista de nuevo y se sigue el nuevo desde el principio.
+ * <p>
+ * Rendimiento:
+ * - Sondeo adaptativo: cada POLL_MIN ms mientras haya cambios; si no hay, la espera
+ * se duplica hasta POLL_MAX. Un log parado casi no cuesta nada.
+ * - La espera ES la lectura del socket (con timeout): el "stop" se atiende al momento.
+ * - Mientras dura, la sesión ocupa su hilo (también en el motor NIO).
+ * <p>
+ * Límite (follow.max):
+ * - Como mucho maxFollowers a la vez en todo el servidor. Con el motor NIO cada uno
+ * ocupa un hilo del pool: sin límite, unos pocos follow dejarían sin hilos al resto.
+ * - Pasado el límite se responde KO y la sesión sigue (BUSY significa que se cierra
+ * la conexión, y aquí solo sobra el follow, no la sesión).
+ */
+public class FollowCommand implements ICommand {
+
+    private static final int DEFAULT_N = 10;
+    private static final int MAX_N = 5000;
+
+    private static final int POLL_MIN = 50;
+    private static final int POLL_MAX = 1000;
+
+    // Bytes nuevos leídos por vuelta, como mucho (el resto en la siguiente, sin esperar)
+    private static final int READ_MAX = 1024 * 1024;
+
+    // Línea sin salto al final más larga que esto: se envía partida
+    private static final int LINE_MAX = 1024 * 1024;
+
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private static volatile int maxFollowers = 8;
+
+    /**
+     * Follow simultáneos como mucho (llamar al arrancar).
+     */
+    public static void configure(int max) {
+        maxFollowers = Math.max(1, max);
+    }
+
+    /**
+     * Follow en curso.
+     */
+    public static int active() {
+        return ACTIVE.get();
+    }
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        if (params == null || params.trim().isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        String[] parts = params.trim().split("\\s+");
+        String route = parts[0];
+
+        int n = DEFAULT_N;
+        if (parts.length >= 2) {
+            try {
+                n = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                ctx.reply("KO");
+                return false;
+            }
+        }
+        if (n < 0 || n > MAX_N) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        Path p = PathResolver.resolve(ctx, route);
+        if (!Files.exists(p) || !Files.isRegularFile(p) || !Files.isReadable(p)) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        if (ACTIVE.incrementAndGet() > maxFollowers) {
+            ACTIVE.decrementAndGet();
+            ServerLogger.log(ctx.clientIp(), "FOLLOW limit active=" + maxFollowers);
+            ctx.reply("KO");
+            return false;
+        }
+        try {
+            return follow(ctx, p, n);
+        } finally {
+            ACTIVE.decrementAndGet();
+        }
+    }
+
+    /**
+     * Envía OK, las últimas n líneas y las nuevas hasta el "stop" del cliente.
+     *
+     * @return true si el cliente se ha ido (cerrar la sesión)
+     */
+    private static boolean follow(CommandContext ctx, Path p, int n) throws IOException {
+        FileChannel fc;
+        try {
+            fc = FileChannel.open(p, StandardOpenOption.READ);
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        Socket socket = ctx.socket();
+        int oldTimeout = socket.getSoTimeout();
+
+        try {
+            Object key = fileKey(p);
+            long pos = fc.size();
+
+            List<String> last;
+            try {
+                last = TailCommand.lastLines(fc, pos, n);
+            } catch (IOException e) {
+                ctx.reply("KO");
+                return false;
+            }
+
+            ctx.reply("OK");
+            for (String line : last) {
+                ctx.writeLine("|" + line);
+            }
+            ctx.flush();
+
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            byte[] pending = new byte[0];
+            int delay = POLL_MIN;
+
+            while (true) {
+                // 1) ¿Ha mandado algo el cliente? (esperando como mucho 'delay' ms)
+                socket.setSoTimeout(delay);
+                try {
+                    if (!ctx.in().awaitData()) {
+                        ServerLogger.log(ctx.clientIp(), "FOLLOW client gone");
+                        return true;
+                    }
+                    socket.setSoTimeout(oldTimeout);
+                    ctx.in().readLine();
+                    break;
+                } catch (SocketTimeoutException e) {
+                    // Nada todavía: seguimos con el fichero
+                }
+
+                // 2) Rotación: el nombre apunta a otro fichero (o a ninguno)
+                Object now = fileKey(p);
+                if (now == null) {
+                    delay = Math.min(delay * 2, POLL_MAX);
+                    continue;
+                }
+                if (!Objects.equals(now, key)) {
+                    fc.close();
+                    try {
+                        fc = FileChannel.open(p, StandardOpenOption.READ);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    key = now;
+                    pos = 0;
+                    pending = new byte[0];
+                }
+
+                // 3) Truncado: desde el principio
+                long size = fc.size();
+                if (size < pos) {
+                    pos = 0;
+                    pending = new byte[0];
+                }
+
+                if (size == pos) {
+                    delay = Math.min(delay * 2, POLL_MAX);
+                    continue;
+                }
+
+                // 4) Bytes nuevos => líneas completas
+                long end = Math.min(size, pos + READ_MAX);
+                while (pos < end) {
+                    chunk.clear();
+                    chunk.limit((int) Math.min(chunk.capacity(), end - pos));
+                    int r = fc.read(chunk, pos);
+                    if (r <= 0) {
+                        break;
+                    }
+                    pos += r;
+                    pending = sendLines(ctx, pending, chunk.array(), r);
+                }
+                ctx.flush();
+
+                // Quedan bytes: otra vuelta casi sin esperar (0 sería "sin timeout")
+                delay = (end < size) ? 1 : POLL_MIN;
+            }
+        } finally {
+            socket.setSoTimeout(oldTimeout);
+            fc.close();
+        }
+
+        // Fin de la respuesta
+        ctx.writeLine("");
+        return false;
+    }
+
+    /**
+     * Envía las líneas completas de pending + data[0, len) y devuelve lo que queda
+     * sin salto de línea.
+     */
+    private static byte[] sendLines(CommandContext ctx, byte[] pending, byte[] data, int len) throws IOException {
+        int from = 0;
+        for (int i = 0; i < len; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+
+            int lineLen = i - from;
+            byte[] line = new byte[pending.length + lineLen];
+            System.arraycopy(pending, 0, line, 0, pending.length);
+            System.arraycopy(data, from, line, pending.length, lineLen);
+            pending = new byte[0];
+
+            int l = line.length;
+            if (l > 0 && line[l - 1] == '\r') {
+                l--;
+            }
+            ctx.writeLine("|" + new String(line, 0, l, StandardCharsets.UTF_8));
+            from = i + 1;
+        }
+
+        byte[] rest = new byte[pending.length + (len - from)];
+        System.arraycopy(pending, 0, rest, 0, pending.length);
+        System.arraycopy(data, from, rest, pending.length, len - from);
+
+        // Línea enorme sin salto: se envía lo que hay para no crecer sin límite
+        if (rest.length > LINE_MAX) {
+            ctx.writeLine("|" + new String(rest, StandardCharsets.UTF_8));
+            return new byte[0];
+        }
+        return rest;
+    }
+
+    /**
+     * Identidad del fichero (inodo si el sistema lo da). null si no existe.
+     */
+    private static Object fileKey(Path p) {
+        try {
+            BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+            Object key = a.fileKey();
+            return (key != null) ? key : a.creationTime();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
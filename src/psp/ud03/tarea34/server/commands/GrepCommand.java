@@ -0,0 +1,486 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.net.ProtocolV2;
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.ParallelWalker;
+import psp.ud03.tarea34.server.PathResolver;
+import psp.ud03.tarea34.server.ServerLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Busca un texto DENTRO de los ficheros de un directorio (recursivo), en el servidor.
+ * Respuesta: OK + coincidencias "ruta:línea:texto" + línea vacía (fin). KO si error.
+ * <p>
+ * Comando: grep [-E] <patrón> [dir]
+ * <p>
+ * - Sin -E el patrón es un texto literal; con -E es una expresión regular (java.util.regex).
+ * - Si el patrón lleva espacios, va entre comillas dobles: grep "hola mundo" logs
+ * - Si no se indica dir, busca desde currentDir.
+ * - En el protocolo v2 los argumentos van separados y el patrón no necesita comillas.
+ * <p>
+ * Respuesta:
+ * - KO si faltan params, la expresión no es válida o dir no es un directorio legible.
+ * - OK + una línea por cada línea de fichero que coincide: ruta relativa (a dir),
+ * número de línea (desde 1) y el texto (cortado a MAX_TEXT caracteres) + línea vacía.
+ * - Texto literal que coincide más allá del principio de una línea larga: en vez del
+ * principio, se envía el trozo de la línea que empieza un poco antes de la coincidencia.
+ * - Orden: el de find/tree (recorrido por nombre), y dentro de cada fichero por línea.
+ * <p>
+ * Límites:
+ * - Como mucho MAX_MATCHES coincidencias (después se para).
+ * - Ficheros de más de MAX_FILE_SIZE bytes: se saltan.
+ * - Ficheros binarios (con un byte 0 en los primeros BINARY_PROBE bytes): se saltan.
+ * - Con -E la expresión ve como mucho MAX_REGEX_LINE caracteres de cada línea, y toda la
+ * búsqueda tiene REGEX_TIMEOUT_MS: una expresión con retroceso exponencial no puede
+ * dejar un hilo ocupado indefinidamente. Pasado el tiempo se para (como con MAX_MATCHES).
+ * <p>
+ * Rendimiento:
+ * - Los ficheros se leen en paralelo en un pool propio y acotado (POOL hilos "grep-io"):
+ * las lecturas bloquean y no deben ocupar DiskPool (lo usa ParallelWalker para el recorrido).
+ * Si su cola se llena, el hilo de la sesión lee el fichero él mismo (frena a quien más pide).
+ * - Los pequeños con una lectura posicional, los grandes proyectados en memoria (FileChannel.map).
+ * - Texto literal: se busca por bytes (UTF-8) sin decodificar el fichero; solo se
+ * decodifica lo que se envía de la línea que coincide (como mucho MAX_TEXT caracteres).
+ * - Con -E solo se decodifica lo que ve la expresión (MAX_REGEX_LINE caracteres), no la
+ * línea entera: una línea de cientos de MB no se convierte en un String.
+ * - Las coincidencias se envían según van acabando los ficheros, en orden, sin esperar
+ * al final del recorrido.
+ */
+public class GrepCommand implements ICommand {
+
+    private static final int MAX_MATCHES = 1000;
+    private static final long MAX_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_TEXT = 500;
+    private static final int MAX_FILES = 200_000;
+
+    private static final int BINARY_PROBE = 8 * 1024;
+
+    // Hasta aquí se lee con read(); más grande => map()
+    private static final int MAP_THRESHOLD = 256 * 1024;
+
+    // Caracteres de cada línea que ve la expresión regular
+    private static final int MAX_REGEX_LINE = 16 * 1024;
+
+    // Tiempo máximo de una búsqueda con -E
+    private static final long REGEX_TIMEOUT_MS = 10_000;
+
+    // Pool de lectura: hilos, tareas en cola y pila (la recursión de java.util.regex)
+    private static final int POOL = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int POOL_QUEUE = 256;
+    private static final long STACK_SIZE = 8L * 1024 * 1024;
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    /**
+     * Qué se busca: literal (bytes) o expresión regular (por línea).
+     *
+     * @param deadline System.nanoTime() a partir del cual se deja de buscar (solo con regex)
+     */
+    private record Query(byte[] literal, Pattern regex, long deadline) {
+    }
+
+    /**
+     * La expresión regular ha pasado de su tiempo (o la búsqueda se ha parado).
+     */
+    private static final class RegexAbort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RegexAbort() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Línea vista por el Matcher: cada tantos charAt comprueba el reloj y 'stop'.
+     * Así se corta también una sola línea que tarda demasiado.
+     */
+    private static final class DeadlineChars implements CharSequence {
+
+        private final String text;
+        private final long deadline;
+        private final AtomicBoolean stop;
+        private int calls;
+
+        DeadlineChars(String text, long deadline, AtomicBoolean stop) {
+            this.text = text;
+            this.deadline = deadline;
+            this.stop = stop;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++calls & 0xFFF) == 0 && (stop.get() || System.nanoTime() - deadline > 0)) {
+                throw new RegexAbort();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineChars(text.substring(start, end), deadline, stop);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(
+                POOL, POOL,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(POOL_QUEUE),
+                r -> {
+                    Thread t = new Thread(null, r, "grep-io-" + n.incrementAndGet(), STACK_SIZE);
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        ex.allowCoreThreadTimeOut(true);
+        return ex;
+    }
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        if (params == null || params.trim().isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        String rest = params.trim();
+        boolean regex = false;
+        if (rest.startsWith("-E ")) {
+            regex = true;
+            rest = rest.substring(3).trim();
+        }
+
+        // Patrón: primera palabra, o entre comillas si lleva espacios
+        String pattern;
+        if (rest.startsWith("\"")) {
+            int end = rest.indexOf('"', 1);
+            if (end == -1) {
+                ctx.reply("KO");
+                return false;
+            }
+            pattern = rest.substring(1, end);
+            rest = rest.substring(end + 1).trim();
+        } else {
+            String[] parts = rest.split("\\s+", 2);
+            pattern = parts[0];
+            rest = (parts.length == 2) ? parts[1].trim() : "";
+        }
+
+        return grep(ctx, regex, pattern, rest);
+    }
+
+    /**
+     * Protocolo v2: [-E] patrón [dir] ya separados (el patrón puede llevar espacios sin comillas).
+     */
+    @Override
+    public boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        int i = 0;
+        boolean regex = false;
+        if (args.size() > 1 && "-E".equals(args.get(0))) {
+            regex = true;
+            i = 1;
+        }
+        if (i >= args.size() || args.size() > i + 2) {
+            ctx.reply("KO");
+            return false;
+        }
+        String dir = (args.size() == i + 2) ? ProtocolV2.str(args, i + 1) : "";
+        return grep(ctx, regex, ProtocolV2.str(args, i), dir);
+    }
+
+    private boolean grep(CommandContext ctx, boolean regex, String pattern, String dir) throws IOException {
+        if (pattern.isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        Query query;
+        try {
+            query = regex
+                    ? new Query(null, Pattern.compile(pattern),
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REGEX_TIMEOUT_MS))
+                    : new Query(pattern.getBytes(StandardCharsets.UTF_8), null, 0);
+        } catch (PatternSyntaxException e) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        Path start = PathResolver.resolve(ctx, dir);
+        if (!Files.exists(start) || !Files.isDirectory(start) || !Files.isReadable(start)) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        ctx.reply("OK");
+
+        List<ParallelWalker.Entry> files = new ArrayList<>();
+        for (ParallelWalker.Entry e : ParallelWalker.walk(start, Comparator.naturalOrder(), name -> true, MAX_FILES, false)) {
+            if (!e.directory()) {
+                files.add(e);
+            }
+        }
+
+        if (!search(ctx, start, files, query)) {
+            ServerLogger.log(ctx.clientIp(), "GREP timeout after " + REGEX_TIMEOUT_MS + " ms: " + pattern);
+        }
+
+        ctx.writeLine("");
+        return false;
+    }
+
+    /**
+     * Lanza los ficheros en paralelo (ventana acotada) y envía los resultados en orden.
+     *
+     * @return false si se paró por REGEX_TIMEOUT_MS
+     */
+    private boolean search(CommandContext ctx, Path start, List<ParallelWalker.Entry> files, Query query)
+            throws IOException {
+
+        int window = Math.max(4, POOL * 2);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        Deque<CompletableFuture<List<String>>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        int sent = 0;
+
+        try {
+            while (sent < MAX_MATCHES && (next < files.size() || !inFlight.isEmpty())) {
+
+                if (expired(query)) {
+                    return false;
+                }
+
+                while (next < files.size() && inFlight.size() < window) {
+                    ParallelWalker.Entry e = files.get(next++);
+                    Path file = start.resolve(e.path());
+                    inFlight.add(CompletableFuture.supplyAsync(
+                            () -> scanFile(file, e.path(), query, stop), EXECUTOR));
+                }
+
+                for (String line : inFlight.removeFirst().join()) {
+                    if (sent >= MAX_MATCHES) {
+                        break;
+                    }
+                    ctx.writeLine(line);
+                    sent++;
+                }
+            }
+            return !expired(query);
+        } finally {
+            // Límite alcanzado (o error al enviar): lo que siga en marcha termina enseguida
+            stop.set(true);
+        }
+    }
+
+    private static boolean expired(Query query) {
+        return query.regex() != null && System.nanoTime() - query.deadline() > 0;
+    }
+
+    /**
+     * Coincidencias de un fichero (como mucho MAX_MATCHES). Vacío si no se puede o no se debe leer.
+     */
+    private static List<String> scanFile(Path file, String rel, Query query, AtomicBoolean stop) {
+        List<String> out = new ArrayList<>();
+        if (stop.get()) {
+            return out;
+        }
+
+        try {
+            BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!a.isRegularFile() || a.size() == 0 || a.size() > MAX_FILE_SIZE) {
+                return out;
+            }
+
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = Math.min(fc.size(), MAX_FILE_SIZE);
+                ByteBuffer buf;
+                if (size <= MAP_THRESHOLD) {
+                    buf = ByteBuffer.allocate((int) size);
+                    while (buf.hasRemaining() && fc.read(buf, buf.position()) > 0) {
+                        // lectura posicional hasta llenar
+                    }
+                    buf.flip();
+                } else {
+                    buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+
+                if (isBinary(buf)) {
+                    return out;
+                }
+
+                if (query.literal() != null) {
+                    scanLiteral(buf, query.literal(), rel, out, stop);
+                } else {
+                    scanRegex(buf, query, rel, out, stop);
+                }
+            }
+        } catch (IOException | RuntimeException | InternalError e) {
+            // Sin permisos, borrado a mitad, truncado mientras estaba proyectado (InternalError),
+            // expresión fuera de tiempo (RegexAbort)...: se salta
+        }
+        return out;
+    }
+
+    private static boolean isBinary(ByteBuffer buf) {
+        int n = Math.min(buf.limit(), BINARY_PROBE);
+        for (int i = 0; i < n; i++) {
+            if (buf.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Busca los bytes del patrón; cada coincidencia => su línea (una vez por línea).
+     */
+    private static void scanLiteral(ByteBuffer buf, byte[] pat, String rel, List<String> out, AtomicBoolean stop) {
+        int limit = buf.limit();
+        byte first = pat[0];
+
+        int lineNo = 1;
+        int counted = 0; // hasta aquí ya se han contado los '\n'
+
+        int i = 0;
+        while (i + pat.length <= limit && out.size() < MAX_MATCHES) {
+            if (buf.get(i) != first || !matchesAt(buf, i, pat)) {
+                i++;
+                continue;
+            }
+
+            int lineStart = i;
+            while (lineStart > 0 && buf.get(lineStart - 1) != '\n') {
+                lineStart--;
+            }
+            int lineEnd = i + pat.length;
+            while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+
+            for (int k = counted; k < lineStart; k++) {
+                if (buf.get(k) == '\n') {
+                    lineNo++;
+                }
+            }
+            counted = lineStart;
+
+            out.add(rel + ":" + lineNo + ":" + around(buf, lineStart, lineEnd, i, pat.length));
+            if (stop.get()) {
+                return;
+            }
+
+            // Siguiente línea
+            i = lineEnd + 1;
+        }
+    }
+
+    private static boolean matchesAt(ByteBuffer buf, int pos, byte[] pat) {
+        for (int j = 1; j < pat.length; j++) {
+            if (buf.get(pos + j) != pat[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Expresión regular: línea a línea (decodificando cada línea, como mucho MAX_REGEX_LINE
+     * caracteres). Lanza RegexAbort si se pasa de query.deadline().
+     */
+    private static void scanRegex(ByteBuffer buf, Query query, String rel, List<String> out, AtomicBoolean stop) {
+        int limit = buf.limit();
+        Matcher m = query.regex().matcher("");
+
+        int lineNo = 1;
+        int lineStart = 0;
+        while (lineStart < limit && out.size() < MAX_MATCHES) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+
+            // MAX_REGEX_LINE caracteres son como mucho 4 bytes UTF-8 cada uno
+            String line = decode(buf, lineStart, Math.min(lineEnd, lineStart + MAX_REGEX_LINE * 4), lineEnd);
+            String seen = (line.length() <= MAX_REGEX_LINE) ? line : line.substring(0, MAX_REGEX_LINE);
+            if (m.reset(new DeadlineChars(seen, query.deadline(), stop)).find()) {
+                out.add(rel + ":" + lineNo + ":" + cut(seen));
+                if (stop.get()) {
+                    return;
+                }
+            }
+
+            lineNo++;
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Texto a enviar de la línea [lineStart, lineEnd) con una coincidencia de 'len' bytes
+     * en 'hit': MAX_TEXT caracteres desde el principio de la línea o, si la coincidencia
+     * no cabe en ellos, desde MAX_TEXT / 2 bytes antes de ella. Solo se decodifica ese trozo.
+     */
+    private static String around(ByteBuffer buf, int lineStart, int lineEnd, int hit, int len) {
+        int from = lineStart;
+        // Cada carácter ocupa 1 byte o más: si acaba en los MAX_TEXT primeros bytes, se ve
+        if (hit + len - lineStart > MAX_TEXT) {
+            from = hit - MAX_TEXT / 2;
+            // Al principio de un carácter UTF-8 (no en un byte de continuación 10xxxxxx)
+            while (from < hit && (buf.get(from) & 0xC0) == 0x80) {
+                from++;
+            }
+        }
+        return cut(decode(buf, from, Math.min(lineEnd, from + MAX_TEXT * 4), lineEnd));
+    }
+
+    /**
+     * Decodifica [from, to); si 'to' es el final de la línea, sin su '\r'.
+     */
+    private static String decode(ByteBuffer buf, int from, int to, int lineEnd) {
+        if (to == lineEnd && to > from && buf.get(to - 1) == '\r') {
+            to--;
+        }
+        byte[] b = new byte[to - from];
+        buf.get(from, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static String cut(String text) {
+        return (text.length() <= MAX_TEXT) ? text : text.substring(0, MAX_TEXT);
+    }
+}
@@ -1,27 +1,39 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
+import psp.ud03.tarea34.net.ProtocolV2;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.DigestCache;
 import psp.ud03.tarea34.server.PathResolver;
+import psp.ud03.tarea34.server.TreeHasher;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 /**
  * Calcula el SHA-256 de un fichero y lo devuelve en hex.
  * Respuesta: OK + 1 línea con el hash. KO si error.
  * <p>
  * Comando: hash <ruta>
+ * hash -tree[=KiB] <ruta>
  * <p>
  * Calcula el SHA-256 de un fichero.
  * <p>
  * Respuesta:
  * - KO si falta ruta o no es fichero legible
  * - OK y luego 1 línea extra con el hash en hex
+ * <p>
+ * Modo árbol (-tree, para ficheros muy grandes):
+ * - Hash Merkle calculado en paralelo por trozos (ver TreeHasher). Trozo por defecto
+ * 1024 KiB; con -tree=N se usan N KiB (64..65536).
+ * - La línea extra indica algoritmo y trozo para poder verificarlo igual:
+ * "sha256-tree chunk=<bytes> <hex>"
+ * - No da el mismo resultado que el hash normal (es otro algoritmo).
+ * <p>
+ * Rendimiento:
+ * - DigestCache guarda el hash con el tamaño/fecha/inodo del fichero: mientras no
+ * cambie, no se vuelve a leer.
  */
 public class HashCommand implements ICommand {
 
@@ -33,40 +45,92 @@ public class HashCommand implements ICommand {
             return false;
         }
 
-        Path p = PathResolver.resolve(ctx, params.trim());
-        if (!Files.exists(p) || !Files.isRegularFile(p) || !Files.isReadable(p)) {
+        String route = params.trim();
+
+        // Modo árbol: hash -tree[=KiB] <ruta>
+        String opt = null;
+        if (route.startsWith("-tree")) {
+            int sp = route.indexOf(' ');
+            opt = (sp == -1) ? route : route.substring(0, sp);
+            route = (sp == -1) ? "" : route.substring(sp + 1).trim();
+        }
+        return hash(ctx, opt, route);
+    }
+
+    /**
+     * Protocolo v2: [-tree[=KiB]] ruta ya separados (la ruta puede llevar espacios).
+     */
+    @Override
+    public boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        if (args.size() == 1) {
+            return hash(ctx, null, ProtocolV2.str(args, 0));
+        }
+        if (args.size() == 2 && ProtocolV2.str(args, 0).startsWith("-tree")) {
+            return hash(ctx, ProtocolV2.str(args, 0), ProtocolV2.str(args, 1));
+        }
+        ctx.reply("KO");
+        return false;
+    }
+
+    /**
+     * @param opt "-tree[=KiB]" o null (hash normal)
+     */
+    private boolean hash(CommandContext ctx, String opt, String route) throws IOException {
+        int chunk = 0;
+        if (opt != null) {
+            chunk = parseChunk(opt);
+            if (chunk == 0 || route.isEmpty()) {
+                ctx.reply("KO");
+                return false;
+            }
+        }
+        if (route.isEmpty()) {
             ctx.reply("KO");
             return false;
         }
 
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
+        Path p = PathResolver.resolve(ctx, route);
+        if (!Files.exists(p) || !Files.isRegularFile(p) || !Files.isReadable(p)) {
             ctx.reply("KO");
             return false;
         }
 
-        try (InputStream is = Files.newInputStream(p)) {
-            byte[] buf = new byte[8192];
-            int r;
-            while ((r = is.read(buf)) != -1) {
-                md.update(buf, 0, r);
+        // Si el fichero no ha cambiado (tamaño, fecha, inodo), el hash sale de la caché
+        String hex;
+        try {
+            if (chunk > 0) {
+                hex = TreeHasher.ALGORITHM + " chunk=" + chunk + " " + TreeHasher.hash(p, chunk);
+            } else {
+                hex = DigestCache.sha256(p);
             }
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
         }
 
-        String hex = toHex(md.digest());
         ctx.reply("OK");
-        ProtocolIO.writeLine(ctx.out(), hex);
+        ctx.writeLine(hex);
         return false;
     }
 
-    private String toHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder(bytes.length * 2);
-        for (byte b : bytes) {
-            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
-            sb.append(Character.forDigit(b & 0xF, 16));
+    /**
+     * "-tree" => trozo por defecto; "-tree=N" => N KiB. 0 si la opción no es válida.
+     */
+    private int parseChunk(String opt) {
+        if ("-tree".equals(opt)) {
+            return TreeHasher.DEFAULT_CHUNK;
+        }
+        if (!opt.startsWith("-tree=")) {
+            return 0;
+        }
+        try {
+            long bytes = Long.parseLong(opt.substring("-tree=".length())) * 1024;
+            if (bytes < TreeHasher.MIN_CHUNK || bytes > TreeHasher.MAX_CHUNK) {
+                return 0;
+            }
+            return (int) bytes;
+        } catch (NumberFormatException e) {
+            return 0;
         }
-        return sb.toString();
     }
 }
@@ -1,6 +1,6 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
+import psp.ud03.tarea34.net.ProtocolV2;
 import psp.ud03.tarea34.server.CommandContext;
 import psp.ud03.tarea34.server.PathResolver;
 
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Devuelve las primeras n líneas (por defecto 10).
@@ -39,11 +40,26 @@ public class HeadCommand implements ICommand {
         }
 
         String[] parts = params.trim().split("\\s+");
-        String route = parts[0];
+        return head(ctx, parts[0], (parts.length >= 2) ? parts[1] : null);
+    }
+
+    /**
+     * Protocolo v2: ruta [n] ya separados (la ruta puede llevar espacios).
+     */
+    @Override
+    public boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        if (args.isEmpty() || args.size() > 2) {
+            ctx.reply("KO");
+            return false;
+        }
+        return head(ctx, ProtocolV2.str(args, 0), ProtocolV2.str(args, 1));
+    }
+
+    private boolean head(CommandContext ctx, String route, String count) throws IOException {
         int n = DEFAULT_N;
-        if (parts.length >= 2) {
+        if (count != null) {
             try {
-                n = Integer.parseInt(parts[1]);
+                n = Integer.parseInt(count);
             } catch (NumberFormatException ignored) {
                 n = DEFAULT_N;
             }
@@ -70,9 +86,9 @@ public class HeadCommand implements ICommand {
                 buffer[sent] = line;
                 sent++;
             }
-            ProtocolIO.writeLine(ctx.out(), String.valueOf(sent));
+            ctx.writeLine(String.valueOf(sent));
             for (int i = 0; i < sent; i++) {
-                ProtocolIO.writeLine(ctx.out(), buffer[i]);
+                ctx.writeLine(buffer[i]);
             }
         }
 
@@ -1,6 +1,5 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
 import psp.ud03.tarea34.server.CommandRegistry;
 
@@ -37,11 +36,11 @@ public class HelpCommand implements ICommand {
 
         // Enviamos cada comando en una línea.
         for (String name : registry.namesSorted()) {
-            ProtocolIO.writeLine(ctx.out(), name);
+            ctx.writeLine(name);
         }
 
         // Terminador de lista: línea vacía.
-        ProtocolIO.writeLine(ctx.out(), "");
+        ctx.writeLine("");
 
         // false = no cerrar conexión
         return false;
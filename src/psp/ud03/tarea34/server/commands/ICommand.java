@@ -1,8 +1,10 @@
 package psp.ud03.tarea34.server.commands;
 
+import psp.ud03.tarea34.net.ProtocolV2;
 import psp.ud03.tarea34.server.CommandContext;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Interfaz común de todos los comandos del servidor.
@@ -22,7 +24,22 @@ import java.io.IOException;
  * - Si el comando implica binario (upload/download), tras el OK:
  * - se envía/lee long size
  * - se envían/leen exactamente size bytes
+ * <p>
+ * Protocolo v2 (ver ProtocolV2):
+ * - Los argumentos llegan ya separados y con tipo (String o Long).
+ * - Con un solo argumento, por defecto se llama a execute(ctx, params) con él tal cual
+ * (sin juntar ni volver a partir nada).
+ * - Los comandos de varios argumentos (rename, copy, head, tail, find, grep, hash)
+ * sobrescriben execute(ctx, args): los usan ya separados, y las rutas o patrones con
+ * espacios llegan enteros. follow y rdownload no tienen opcode (solo van por texto).
  */
 public interface ICommand {
     boolean execute(CommandContext ctx, String params) throws IOException;
+
+    default boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        if (args.size() <= 1) {
+            return execute(ctx, args.isEmpty() ? "" : String.valueOf(args.get(0)));
+        }
+        return execute(ctx, ProtocolV2.joinArgs(args));
+    }
 }
@@ -1,11 +1,10 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.MetadataCache;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 /**
@@ -19,6 +18,8 @@ import java.nio.file.Path;
  * Protocolo:
  * - KO si no existe
  * - OK + líneas clave=valor si existe
+ * <p>
+ * Los datos salen de MetadataCache (una sola lectura de atributos, compartida).
  */
 public class InfoCommand implements ICommand {
 
@@ -28,16 +29,17 @@ public class InfoCommand implements ICommand {
             String target = requireParam(params);
             Path p = PathResolver.resolve(ctx, target);
 
-            if (!Files.exists(p)) {
+            MetadataCache.Meta meta = MetadataCache.stat(p);
+            if (!meta.exists()) {
                 ctx.reply("KO");
                 return false;
             }
 
             ctx.reply("OK");
-            ProtocolIO.writeLine(ctx.out(), "name=" + p.getFileName());
-            ProtocolIO.writeLine(ctx.out(), "type=" + (Files.isDirectory(p) ? "dir" : "file"));
-            ProtocolIO.writeLine(ctx.out(), "size=" + (Files.isDirectory(p) ? 0 : Files.size(p)));
-            ProtocolIO.writeLine(ctx.out(), "modified=" + Files.getLastModifiedTime(p));
+            ctx.writeLine("name=" + p.getFileName());
+            ctx.writeLine("type=" + (meta.directory() ? "dir" : "file"));
+            ctx.writeLine("size=" + (meta.directory() ? 0 : meta.size()));
+            ctx.writeLine("modified=" + meta.modified());
         } catch (Exception e) {
             ctx.reply("KO");
         }
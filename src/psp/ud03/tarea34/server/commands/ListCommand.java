@@ -1,13 +1,12 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.MetadataCache;
 import psp.ud03.tarea34.server.PathResolver;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Lista el contenido de un directorio del servidor.
@@ -23,7 +22,7 @@ import java.nio.file.Path;
  * - KO si:
  * - faltan parámetros
  * - la ruta no existe o no es directorio
- * - error al listar (listFiles null)
+ * - error al listar
  * <p>
  * - OK si todo va bien, y después:
  * - una línea por cada entrada: "nombre KiB"
@@ -31,6 +30,8 @@ import java.nio.file.Path;
  * <p>
  * Nota:
  * - KiB solo se calcula para ficheros (para directorios se deja 0).
+ * - El listado sale de MetadataCache (compartida entre sesiones e invalidada
+ * con FileChanges/WatchService).
  */
 public class ListCommand implements ICommand {
 
@@ -49,14 +50,14 @@ public class ListCommand implements ICommand {
         Path pathList = PathResolver.resolve(ctx, params);
 
         // 3) Validar que existe y es un directorio
-        if (!Files.exists(pathList) || !Files.isDirectory(pathList)) {
+        if (!MetadataCache.stat(pathList).directory()) {
             ctx.reply("KO");
             return false;
         }
 
-        // 4) Listar entradas del directorio
-        File[] files = pathList.toFile().listFiles();
-        if (files == null) {
+        // 4) Listar entradas del directorio (caché compartida)
+        List<MetadataCache.Entry> entries = MetadataCache.list(pathList);
+        if (entries == null) {
             ctx.reply("KO");
             return false;
         }
@@ -64,23 +65,19 @@ public class ListCommand implements ICommand {
         // 5) Enviar OK y después el listado
         ctx.reply("OK");
 
-        for (int i = 0; i < files.length; i++) {
-            File file = files[i];
-
-            String name = file.getName();
+        for (MetadataCache.Entry entry : entries) {
             long kiB = 0;
 
             // Si es fichero, calculamos su tamaño aproximado en KiB
-            if (file.isFile()) {
-                long bytes = file.length();
-                kiB = (bytes + 1023) / 1024; // redondeo hacia arriba
+            if (entry.file()) {
+                kiB = (entry.size() + 1023) / 1024; // redondeo hacia arriba
             }
 
-            ProtocolIO.writeLine(ctx.out(), name + " " + kiB);
+            ctx.writeLine(entry.name() + " " + kiB);
         }
 
         // 6) Línea vacía final = terminador del listado
-        ProtocolIO.writeLine(ctx.out(), "");
+        ctx.writeLine("");
 
         return false;
     }
@@ -1,6 +1,7 @@
 package psp.ud03.tarea34.server.commands;
 
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.FileChanges;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
@@ -31,8 +32,15 @@ public class MkdirCommand implements ICommand {
             //    (anti-traversal: evita salir de baseDir con ".." y rutas absolutas)
             Path dir = PathResolver.resolve(ctx, dirName);
 
-            // 3) Creamos el directorio (si ya existe, no falla)
+            // 3) Primer directorio que aún no existe (createDirectories crea también los padres)
+            Path created = dir;
+            while (created.getParent() != null && !Files.exists(created.getParent())) {
+                created = created.getParent();
+            }
+
+            // 4) Creamos el directorio (si ya existe, no falla)
             Files.createDirectories(dir);
+            FileChanges.fire(created);
 
             ctx.reply("OK");
         } catch (Exception e) {
@@ -0,0 +1,226 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.DigestCache;
+import psp.ud03.tarea34.server.FileChanges;
+import psp.ud03.tarea34.server.PathResolver;
+import psp.ud03.tarea34.server.ServerLogger;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Actualiza un fichero EXISTENTE del servidor a partir de un delta (segundo paso de "sync").
+ * Respuesta: OK (listo para recibir) ... OK/KO final. KO inicial si no existe.
+ * <p>
+ * Comando: patch <blockSize> <ruta_fichero>
+ * (blockSize = el que devolvió "sigs" para ese fichero)
+ * <p>
+ * Protocolo (tras el primer OK, el cliente manda operaciones en binario):
+ * - 'C' + int primerBloque + int n   => copiar n bloques seguidos del fichero ACTUAL
+ * - 'L' + int len + len bytes       => bytes literales (nuevos)
+ * - 'E' + long tamañoFinal + 32 bytes SHA-256 del fichero nuevo => fin
+ * <p>
+ * Después el servidor responde una línea (texto normal, también en modo compress):
+ * - OK si el resultado tiene el tamaño y el SHA-256 anunciados: ya ha sustituido al original.
+ * - KO si no (por ejemplo, el fichero cambió entre sigs y patch): el original no se toca.
+ * <p>
+ * El fichero nuevo se construye en un temporal del mismo directorio y se cambia por el
+ * original con un move atómico: nadie ve nunca un fichero a medias. (Esto también
+ * deja intactos los enlaces duros que haya creado dupload.)
+ */
+public class PatchCommand implements ICommand {
+
+    // Literal más grande que aceptamos en una sola operación
+    private static final int MAX_LITERAL = 16 * 1024 * 1024;
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        // 1) Parámetros: tamaño de bloque + ruta (la ruta puede tener espacios)
+        if (params == null || params.trim().isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        String[] parts = params.trim().split("\\s+", 2);
+        if (parts.length < 2) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        int blockSize;
+        try {
+            blockSize = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            ctx.reply("KO");
+            return false;
+        }
+        if (blockSize < SignaturesCommand.MIN_BLOCK || blockSize > SignaturesCommand.MAX_BLOCK) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        Path target = PathResolver.resolve(ctx, parts[1].trim());
+        if (!Files.isRegularFile(target)) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        // 2) Abrir original + temporal ANTES del OK (si falla, aún podemos decir KO)
+        FileChannel old;
+        Path tmp;
+        FileChannel out;
+        try {
+            old = FileChannel.open(target, StandardOpenOption.READ);
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
+        }
+        try {
+            tmp = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", ".patch");
+            copyPermissions(target, tmp);
+            out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            old.close();
+            ctx.reply("KO");
+            return false;
+        }
+
+        ctx.reply("OK");
+        ctx.binaryReply();
+        ctx.flush();
+
+        // 3) Aplicar operaciones hasta 'E'
+        String hex = null;
+        boolean ok = false;
+        try (FileChannel src = old; FileChannel dst = out) {
+            hex = apply(ctx.dis(), src, dst, blockSize);
+            ok = hex != null;
+        } finally {
+            if (ok) {
+                // 4) Cambio atómico temporal -> original
+                try {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    ok = false;
+                    ServerLogger.log(ctx.clientIp(), "ERROR (patch move failed: " + e.getMessage() + ")");
+                }
+            }
+            if (!ok) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        if (ok) {
+            FileChanges.fire(target);
+            DigestCache.put(target, Files.readAttributes(target, BasicFileAttributes.class), hex);
+        }
+
+        ctx.writeLine(ok ? "OK" : "KO");
+        return false;
+    }
+
+    /**
+     * Lee y aplica las operaciones.
+     *
+     * @return SHA-256 (hex) del resultado si coincide con el tamaño y el hash anunciados,
+     * null si no
+     */
+    private static String apply(DataInputStream in, FileChannel src, FileChannel dst, int blockSize)
+            throws IOException {
+
+        MessageDigest sha = DigestCache.newDigest();
+        long oldSize = src.size();
+        long written = 0;
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(blockSize, 64 * 1024));
+
+        while (true) {
+            int op = in.readUnsignedByte();
+
+            if (op == 'C') {
+                long first = in.readInt();
+                long n = in.readInt();
+
+                long from = first * blockSize;
+                long to = Math.min(oldSize, (first + n) * blockSize);
+                if (first < 0 || n < 0 || from > oldSize) {
+                    throw new IOException("Bad block reference in patch");
+                }
+
+                // Copiar [from, to) del original, pasando por el SHA-256
+                long pos = from;
+                while (pos < to) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), to - pos));
+                    int r = src.read(buf, pos);
+                    if (r == -1) {
+                        break; // truncado: el SHA-256 final lo detectará
+                    }
+                    buf.flip();
+                    sha.update(buf.array(), 0, buf.limit());
+                    while (buf.hasRemaining()) {
+                        dst.write(buf);
+                    }
+                    pos += r;
+                    written += r;
+                }
+
+            } else if (op == 'L') {
+                int len = in.readInt();
+                if (len < 0 || len > MAX_LITERAL) {
+                    throw new IOException("Bad literal length in patch");
+                }
+
+                while (len > 0) {
+                    int n = Math.min(len, buf.capacity());
+                    in.readFully(buf.array(), 0, n);
+                    sha.update(buf.array(), 0, n);
+                    buf.clear();
+                    buf.limit(n);
+                    while (buf.hasRemaining()) {
+                        dst.write(buf);
+                    }
+                    len -= n;
+                    written += n;
+                }
+
+            } else if (op == 'E') {
+                long size = in.readLong();
+                byte[] expected = new byte[32];
+                in.readFully(expected);
+
+                byte[] actual = sha.digest();
+                if (size != written || !Arrays.equals(expected, actual)) {
+                    return null;
+                }
+
+                dst.force(false);
+                return DigestCache.toHex(actual);
+
+            } else {
+                throw new IOException("Unknown patch operation: " + op);
+            }
+        }
+    }
+
+    /**
+     * El temporal se crea con permisos 600: le ponemos los del original (si el SO usa POSIX).
+     */
+    private static void copyPermissions(Path from, Path to) {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (IOException | UnsupportedOperationException ignored) {
+            // Windows u otro FS: se queda con los permisos por defecto
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
 
 import java.io.IOException;
@@ -23,7 +22,7 @@ public class PingCommand implements ICommand {
     @Override
     public boolean execute(CommandContext ctx, String params) throws IOException {
         ctx.reply("OK");
-        ProtocolIO.writeLine(ctx.out(), "pong");
+        ctx.writeLine("pong");
         return false;
     }
 }
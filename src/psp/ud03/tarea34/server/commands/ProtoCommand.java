@@ -0,0 +1,39 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+
+import java.io.IOException;
+
+/**
+ * Cambia el protocolo de ESTA conexión.
+ * Respuesta: OK (o KO si la versión no existe).
+ * <p>
+ * Comando: proto 1 | proto 2
+ * <p>
+ * - proto 2: tras el OK (en texto), peticiones y respuestas van en tramas binarias
+ * con longitud delante (ver ProtocolV2). No hay vuelta atrás en la misma conexión.
+ * - proto 1: texto (lo que ya hay); se acepta para que el cliente pueda preguntar.
+ * - En v2 no hay modo comprimido: si estaba activo, se desactiva.
+ */
+public class ProtoCommand implements ICommand {
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        int version;
+        if ("1".equals(params)) {
+            version = 1;
+        } else if ("2".equals(params)) {
+            version = 2;
+        } else {
+            ctx.reply("KO");
+            return false;
+        }
+
+        ctx.reply("OK");
+        if (version == 2) {
+            ctx.setProtocol(2);
+        }
+        return false;
+    }
+}
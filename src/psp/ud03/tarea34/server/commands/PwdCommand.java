@@ -1,6 +1,5 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
 
 import java.io.IOException;
@@ -40,7 +39,7 @@ public class PwdCommand implements ICommand {
             rel = ".";
         }
 
-        ProtocolIO.writeLine(ctx.out(), rel);
+        ctx.writeLine(rel);
         return false;
     }
 }
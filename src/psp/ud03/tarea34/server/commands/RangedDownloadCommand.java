@@ -0,0 +1,75 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.PathResolver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Baja un TROZO de un fichero del servidor (descargas reanudables).
+ * Respuesta: igual que download (OK + long size + size bytes). KO si error.
+ * <p>
+ * Comando: rdownload <offset> <length> [if=<tamaño>,<modificado>] <ruta_fichero>
+ * <p>
+ * - offset: primer byte (0 = principio). Si es mayor que el fichero => KO.
+ * - length: bytes a enviar. Negativo (por ejemplo -1) o más allá del final => hasta el final.
+ * - if=: solo si el fichero sigue siendo el mismo (tamaño total y fecha de modificación
+ * como los da info). Si ha cambiado => KO: lo que el cliente tenía ya no encaja.
+ * - La ruta va al final para que pueda contener espacios (como en download).
+ * <p>
+ * Uso típico: el cliente tiene "fichero.part" con L bytes y pide
+ * "rdownload L -1 if=T,M fichero" con el tamaño y la fecha que vio al empezar.
+ */
+public class RangedDownloadCommand implements ICommand {
+
+    private static final Pattern EXPECT = Pattern.compile("if=(\\d+),(\\S+)");
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        if (params == null || params.trim().isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        String[] parts = params.trim().split("\\s+", 3);
+        if (parts.length < 3) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(parts[0]);
+            length = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        // Comprobación opcional delante de la ruta
+        String route = parts[2].trim();
+        long expectedSize = -1;
+        String expectedModified = null;
+        String[] first = route.split("\\s+", 2);
+        Matcher m = EXPECT.matcher(first[0]);
+        if (first.length == 2 && m.matches()) {
+            try {
+                expectedSize = Long.parseLong(m.group(1));
+            } catch (NumberFormatException e) {
+                ctx.reply("KO");
+                return false;
+            }
+            expectedModified = m.group(2);
+            route = first[1].trim();
+        }
+
+        Path file = PathResolver.resolve(ctx, route);
+        DownloadCommand.sendRange(ctx, file, offset, length, expectedSize, expectedModified);
+        return false;
+    }
+}
@@ -1,18 +1,22 @@
 package psp.ud03.tarea34.server.commands;
 
+import psp.ud03.tarea34.net.ProtocolV2;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.FileChanges;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
 
 /**
  * Renombra o mueve dentro del servidor (según cómo lo uses).
  * Respuesta: OK si renombra, KO si error (no existe, destino existe, permisos…).
  * <p>
  * Comando: rename <src> <dst>
+ * (en texto las rutas no pueden llevar espacios; en el protocolo v2 sí)
  * <p>
  * Renombra (o mueve) un fichero/directorio dentro de baseDir.
  * <p>
@@ -24,16 +28,39 @@ public class RenameCommand implements ICommand {
 
     @Override
     public boolean execute(CommandContext ctx, String params) throws IOException {
+        // 1) Partimos params en dos rutas: origen y destino
+        String[] p;
         try {
-            // 1) Partimos params en dos rutas: origen y destino
-            String[] p = split2(params);
+            p = split2(params);
+        } catch (IllegalArgumentException e) {
+            ctx.reply("KO");
+            return false;
+        }
+        return rename(ctx, p[0], p[1]);
+    }
 
+    /**
+     * Protocolo v2: las dos rutas llegan ya separadas (pueden llevar espacios).
+     */
+    @Override
+    public boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        if (args.size() != 2) {
+            ctx.reply("KO");
+            return false;
+        }
+        return rename(ctx, ProtocolV2.str(args, 0), ProtocolV2.str(args, 1));
+    }
+
+    private boolean rename(CommandContext ctx, String from, String to) throws IOException {
+        try {
             // 2) Resolvemos ambas rutas aplicando la política segura
-            Path src = PathResolver.resolve(ctx, p[0]);
-            Path dst = PathResolver.resolve(ctx, p[1]);
+            Path src = PathResolver.resolve(ctx, from);
+            Path dst = PathResolver.resolve(ctx, to);
 
             // 3) Movemos/renombramos (si no quieres reemplazar, quita REPLACE_EXISTING)
             Files.move(src, dst, StandardCopyOption.REPLACE_EXISTING);
+            FileChanges.fire(src);
+            FileChanges.fire(dst);
 
             ctx.reply("OK");
         } catch (Exception e) {
@@ -1,14 +1,12 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
+import psp.ud03.tarea34.server.BoundedLineReader;
 import psp.ud03.tarea34.server.CommandContext;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
 
 /**
  * Muestra un fichero de texto (UTF-8).
@@ -31,6 +29,16 @@ import java.util.List;
  * <p>
  * Nota:
  * - Este comando es SOLO para texto. Si le pasas un binario, puede dar contenido extraño.
+ * - Se mantiene por compatibilidad. Para ficheros grandes es mejor cat (streaming,
+ * una sola lectura): el cliente interactivo ya lo usa para "show".
+ * <p>
+ * Memoria:
+ * - N tiene que salir antes que las líneas, pero no hace falta tenerlas todas en
+ * memoria: una primera pasada solo cuenta y la segunda envía.
+ * - Si el fichero cambia entre las dos pasadas se envían igualmente N líneas
+ * (sobrantes fuera, que falten => líneas vacías) para no romper el protocolo.
+ * - Una línea de más de BoundedLineReader.MAX_LINE caracteres cuenta y se envía como
+ * varias (partida): ninguna pasada guarda en memoria una línea sin límite.
  */
 public class ShowCommand implements ICommand {
 
@@ -52,8 +60,16 @@ public class ShowCommand implements ICommand {
             return false;
         }
 
-        // 4) Leer todas las líneas (UTF-8)
-        List<String> lines = Files.readAllLines(pathShow, StandardCharsets.UTF_8);
+        // 4) Primera pasada: contar líneas (memoria constante)
+        long n = 0;
+        try (BoundedLineReader br = BoundedLineReader.open(pathShow)) {
+            while (br.readLine() != null) {
+                n++;
+            }
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
+        }
 
         // 5) Responder según el protocolo del show:
         // OK
@@ -62,10 +78,21 @@ public class ShowCommand implements ICommand {
         // line2
         // ...
         ctx.reply("OK");
-        ProtocolIO.writeLine(ctx.out(), String.valueOf(lines.size()));
+        ctx.writeLine(String.valueOf(n));
 
-        for (int i = 0; i < lines.size(); i++) {
-            ProtocolIO.writeLine(ctx.out(), lines.get(i));
+        // 6) Segunda pasada: enviar exactamente N líneas
+        long sent = 0;
+        try (BoundedLineReader br = BoundedLineReader.open(pathShow)) {
+            String line;
+            while (sent < n && (line = br.readLine()) != null) {
+                ctx.writeLine(line);
+                sent++;
+            }
+        } catch (IOException ignored) {
+            // Se completa abajo
+        }
+        for (; sent < n; sent++) {
+            ctx.writeLine("");
         }
 
         return false;
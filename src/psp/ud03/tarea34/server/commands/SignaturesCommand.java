@@ -0,0 +1,119 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.net.RollingChecksum;
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.PathResolver;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Firmas de los bloques de un fichero del servidor (primer paso de "sync").
+ * Respuesta: OK + firmas en binario. KO si no existe/no es fichero.
+ * <p>
+ * Comando: sigs <ruta_fichero>
+ * <p>
+ * Protocolo (tras OK, todo binario):
+ * - int  blockSize   (lo elige el servidor según el tamaño, ver blockSizeFor)
+ * - long fileSize
+ * - int  count       (número de bloques; el último puede ser más corto)
+ * - count veces: int sumaRodante (RollingChecksum) + 16 bytes MD5 del bloque
+ * <p>
+ * El cliente busca esos bloques en su versión del fichero y manda con "patch" solo
+ * lo que no encuentra (ver PatchCommand).
+ * <p>
+ * Es un comando binario: en modo compress las firmas van igualmente sin comprimir
+ * (MD5 no se comprime).
+ */
+public class SignaturesCommand implements ICommand {
+
+    // Límites del tamaño de bloque
+    static final int MIN_BLOCK = 2 * 1024;
+    static final int MAX_BLOCK = 128 * 1024;
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+
+        if (params == null || params.trim().isEmpty()) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        Path file = PathResolver.resolve(ctx, params.trim());
+        if (!Files.isRegularFile(file) || !Files.isReadable(file)) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        InputStream is;
+        long size;
+        try {
+            is = Files.newInputStream(file);
+            size = Files.size(file);
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            is.close();
+            ctx.reply("KO");
+            return false;
+        }
+
+        int blockSize = blockSizeFor(size);
+        int count = (int) ((size + blockSize - 1) / blockSize);
+
+        ctx.reply("OK");
+        ctx.binaryReply();
+
+        DataOutputStream dos = ctx.dos();
+        dos.writeInt(blockSize);
+        dos.writeLong(size);
+        dos.writeInt(count);
+
+        try (InputStream in = is) {
+            byte[] block = new byte[blockSize];
+            for (int i = 0; i < count; i++) {
+                int len = (int) Math.min(blockSize, size - (long) i * blockSize);
+                readFully(in, block, len);
+
+                dos.writeInt(RollingChecksum.of(block, 0, len));
+                md5.update(block, 0, len);
+                dos.write(md5.digest());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bloque ~ raíz cuadrada del tamaño (como rsync): pocos bloques en ficheros
+     * pequeños y firmas de tamaño razonable en ficheros enormes.
+     */
+    static int blockSizeFor(long size) {
+        long root = (long) Math.sqrt((double) size);
+        long rounded = (root + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, rounded));
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int r = in.read(buf, off, len - off);
+            if (r == -1) {
+                // Lo han truncado mientras mandábamos: tras OK solo queda cortar
+                throw new EOFException("File truncated during sigs");
+            }
+            off += r;
+        }
+    }
+}
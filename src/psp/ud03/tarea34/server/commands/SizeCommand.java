@@ -1,11 +1,10 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.MetadataCache;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 /**
@@ -19,6 +18,8 @@ import java.nio.file.Path;
  * Protocolo (texto):
  * 1) Servidor responde: OK | KO
  * 2) Si OK, servidor envía 1 línea con el tamaño (long en texto).
+ * <p>
+ * El tamaño sale de MetadataCache.
  */
 public class SizeCommand implements ICommand {
 
@@ -32,21 +33,14 @@ public class SizeCommand implements ICommand {
 
         Path target = PathResolver.resolve(ctx, params);
 
-        if (!Files.exists(target) || !Files.isRegularFile(target)) {
-            ctx.reply("KO");
-            return false;
-        }
-
-        long size;
-        try {
-            size = Files.size(target);
-        } catch (IOException ex) {
+        MetadataCache.Meta meta = MetadataCache.stat(target);
+        if (!meta.exists() || !meta.regularFile()) {
             ctx.reply("KO");
             return false;
         }
 
         ctx.reply("OK");
-        ProtocolIO.writeLine(ctx.out(), String.valueOf(size));
+        ctx.writeLine(String.valueOf(meta.size()));
         return false;
     }
 }
@@ -0,0 +1,33 @@
+package psp.ud03.tarea34.server.commands;
+
+import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.ServerMetrics;
+
+import java.io.IOException;
+
+/**
+ * Métricas del servidor desde el arranque (ver ServerMetrics).
+ * Respuesta: OK + líneas + línea vacía (fin).
+ * <p>
+ * Comando: stats
+ * <p>
+ * Respuesta:
+ * - Primero "clave valor": uptime, sesiones, pool, cachés, índice...
+ * - Después una cabecera y una línea por comando:
+ * comando ok ko p50_ms p99_ms p999_ms bytes_in bytes_out
+ * - Última línea "all ...": todos los comandos juntos (histogramas sumados).
+ * <p>
+ * Los mismos datos se vuelcan en formato Prometheus al fichero metricas.fichero.
+ */
+public class StatsCommand implements ICommand {
+
+    @Override
+    public boolean execute(CommandContext ctx, String params) throws IOException {
+        ctx.reply("OK");
+        for (String line : ServerMetrics.report()) {
+            ctx.writeLine(line);
+        }
+        ctx.writeLine("");
+        return false;
+    }
+}
@@ -1,16 +1,23 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
+import psp.ud03.tarea34.net.ProtocolV2;
 import psp.ud03.tarea34.server.CommandContext;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 
 /**
  * Devuelve las últimas n líneas (por defecto 10).
@@ -23,9 +30,15 @@ import java.util.Deque;
  * <p>
  * Respuesta:
  * - KO si faltan params o no es fichero legible.
+ * - KO si las n últimas líneas ocupan más de MAX_BYTES (16 MiB): no se envían a medias.
  * - OK y luego:
  * - una línea con N (líneas que se van a enviar)
  * - N líneas de contenido
+ * <p>
+ * Rendimiento:
+ * - Se lee el fichero HACIA ATRÁS desde el final, en bloques (FileChannel), hasta
+ * encontrar n saltos de línea. El coste depende de n, no del tamaño del fichero
+ * (tail de un log de 20 GB lee unos pocos KiB).
  */
 public class TailCommand implements ICommand {
 
@@ -41,11 +54,26 @@ public class TailCommand implements ICommand {
         }
 
         String[] parts = params.trim().split("\\s+");
-        String route = parts[0];
+        return tail(ctx, parts[0], (parts.length >= 2) ? parts[1] : null);
+    }
+
+    /**
+     * Protocolo v2: ruta [n] ya separados (la ruta puede llevar espacios).
+     */
+    @Override
+    public boolean execute(CommandContext ctx, List<Object> args) throws IOException {
+        if (args.isEmpty() || args.size() > 2) {
+            ctx.reply("KO");
+            return false;
+        }
+        return tail(ctx, ProtocolV2.str(args, 0), ProtocolV2.str(args, 1));
+    }
+
+    private boolean tail(CommandContext ctx, String route, String count) throws IOException {
         int n = DEFAULT_N;
-        if (parts.length >= 2) {
+        if (count != null) {
             try {
-                n = Integer.parseInt(parts[1]);
+                n = Integer.parseInt(count);
             } catch (NumberFormatException ignored) {
                 n = DEFAULT_N;
             }
@@ -59,22 +87,101 @@ public class TailCommand implements ICommand {
             return false;
         }
 
-        // Cola circular de tamaño n
-        Deque<String> dq = new ArrayDeque<>(Math.max(1, n));
-        try (BufferedReader br = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+        List<String> lines;
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+            lines = lastLines(fc, fc.size(), n);
+        } catch (IOException e) {
+            ctx.reply("KO");
+            return false;
+        }
+
+        ctx.reply("OK");
+        ctx.writeLine(String.valueOf(lines.size()));
+        for (String s : lines) {
+            ctx.writeLine(s);
+        }
+        return false;
+    }
+
+    // Tamaño de cada bloque leído hacia atrás
+    private static final int BLOCK = 64 * 1024;
+
+    // Como mucho se mira este trozo final (por si no hay saltos de línea: fichero binario)
+    static final int MAX_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Últimas n líneas de fc[0, end) leyendo hacia atrás (también lo usa follow).
+     * <p>
+     * - Se buscan bytes '\n' desde el final (en UTF-8 nunca forman parte de otro carácter,
+     * así que cortar justo detrás es seguro).
+     * - Si el fichero acaba en '\n', ese salto cierra la última línea: hace falta uno más.
+     * - Las líneas se separan igual que BufferedReader.readLine (\n, \r\n, \r).
+     *
+     * @throws IOException también si las n líneas no caben en los últimos MAX_BYTES
+     *                     (no se devuelven menos líneas ni la primera cortada)
+     */
+    static List<String> lastLines(FileChannel fc, long end, int n) throws IOException {
+        if (n <= 0 || end == 0) {
+            return new ArrayList<>();
+        }
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK);
+
+        // ¿Acaba en salto de línea?
+        block.limit(1);
+        fc.read(block, end - 1);
+        boolean trailing = block.get(0) == '\n';
+        int needed = trailing ? n + 1 : n;
+
+        long start = 0;
+        long limit = Math.max(0, end - MAX_BYTES);
+        int found = 0;
+        long pos = end;
+
+        search:
+        while (pos > limit) {
+            int len = (int) Math.min(BLOCK, pos - limit);
+            pos -= len;
+
+            block.clear();
+            block.limit(len);
+            while (block.hasRemaining()) {
+                if (fc.read(block, pos + block.position()) == -1) {
+                    break;
+                }
+            }
+
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && ++found == needed) {
+                    start = pos + i + 1;
+                    break search;
+                }
+            }
+            start = pos;
+        }
+
+        if (found < needed && start > 0) {
+            throw new IOException("Last " + n + " lines exceed " + MAX_BYTES + " bytes");
+        }
+
+        // Leer [start, end) y partir en líneas
+        byte[] tail = new byte[(int) (end - start)];
+        ByteBuffer bb = ByteBuffer.wrap(tail);
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, start + bb.position()) == -1) {
+                break;
+            }
+        }
+
+        Deque<String> dq = new ArrayDeque<>(n);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(tail, 0, bb.position()), StandardCharsets.UTF_8))) {
             String line;
             while ((line = br.readLine()) != null) {
-                if (n == 0) break;
                 if (dq.size() == n) dq.removeFirst();
                 dq.addLast(line);
             }
         }
-
-        ctx.reply("OK");
-        ProtocolIO.writeLine(ctx.out(), String.valueOf(dq.size()));
-        for (String s : dq) {
-            ProtocolIO.writeLine(ctx.out(), s);
-        }
-        return false;
+        return new ArrayList<>(dq);
     }
 }
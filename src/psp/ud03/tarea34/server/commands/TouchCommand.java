@@ -1,6 +1,7 @@
 package psp.ud03.tarea34.server.commands;
 
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.FileChanges;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
@@ -39,13 +40,16 @@ public class TouchCommand implements ICommand {
                     return false;
                 }
                 Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+                FileChanges.fire(target);
             } else {
                 // Crear vacío (y crear directorios padre si existen en la ruta)
                 Path parent = target.getParent();
+                boolean newParent = parent != null && !Files.exists(parent);
                 if (parent != null) {
                     Files.createDirectories(parent);
                 }
                 Files.createFile(target);
+                FileChanges.fire(newParent ? parent : target);
             }
 
             ctx.reply("OK");
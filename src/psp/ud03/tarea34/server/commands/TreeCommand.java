@@ -1,16 +1,15 @@
 package psp.ud03.tarea34.server.commands;
 
-import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.ParallelWalker;
 import psp.ud03.tarea34.server.PathResolver;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Locale;
 
 /**
  * Listado recursivo tipo árbol del directorio (si no pasas dir, usa el cwd).
@@ -24,11 +23,20 @@ import java.util.stream.Collectors;
  * Respuesta:
  * - KO si no existe o no es directorio legible.
  * - OK + líneas + línea vacía terminadora.
+ * - Orden: cada directorio con sus hijos por nombre (sin distinguir mayúsculas).
+ * <p>
+ * Rendimiento:
+ * - El árbol se recorre en paralelo (ParallelWalker); la salida es la misma que
+ * recorriéndolo en orden, con el mismo límite de MAX_ITEMS líneas.
  */
 public class TreeCommand implements ICommand {
 
     private static final int MAX_ITEMS = 20000; // límite razonable
 
+    // Por nombre sin mayúsculas; si empatan, el nombre tal cual (orden siempre igual)
+    private static final Comparator<String> ORDER =
+            Comparator.comparing((String n) -> n.toLowerCase(Locale.ROOT)).thenComparing(Comparator.naturalOrder());
+
     @Override
     public boolean execute(CommandContext ctx, String params) throws IOException {
 
@@ -41,38 +49,17 @@ public class TreeCommand implements ICommand {
 
         ctx.reply("OK");
 
-        int[] count = {0};
         // Primera línea: el directorio raíz relativo
-        ProtocolIO.writeLine(ctx.out(), start.getFileName() == null ? start.toString() : start.getFileName().toString());
-        walkDir(ctx, start, 1, count);
-
-        // Terminador
-        ProtocolIO.writeLine(ctx.out(), "");
-        return false;
-    }
+        ctx.writeLine(start.getFileName() == null ? start.toString() : start.getFileName().toString());
 
-    private void walkDir(CommandContext ctx, Path dir, int depth, int[] count) throws IOException {
-        if (count[0] >= MAX_ITEMS) return;
-
-        List<Path> children;
-        try {
-            children = Files.list(dir)
-                    .sorted(Comparator.comparing(p -> p.getFileName().toString().toLowerCase()))
-                    .collect(Collectors.toList());
-        } catch (IOException e) {
-            return;
+        List<ParallelWalker.Entry> entries = ParallelWalker.walk(start, ORDER, name -> true, MAX_ITEMS, true);
+        for (ParallelWalker.Entry e : entries) {
+            ctx.writeLine(indent(e.depth()) + e.name());
         }
 
-        for (Path child : children) {
-            if (count[0] >= MAX_ITEMS) return;
-            count[0]++;
-
-            ProtocolIO.writeLine(ctx.out(), indent(depth) + child.getFileName());
-
-            if (Files.isDirectory(child) && Files.isReadable(child)) {
-                walkDir(ctx, child, depth + 1, count);
-            }
-        }
+        // Terminador
+        ctx.writeLine("");
+        return false;
     }
 
     private String indent(int depth) {
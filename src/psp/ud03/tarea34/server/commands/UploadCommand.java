@@ -2,10 +2,18 @@ package psp.ud03.tarea34.server.commands;
 
 import psp.ud03.tarea34.net.ProtocolIO;
 import psp.ud03.tarea34.server.CommandContext;
+import psp.ud03.tarea34.server.DigestCache;
+import psp.ud03.tarea34.server.FileChanges;
+import psp.ud03.tarea34.server.ServerLogger;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 
 /**
  * Sube un fichero del cliente al servidor. El servidor se queda solo con el basename (para evitar rutas del cliente).
@@ -28,6 +36,23 @@ import java.nio.file.*;
  * 3) Si OK, cliente manda en BINARIO:
  * - long size
  * - size bytes
+ * <p>
+ * Rendimiento:
+ * - Los bytes se reciben con ProtocolIO.receiveFile (FileChannel.transferFrom desde el
+ * canal del socket), sin el doble paso por un array de 4 KiB.
+ * <p>
+ * Modo comprimido (compress deflate):
+ * - El cliente manda long size (tamaño ORIGINAL) + bloque comprimido
+ * (ver DeflateBlockOutputStream) en lugar de los bytes en crudo.
+ * <p>
+ * Caché de hash (digest.subida=true):
+ * - La recepción en crudo sigue siendo transferFrom. Al terminar, el fichero se relee EN
+ * SEGUNDO PLANO (DigestCache.sha256Later: la sesión responde ya al siguiente comando) y
+ * su SHA-256 queda en DigestCache: un "hash" posterior no tiene que leerlo del disco y
+ * dupload puede verificar lo recibido.
+ * - En modo comprimido el hash se calcula mientras se escribe (los bytes ya pasan por el heap).
+ * - Coste: una lectura extra de cada fichero subido (CPU de SHA-256, fuera de la sesión).
+ * Con digest.subida=false no se hace y el hash se calcula la primera vez que se pida.
  */
 public class UploadCommand implements ICommand {
 
@@ -58,9 +83,9 @@ public class UploadCommand implements ICommand {
          * - Si no podemos crear/abrir el fichero, respondemos KO.
          * - Importante: NO mandar OK si luego no podremos escribir (desincroniza el protocolo).
          */
-        OutputStream fos;
+        FileChannel fc;
         try {
-            fos = Files.newOutputStream(
+            fc = FileChannel.open(
                     target,
                     StandardOpenOption.CREATE_NEW,
                     StandardOpenOption.WRITE
@@ -70,25 +95,82 @@ public class UploadCommand implements ICommand {
             return false;
         }
 
+        FileChanges.fire(target);
+
         // 6) Ya podemos recibir => OK (texto + log unificado)
+        // flush: el cliente espera ver el OK antes de mandar los bytes
         ctx.reply("OK");
+        boolean compressed = ctx.binaryReply();
+        ctx.flush();
+
+        // 7-9) Tamaño + bytes
+        receive(ctx, target, fc, compressed, null);
+
+        return false;
+    }
+
+    /**
+     * Parte binaria de upload (tras el OK): long size + bytes (o bloque comprimido),
+     * escritos en 'fc' (se cierra al acabar). La usan upload y dupload.
+     * <p>
+     * Con digest.subida, el SHA-256 de lo recibido (ahora o en segundo plano) se compara
+     * con 'expectedHex' (dupload) y, si no coincide, se anota en el log.
+     *
+     * @param expectedHex hash anunciado por el cliente, o null
+     */
+    static void receive(CommandContext ctx, Path target, FileChannel fc, boolean compressed,
+                        String expectedHex) throws IOException {
 
         // 7) Leer tamaño (binario)
         long size = ctx.dis().readLong();
         if (size < 0) {
             // Tras OK no mandamos KO: cortamos
             try {
-                fos.close();
+                fc.close();
             } catch (IOException ignored) {
             }
             throw new IOException("Negative upload size");
         }
 
-        // 8) Recibir bytes exactos
-        try (OutputStream outFile = fos) {
-            ProtocolIO.copyNBytes(ctx.in(), outFile, size);
+        // 8) Recibir bytes exactos (al acabar, avisar a las cachés del tamaño nuevo)
+        // - En crudo siempre por receiveFile (transferFrom, zero-copy), con o sin digest.subida.
+        // - Comprimido los bytes pasan por el heap igualmente: el hash se calcula de paso.
+        MessageDigest md = (compressed && DigestCache.digestUploads()) ? DigestCache.newDigest() : null;
+
+        try (FileChannel outFile = fc) {
+            if (!compressed) {
+                ProtocolIO.receiveFile(ctx.in(), ctx.socket(), outFile, size);
+            } else if (md != null) {
+                OutputStream digestOut = new DigestOutputStream(Channels.newOutputStream(outFile), md);
+                ProtocolIO.receiveCompressed(ctx.in(), digestOut, size);
+            } else {
+                ProtocolIO.receiveCompressed(ctx.in(), Channels.newOutputStream(outFile), size);
+            }
+        } finally {
+            FileChanges.fire(target);
         }
 
-        return false;
+        // 9) Fichero completo y cerrado: su hash queda en DigestCache
+        if (!DigestCache.digestUploads()) {
+            return;
+        }
+        String ip = ctx.clientIp();
+        if (md == null) {
+            // Recién escrito: se relee (de la caché de páginas del SO) sin hacer esperar a la sesión
+            DigestCache.sha256Later(target, hex -> checkDigest(ip, target, expectedHex, hex));
+            return;
+        }
+        String hex = DigestCache.toHex(md.digest());
+        DigestCache.put(target, Files.readAttributes(target, BasicFileAttributes.class), hex);
+        checkDigest(ip, target, expectedHex, hex);
+    }
+
+    /**
+     * El hash anunciado no coincide con lo recibido: el fichero se queda, pero se avisa.
+     */
+    private static void checkDigest(String ip, Path target, String expectedHex, String hex) {
+        if (expectedHex != null && !expectedHex.equals(hex)) {
+            ServerLogger.log(ip, "ERROR (dupload digest mismatch: " + target.getFileName() + ")");
+        }
     }
 }